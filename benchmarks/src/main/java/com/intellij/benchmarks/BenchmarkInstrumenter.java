@@ -0,0 +1,59 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.benchmarks;
+
+import com.intellij.AbstractNotNullInstrumenterTask;
+import com.intellij.ParameterDefaults;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.maven.project.MavenProject;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs the directory instrumentation of the mojos outside of Maven, with the defaults of the plugin parameters except
+ * for the number of threads.
+ * Like the classes goal, {@link #execute()} instruments the {@code classes} directory under the build directory.
+ */
+public class BenchmarkInstrumenter extends AbstractNotNullInstrumenterTask {
+    public BenchmarkInstrumenter(@NotNull final File buildDirectory, final int threads) {
+        project = new MavenProject();
+        project.getBuild().setDirectory(buildDirectory.getAbsolutePath());
+        project.getBuild().setOutputDirectory(new File(buildDirectory, "classes").getAbsolutePath());
+        ParameterDefaults.apply(this);
+        this.threads = threads;
+        setLog(new SystemStreamLog() {
+            @Override
+            public void info(final CharSequence content) {
+            }
+        });
+    }
+
+    public void instrument(@NotNull final File directory, @NotNull final List<String> classpath) throws MojoExecutionException {
+        instrument(directory.getAbsolutePath(), classpath, "benchmark");
+    }
+
+    public void instrument(@NotNull final File directory) throws MojoExecutionException {
+        instrument(directory, Collections.singletonList(directory.getAbsolutePath()));
+    }
+
+    public void execute() throws MojoExecutionException {
+        instrument(new File(project.getBuild().getOutputDirectory()));
+    }
+}
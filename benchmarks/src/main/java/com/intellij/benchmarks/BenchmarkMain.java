@@ -0,0 +1,118 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.benchmarks;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+
+import java.io.*;
+import java.util.Collection;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the benchmarks with the usual JMH command line and additionally writes the instrumentation throughput of
+ * every benchmark run as JSON, to {@code throughput.json} or the file given by the {@code benchmarks.summary}
+ * system property, so that results can be tracked across plugin versions:
+ * <pre>
+ * {"version": "1.0-SNAPSHOT", "results": [
+ *   {"benchmark": "...", "params": {"size": "2000", ...}, "score": 12.3, "unit": "ms/op", "classesPerSecond": 162601.6}
+ * ]}
+ * </pre>
+ * {@code classesPerSecond} is only present for the benchmarks that process classes.
+ */
+public class BenchmarkMain {
+    private static final String PLUGIN_PROPERTIES = "/META-INF/maven/com.intellij/notnull-instrumenter-maven-plugin/pom.properties";
+
+    public static void main(final String[] args) throws Exception {
+        final CommandLineOptions options = new CommandLineOptions(args);
+        final Collection<RunResult> results = new Runner(options).run();
+        final File summary = new File(System.getProperty("benchmarks.summary", "throughput.json"));
+        writeSummary(summary, results);
+        System.out.println("Throughput summary written to " + summary.getAbsolutePath());
+    }
+
+    private static void writeSummary(@NotNull final File file, @NotNull final Collection<RunResult> results) throws IOException {
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            writer.write("{\"version\": " + quote(getPluginVersion()) + ", \"results\": [");
+            String separator = "\n";
+            for (RunResult result : results) {
+                writer.write(separator);
+                separator = ",\n";
+                writeResult(writer, result);
+            }
+            writer.write("\n]}\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void writeResult(@NotNull final Writer writer, @NotNull final RunResult result) throws IOException {
+        final String benchmark = result.getParams().getBenchmark();
+        final double score = result.getPrimaryResult().getScore();
+        final String unit = result.getPrimaryResult().getScoreUnit();
+        writer.write("  {\"benchmark\": " + quote(benchmark) + ", \"params\": {");
+        String separator = "";
+        for (String key : result.getParams().getParamsKeys()) {
+            writer.write(separator + quote(key) + ": " + quote(result.getParams().getParam(key)));
+            separator = ", ";
+        }
+        writer.write("}, \"score\": " + score + ", \"unit\": " + quote(unit));
+        final Double classesPerSecond = getClassesPerSecond(result, score);
+        if (classesPerSecond != null) {
+            writer.write(", \"classesPerSecond\": " + classesPerSecond);
+        }
+        writer.write("}");
+    }
+
+    @Nullable
+    private static Double getClassesPerSecond(@NotNull final RunResult result, final double score) {
+        final String benchmark = result.getParams().getBenchmark();
+        if (benchmark.startsWith(ClassTransformBenchmark.class.getName())) {
+            return score; // classes per second already
+        }
+        if (benchmark.startsWith(DirectoryInstrumentationBenchmark.class.getName())) {
+            final TimeUnit unit = result.getParams().getTimeUnit();
+            final double seconds = score * unit.toNanos(1) / TimeUnit.SECONDS.toNanos(1);
+            return Integer.parseInt(result.getParams().getParam("size")) / seconds;
+        }
+        return null;
+    }
+
+    @NotNull
+    private static String getPluginVersion() throws IOException {
+        final InputStream stream = BenchmarkMain.class.getResourceAsStream(PLUGIN_PROPERTIES);
+        if (stream == null) {
+            return "unknown";
+        }
+        try {
+            final Properties properties = new Properties();
+            properties.load(stream);
+            return properties.getProperty("version", "unknown");
+        } finally {
+            stream.close();
+        }
+    }
+
+    @NotNull
+    private static String quote(@NotNull final String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.benchmarks;
+
+import com.intellij.compiler.instrumentation.InstrumentationClassFinder;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the {@link InstrumentationClassFinder#getCommonSuperClass} queries made while computing frames, for random
+ * pairs of corpus classes: with a fresh finder, which has to read both hierarchies from the class files, and with
+ * a finder that has seen the pairs before.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ClassFinderBenchmark {
+    private static final int PAIRS = 1024;
+
+    private URL[] myClasspath;
+    private String[] myFirst;
+    private String[] mySecond;
+    private InstrumentationClassFinder myWarmFinder;
+    private int myIndex;
+
+    @Setup(Level.Trial)
+    public void setUp(final CorpusState corpus) throws Exception {
+        myClasspath = corpus.getClasspath();
+        final Random random = new Random(42);
+        myFirst = new String[PAIRS];
+        mySecond = new String[PAIRS];
+        for (int i = 0; i < PAIRS; i++) {
+            myFirst[i] = corpus.classNames[random.nextInt(corpus.classNames.length)];
+            mySecond[i] = corpus.classNames[random.nextInt(corpus.classNames.length)];
+        }
+        myWarmFinder = new InstrumentationClassFinder(myClasspath);
+        for (int i = 0; i < PAIRS; i++) {
+            myWarmFinder.getCommonSuperClass(myFirst[i], mySecond[i]);
+        }
+    }
+
+    @Benchmark
+    public String commonSuperClassCold() throws IOException, ClassNotFoundException {
+        final int i = next();
+        return new InstrumentationClassFinder(myClasspath).getCommonSuperClass(myFirst[i], mySecond[i]);
+    }
+
+    @Benchmark
+    public String commonSuperClassWarm() throws IOException, ClassNotFoundException {
+        final int i = next();
+        return myWarmFinder.getCommonSuperClass(myFirst[i], mySecond[i]);
+    }
+
+    @Benchmark
+    public InstrumentationClassFinder.PseudoClass loadClassCold() throws IOException, ClassNotFoundException {
+        return new InstrumentationClassFinder(myClasspath).loadClass(myFirst[next()]);
+    }
+
+    private int next() {
+        myIndex = (myIndex + 1) % PAIRS;
+        return myIndex;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.benchmarks;
+
+import com.intellij.compiler.instrumentation.InstrumentationClassFinder;
+import com.intellij.compiler.instrumentation.InstrumenterClassWriter;
+import com.intellij.compiler.notNullVerification.NotNullVerifyingInstrumenter;
+import org.openjdk.jmh.annotations.*;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transformation of single classes by {@link NotNullVerifyingInstrumenter}, the way the mojos transform each class
+ * file, cycling through the corpus. The score is in classes per second. The class finder is shared by all
+ * invocations, so after warm-up hierarchy lookups are served from its caches.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ClassTransformBenchmark {
+    @Param({"false", "true"})
+    public boolean preserveFrames;
+
+    @Param({"false", "true"})
+    public boolean outlineChecks;
+
+    private byte[][] myClasses;
+    private InstrumentationClassFinder myFinder;
+    private int myIndex;
+
+    @Setup(Level.Trial)
+    public void setUp(final CorpusState corpus) throws IOException {
+        myClasses = corpus.classBytes;
+        myFinder = new InstrumentationClassFinder(corpus.getClasspath());
+    }
+
+    @Benchmark
+    public byte[] transformClass() {
+        final byte[] content = myClasses[myIndex];
+        myIndex = (myIndex + 1) % myClasses.length;
+        return transform(content);
+    }
+
+    private byte[] transform(final byte[] content) {
+        if (!NotNullVerifyingInstrumenter.mayNeedInstrumentation(content)) {
+            return null;
+        }
+        final ClassReader reader = new ClassReader(content);
+        final Set<String> annotatedMethods = NotNullVerifyingInstrumenter.collectAnnotatedMethods(reader);
+        if (annotatedMethods.isEmpty()) {
+            return null;
+        }
+        final ClassWriter writer = new InstrumenterClassWriter(reader, preserveFrames ? ClassWriter.COMPUTE_MAXS : ClassWriter.COMPUTE_FRAMES, myFinder);
+        final NotNullVerifyingInstrumenter instrumenter = new NotNullVerifyingInstrumenter(writer, annotatedMethods);
+        instrumenter.setPreserveFrames(preserveFrames);
+        instrumenter.setReportMethodName(outlineChecks ? NotNullVerifyingInstrumenter.getFreeReportMethodName(content) : null);
+        instrumenter.setOutlineChecks(outlineChecks);
+        reader.accept(instrumenter, 0);
+        return instrumenter.isModification() ? writer.toByteArray() : null;
+    }
+}
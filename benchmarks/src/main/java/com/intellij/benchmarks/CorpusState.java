@@ -0,0 +1,84 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.benchmarks;
+
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Synthetic corpus shared by the benchmarks of one parameter combination, kept in memory and written to a
+ * temporary directory which serves as the class finder classpath.
+ */
+@State(Scope.Benchmark)
+public class CorpusState {
+    @Param({"2000"})
+    public int size;
+
+    @Param({"0.3"})
+    public double annotationDensity;
+
+    @Param({"5"})
+    public int hierarchyDepth;
+
+    public Map<String, byte[]> classes;
+    public byte[][] classBytes;
+    public String[] classNames;
+    public File directory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        classes = new SyntheticCorpus(size, annotationDensity, hierarchyDepth).generate();
+        classBytes = classes.values().toArray(new byte[classes.size()][]);
+        classNames = classes.keySet().toArray(new String[classes.size()]);
+        directory = createTempDirectory("corpus");
+        SyntheticCorpus.write(directory, classes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        delete(directory);
+    }
+
+    @NotNull
+    public URL[] getClasspath() throws IOException {
+        return new URL[]{directory.toURI().toURL()};
+    }
+
+    @NotNull
+    static File createTempDirectory(@NotNull final String prefix) throws IOException {
+        final File dir = File.createTempFile("notnull-" + prefix, "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+        return dir;
+    }
+
+    static void delete(@NotNull final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
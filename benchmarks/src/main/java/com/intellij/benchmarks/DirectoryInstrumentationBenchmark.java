@@ -0,0 +1,65 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.benchmarks;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Instrumentation of a whole javac output directory, as done by the mojos, starting from freshly compiled classes
+ * and a cold class finder every time. Classes per second are the corpus size divided by the score.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DirectoryInstrumentationBenchmark {
+    @Param({"1"})
+    public int threads;
+
+    private File myBuildDirectory;
+    private File myClassesDirectory;
+    private BenchmarkInstrumenter myInstrumenter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        myBuildDirectory = CorpusState.createTempDirectory("build");
+        myClassesDirectory = new File(myBuildDirectory, "classes");
+        myInstrumenter = new BenchmarkInstrumenter(myBuildDirectory, threads);
+    }
+
+    @Setup(Level.Iteration)
+    public void copyCorpus(final CorpusState corpus) throws IOException {
+        CorpusState.delete(myClassesDirectory);
+        SyntheticCorpus.write(myClassesDirectory, corpus.classes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        CorpusState.delete(myBuildDirectory);
+    }
+
+    @Benchmark
+    public void instrumentDirectory() throws MojoExecutionException {
+        myInstrumenter.execute();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.benchmarks;
+
+import org.jetbrains.annotations.NotNull;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates Java 7 classes that look like the output of javac for the instrumenter to work on.
+ * <ul>
+ * <li>{@code size} classes in packages of 100 classes each</li>
+ * <li>superclass chains of {@code hierarchyDepth} classes, so that computing frames walks hierarchies of that depth</li>
+ * <li>{@link #METHODS_PER_CLASS} methods per class, each of them annotated with @NotNull on the first parameter and
+ * the result with probability {@code annotationDensity}</li>
+ * </ul>
+ * Every method returns one of two instances of random corpus classes, so frames at the merge point need
+ * {@code getCommonSuperClass}. Generation is deterministic for the same parameters.
+ */
+public class SyntheticCorpus implements Opcodes {
+    public static final int METHODS_PER_CLASS = 8;
+
+    private static final String NOT_NULL_TYPE = "Lorg/jetbrains/annotations/NotNull;";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String METHOD_DESC = "(Ljava/lang/Object;Ljava/lang/String;I)Ljava/lang/Object;";
+
+    private final int mySize;
+    private final double myAnnotationDensity;
+    private final int myHierarchyDepth;
+
+    public SyntheticCorpus(final int size, final double annotationDensity, final int hierarchyDepth) {
+        mySize = size;
+        myAnnotationDensity = annotationDensity;
+        myHierarchyDepth = Math.max(1, hierarchyDepth);
+    }
+
+    @NotNull
+    public static String getClassName(final int index) {
+        return "bench/p" + index / 100 + "/C" + index;
+    }
+
+    /**
+     * @return class bytes by internal class name, in generation order
+     */
+    @NotNull
+    public Map<String, byte[]> generate() {
+        final Random random = new Random(42);
+        final Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+        for (int i = 0; i < mySize; i++) {
+            classes.put(getClassName(i), generateClass(i, random));
+        }
+        return classes;
+    }
+
+    /**
+     * Writes the classes to {@code dir} as a javac output directory.
+     */
+    public void write(@NotNull final File dir) throws IOException {
+        write(dir, generate());
+    }
+
+    public static void write(@NotNull final File dir, @NotNull final Map<String, byte[]> classes) throws IOException {
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            final File file = new File(dir, entry.getKey() + ".class");
+            if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+                throw new IOException("Cannot create directory " + file.getParent());
+            }
+            final OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(entry.getValue());
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    @NotNull
+    private byte[] generateClass(final int index, @NotNull final Random random) {
+        final String name = getClassName(index);
+        final String superName = index % myHierarchyDepth == 0 ? OBJECT : getClassName(index - 1);
+        final ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(V1_7, ACC_PUBLIC | ACC_SUPER, name, null, superName, null);
+
+        final MethodVisitor init = writer.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(ALOAD, 0);
+        init.visitMethodInsn(INVOKESPECIAL, superName, "<init>", "()V");
+        init.visitInsn(RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        for (int i = 0; i < METHODS_PER_CLASS; i++) {
+            generateMethod(writer, "m" + i, random.nextDouble() < myAnnotationDensity,
+                           getClassName(random.nextInt(mySize)), getClassName(random.nextInt(mySize)));
+        }
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    /**
+     * {@code public Object name(Object a, String b, int flag) { return flag != 0 ? new First() : new Second(); }}
+     */
+    private static void generateMethod(@NotNull final ClassWriter writer, @NotNull final String name, final boolean annotated,
+                                       @NotNull final String first, @NotNull final String second) {
+        final MethodVisitor mv = writer.visitMethod(ACC_PUBLIC, name, METHOD_DESC, null, null);
+        if (annotated) {
+            final AnnotationVisitor result = mv.visitAnnotation(NOT_NULL_TYPE, false);
+            result.visitEnd();
+            final AnnotationVisitor parameter = mv.visitParameterAnnotation(0, NOT_NULL_TYPE, false);
+            parameter.visitEnd();
+        }
+        mv.visitCode();
+        final Label otherwise = new Label();
+        final Label end = new Label();
+        mv.visitVarInsn(ILOAD, 3);
+        mv.visitJumpInsn(IFEQ, otherwise);
+        mv.visitTypeInsn(NEW, first);
+        mv.visitInsn(DUP);
+        mv.visitMethodInsn(INVOKESPECIAL, first, "<init>", "()V");
+        mv.visitJumpInsn(GOTO, end);
+        mv.visitLabel(otherwise);
+        mv.visitFrame(F_SAME, 0, null, 0, null);
+        mv.visitTypeInsn(NEW, second);
+        mv.visitInsn(DUP);
+        mv.visitMethodInsn(INVOKESPECIAL, second, "<init>", "()V");
+        mv.visitLabel(end);
+        mv.visitFrame(F_SAME1, 0, null, 1, new Object[]{OBJECT});
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+}
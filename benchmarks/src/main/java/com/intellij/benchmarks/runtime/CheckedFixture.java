@@ -0,0 +1,59 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.benchmarks.runtime;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Code shapes whose checks are measured: a small getter, a method with many @NotNull parameters and a method with
+ * many return sites.
+ */
+public class CheckedFixture implements Fixture {
+    private final String myValue = "value";
+    private final Object[] myValues = {"a", "b", "c", "d"};
+
+    @NotNull
+    public String get() {
+        return myValue;
+    }
+
+    @NotNull
+    public Object manyParameters(@NotNull Object a, @NotNull Object b, @NotNull Object c, @NotNull Object d, @NotNull Object e, @NotNull Object f) {
+        return a;
+    }
+
+    @NotNull
+    public Object manyReturns(int i) {
+        switch (i) {
+            case 0: return myValues[0];
+            case 1: return myValues[1];
+            case 2: return myValues[2];
+            case 3: return myValues[3];
+            case 4: return myValue;
+            case 5: return this;
+            case 6: return myValues;
+            case 7: return myValues[i & 3];
+            case 8: return myValues[0].toString();
+            case 9: return myValues[1].toString();
+            case 10: return myValues[2].toString();
+            case 11: return myValues[3].toString();
+            case 12: return myValue.toString();
+            case 13: return myValues.clone();
+            case 14: return myValues[(i + 1) & 3];
+            default: return myValues[(i + 2) & 3];
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.benchmarks.runtime;
+
+/**
+ * Methods of {@link CheckedFixture} called by the benchmarks. Loaded by the benchmark class loader, so that
+ * differently instrumented copies of the implementation can be called through it.
+ */
+public interface Fixture {
+    String get();
+
+    Object manyParameters(Object a, Object b, Object c, Object d, Object e, Object f);
+
+    Object manyReturns(int i);
+}
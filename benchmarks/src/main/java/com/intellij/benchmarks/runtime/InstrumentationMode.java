@@ -0,0 +1,51 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.benchmarks.runtime;
+
+import com.intellij.compiler.notNullVerification.NotNullVerifyingInstrumenter;
+import org.jetbrains.annotations.NotNull;
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * Forms of the generated checks, matching the options of the mojos.
+ */
+public enum InstrumentationMode {
+    /**
+     * Not instrumented at all, the baseline.
+     */
+    NONE,
+    INLINE,
+    PRESERVE_FRAMES,
+    OUTLINED,
+    INVOKE_DYNAMIC,
+    /**
+     * invokedynamic checks linked to no-ops by the {@link NotNullVerifyingInstrumenter#DISABLE_CHECKS_PROPERTY} property.
+     */
+    INVOKE_DYNAMIC_DISABLED;
+
+    public int getWriterFlags() {
+        return this == INLINE || this == OUTLINED ? ClassWriter.COMPUTE_FRAMES : ClassWriter.COMPUTE_MAXS;
+    }
+
+    public void configure(@NotNull final NotNullVerifyingInstrumenter instrumenter, @NotNull final byte[] content) {
+        final boolean outlined = this == OUTLINED;
+        final boolean invokeDynamic = this == INVOKE_DYNAMIC || this == INVOKE_DYNAMIC_DISABLED;
+        instrumenter.setPreserveFrames(this != INLINE && this != OUTLINED);
+        instrumenter.setReportMethodName(outlined || invokeDynamic ? NotNullVerifyingInstrumenter.getFreeReportMethodName(content) : null);
+        instrumenter.setOutlineChecks(outlined);
+        instrumenter.setInvokeDynamic(invokeDynamic);
+    }
+}
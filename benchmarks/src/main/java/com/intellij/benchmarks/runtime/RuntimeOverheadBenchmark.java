@@ -0,0 +1,157 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.benchmarks.runtime;
+
+import com.intellij.compiler.instrumentation.ClassFileHeader;
+import com.intellij.compiler.instrumentation.InstrumentationClassFinder;
+import com.intellij.compiler.instrumentation.InstrumenterClassWriter;
+import com.intellij.compiler.notNullVerification.NotNullVerifyingInstrumenter;
+import org.jetbrains.annotations.NotNull;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Call latency of {@link CheckedFixture} methods, with {@link CheckedFixture} instrumented at setup in each of the
+ * {@link InstrumentationMode}s. The setup prints the code size of every method before and after instrumentation
+ * together with the HotSpot inlining limits; add
+ * {@code -jvmArgsAppend "-XX:+UnlockDiagnosticVMOptions -XX:+PrintInlining"} to see the inlining decisions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RuntimeOverheadBenchmark {
+    private static final int MAX_INLINE_SIZE = 35;
+    private static final int FREQ_INLINE_SIZE = 325;
+
+    @Param
+    public InstrumentationMode mode;
+
+    private Fixture myFixture;
+    private Object myA = "a";
+    private Object myB = "b";
+    private Object myC = "c";
+    private Object myD = "d";
+    private Object myE = "e";
+    private Object myF = "f";
+    private int myIndex;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        if (mode == InstrumentationMode.INVOKE_DYNAMIC_DISABLED) {
+            System.setProperty(NotNullVerifyingInstrumenter.DISABLE_CHECKS_PROPERTY, "true");
+        }
+        final String name = CheckedFixture.class.getName();
+        final byte[] original = readClass(name);
+        final byte[] instrumented = mode == InstrumentationMode.NONE ? original : instrument(original);
+        printCodeSizes(original, instrumented);
+        final Class<?> fixtureClass = new FixtureLoader(name, instrumented, getClass().getClassLoader()).loadClass(name);
+        myFixture = (Fixture) fixtureClass.newInstance();
+    }
+
+    @Benchmark
+    public String getter() {
+        return myFixture.get();
+    }
+
+    @Benchmark
+    public Object manyParameters() {
+        return myFixture.manyParameters(myA, myB, myC, myD, myE, myF);
+    }
+
+    @Benchmark
+    public Object manyReturns() {
+        myIndex = (myIndex + 1) & 15;
+        return myFixture.manyReturns(myIndex);
+    }
+
+    @NotNull
+    private byte[] instrument(@NotNull final byte[] content) {
+        final URL location = CheckedFixture.class.getProtectionDomain().getCodeSource().getLocation();
+        final ClassReader reader = new ClassReader(content);
+        final ClassWriter writer = new InstrumenterClassWriter(reader, mode.getWriterFlags(), new InstrumentationClassFinder(new URL[]{location}));
+        final NotNullVerifyingInstrumenter instrumenter = new NotNullVerifyingInstrumenter(writer, NotNullVerifyingInstrumenter.collectAnnotatedMethods(reader));
+        mode.configure(instrumenter, content);
+        reader.accept(instrumenter, 0);
+        return writer.toByteArray();
+    }
+
+    private void printCodeSizes(@NotNull final byte[] original, @NotNull final byte[] instrumented) throws IOException {
+        final Map<String, Integer> before = ClassFileHeader.readCodeLengths(original);
+        final Map<String, Integer> after = ClassFileHeader.readCodeLengths(instrumented);
+        System.out.println();
+        System.out.println("Code sizes in mode " + mode + " (MaxInlineSize " + MAX_INLINE_SIZE + ", FreqInlineSize " + FREQ_INLINE_SIZE + "):");
+        for (Map.Entry<String, Integer> entry : after.entrySet()) {
+            final Integer size = before.get(entry.getKey());
+            System.out.println("  " + entry.getKey() + ": " + (size != null ? size : "-") + " -> " + entry.getValue() + " bytes");
+        }
+    }
+
+    @NotNull
+    private static byte[] readClass(@NotNull final String name) throws IOException {
+        final InputStream stream = RuntimeOverheadBenchmark.class.getClassLoader().getResourceAsStream(name.replace('.', '/') + ".class");
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = stream.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Defines the given bytes for the fixture class and delegates everything else to the benchmark class loader.
+     */
+    private static class FixtureLoader extends ClassLoader {
+        private final String myName;
+        private final byte[] myBytes;
+
+        private FixtureLoader(@NotNull final String name, @NotNull final byte[] bytes, @NotNull final ClassLoader parent) {
+            super(parent);
+            myName = name;
+            myBytes = bytes;
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+            if (!myName.equals(name)) {
+                return super.loadClass(name, resolve);
+            }
+            Class<?> c = findLoadedClass(name);
+            if (c == null) {
+                c = defineClass(name, myBytes, 0, myBytes.length);
+            }
+            if (resolve) {
+                resolveClass(c);
+            }
+            return c;
+        }
+    }
+}
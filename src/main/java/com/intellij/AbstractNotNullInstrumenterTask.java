@@ -16,33 +16,212 @@
 
 package com.intellij;
 
+import com.intellij.compiler.instrumentation.ClassFileHeader;
 import com.intellij.compiler.instrumentation.InstrumentationClassFinder;
 import com.intellij.compiler.instrumentation.InstrumenterClassWriter;
+import com.intellij.compiler.notNullVerification.CallSiteIndex;
+import com.intellij.compiler.notNullVerification.DelegatingMethods;
+import com.intellij.compiler.notNullVerification.InstrumentedAttribute;
+import com.intellij.compiler.notNullVerification.MethodPatterns;
 import com.intellij.compiler.notNullVerification.NotNullVerifyingInstrumenter;
+import org.apache.maven.execution.MavenExecutionRequest;
+import org.apache.maven.execution.MavenSession;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugins.annotations.Component;
+import org.apache.maven.plugins.annotations.Parameter;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Opcodes;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Vladislav.Rassokhin
  */
 public abstract class AbstractNotNullInstrumenterTask extends org.apache.maven.plugin.AbstractMojo {
+    /**
+     * Loader caches shared by all executions of the plugin within a build, keyed by the build request
+     * (sessions are cloned per module in parallel builds, requests are not) and the index cache and JDK directories.
+     * Every execution releases its loaders, which closes the jars no other execution uses, so that a cache holds
+     * nothing but the class headers read so far, and is dropped with the request after the build.
+     */
+    private static final Map<MavenExecutionRequest, Map<String, InstrumentationClassFinder.LoaderCache>> SHARED_LOADER_CACHES =
+            new WeakHashMap<MavenExecutionRequest, Map<String, InstrumentationClassFinder.LoaderCache>>();
+
+    private InstrumentationOptions myOptions;
+    private InstrumentationReporter myReporter;
+    private InstrumentationStatistics myStatistics;
+    private CallSiteIndex myCallSiteIndex;
+    private OriginalClasses myOriginals;
+
     @Component
     protected org.apache.maven.project.MavenProject project;
 
-    protected void instrument(@NotNull final String directory, @NotNull final List<String> classpathElements) throws MojoExecutionException {
+    @Component
+    protected MavenSession session;
+
+    /**
+     * Number of threads used to instrument classes. Values less than 1 mean one thread per available processor.
+     */
+    @Parameter(property = "notnull.instrumenter.threads", defaultValue = ParameterDefaults.THREADS)
+    protected int threads;
+
+    /**
+     * Whether to skip classes that have not changed since the previous run, as recorded in a state file under the
+     * build directory.
+     */
+    @Parameter(property = "notnull.instrumenter.incremental", defaultValue = ParameterDefaults.INCREMENTAL)
+    protected boolean incremental;
+
+    /**
+     * Whether methods without @NotNull annotations are copied from the original class byte for byte instead of being
+     * decoded and encoded again.
+     */
+    @Parameter(property = "notnull.instrumenter.copyUnchangedMethods", defaultValue = ParameterDefaults.COPY_UNCHANGED_METHODS)
+    protected boolean copyUnchangedMethods;
+
+    /**
+     * Whether to keep the stack map frames of the original classes and only add frames for the inserted failure
+     * branches, instead of recomputing all frames of instrumented methods, which needs the classes of the dependencies.
+     */
+    @Parameter(property = "notnull.instrumenter.preserveFrames", defaultValue = ParameterDefaults.PRESERVE_FRAMES)
+    protected boolean preserveFrames;
+
+    /**
+     * Whether failing checks call one generated method per class that builds the exception, instead of constructing
+     * it inline at every check, which keeps instrumented methods small.
+     */
+    @Parameter(property = "notnull.instrumenter.outlineChecks", defaultValue = ParameterDefaults.OUTLINE_CHECKS)
+    protected boolean outlineChecks;
+
+    /**
+     * Whether checks in Java 7+ classes are invokedynamic call sites that are linked to no-ops when the
+     * {@code notnull.checks.disabled} system property of the running application is true.
+     */
+    @Parameter(property = "notnull.instrumenter.invokeDynamic", defaultValue = ParameterDefaults.INVOKE_DYNAMIC)
+    protected boolean invokeDynamic;
+
+    /**
+     * Whether all returns of a @NotNull method jump to one shared block that checks the result, instead of each
+     * getting its own copy of the check.
+     */
+    @Parameter(property = "notnull.instrumenter.sharedReturnCheck", defaultValue = ParameterDefaults.SHARED_RETURN_CHECK)
+    protected boolean sharedReturnCheck;
+
+    /**
+     * File listing hot methods that get no checks or outlined checks (see {@link #skipHotMethods}), one
+     * {@code owner.name(descriptor)}, {@code owner.name} or pattern with {@code *} per line; lines starting with
+     * {@code #} are comments.
+     */
+    @Parameter(property = "notnull.instrumenter.hotMethodsProfile")
+    protected File hotMethodsProfile;
+
+    /**
+     * Whether methods listed in {@link #hotMethodsProfile} get no checks at all; otherwise they get outlined checks, or
+     * invokedynamic checks with {@link #invokeDynamic}.
+     */
+    @Parameter(property = "notnull.instrumenter.skipHotMethods", defaultValue = ParameterDefaults.SKIP_HOT_METHODS)
+    protected boolean skipHotMethods;
+
+    /**
+     * Whether to leave out result checks that can never fail, e.g. where a method returns {@code this}, a new object or
+     * a constant.
+     */
+    @Parameter(property = "notnull.instrumenter.skipRedundantChecks", defaultValue = ParameterDefaults.SKIP_REDUNDANT_CHECKS)
+    protected boolean skipRedundantChecks;
+
+    /**
+     * Whether methods that only pass their parameters on to a method of the same class that cannot be overridden, such
+     * as bridge methods, leave their checks to that method when it makes the same ones.
+     */
+    @Parameter(property = "notnull.instrumenter.skipDelegatingChecks", defaultValue = ParameterDefaults.SKIP_DELEGATING_CHECKS)
+    protected boolean skipDelegatingChecks;
+
+    /**
+     * Which methods lose the parameter checks that all their callers in the instrumented directory make redundant:
+     * {@code none}, {@code private}, or {@code package} for private and package-private methods, which assumes that no
+     * code outside the directory, such as tests, calls them. The left out checks are listed in
+     * {@code notnull-instrumenter/<goal>-elided-checks.txt} under the build directory, and the build fails when recompiled
+     * callers may pass null to them. Does not apply to jars.
+     */
+    @Parameter(property = "notnull.instrumenter.callSiteAnalysis", defaultValue = ParameterDefaults.CALL_SITE_ANALYSIS)
+    protected String callSiteAnalysis;
+
+    /**
+     * What to do about methods whose code the checks grow past one of the {@link #codeSizeThresholds}: {@code none},
+     * {@code report} them in {@code notnull-instrumenter/<goal>-code-size.txt} under the build directory, {@code fail}
+     * the build, or {@code compact} their checks.
+     */
+    @Parameter(property = "notnull.instrumenter.codeSizeAnalysis", defaultValue = ParameterDefaults.CODE_SIZE_ANALYSIS)
+    protected String codeSizeAnalysis;
+
+    /**
+     * Comma separated code sizes in bytes that methods should not grow past, by default the HotSpot MaxInlineSize,
+     * FreqInlineSize and HugeMethodLimit.
+     */
+    @Parameter(property = "notnull.instrumenter.codeSizeThresholds", defaultValue = ParameterDefaults.CODE_SIZE_THRESHOLDS)
+    protected String codeSizeThresholds;
+
+    /**
+     * Directory for persistent class hierarchy indices of the dependency jars, e.g.
+     * {@code ${settings.localRepository}/.cache/notnull-instrumenter} to share them between projects. Not set by default.
+     */
+    @Parameter(property = "notnull.instrumenter.hierarchyCache")
+    protected File hierarchyCacheDirectory;
+
+    /**
+     * JDK or JRE whose platform classes the instrumented code is compiled against.
+     */
+    @Parameter(property = "notnull.instrumenter.jdkHome", defaultValue = ParameterDefaults.JDK_HOME)
+    protected File jdkHome;
+
+    /**
+     * Whether dependency class headers read by this execution are shared with the other modules of the same build.
+     */
+    @Parameter(property = "notnull.instrumenter.shareClassFinderCache", defaultValue = ParameterDefaults.SHARE_CLASS_FINDER_CACHE)
+    protected boolean shareClassFinderCache;
+
+    /**
+     * @param stateName name of the incremental state file, unique per goal
+     */
+    protected void instrument(@NotNull final String directory, @NotNull final List<String> classpathElements,
+                              @NotNull final String stateName) throws MojoExecutionException {
+        final InstrumentationClassFinder finder = createClassFinder(classpathElements);
+        final File dir = new File(directory);
+        prepare(stateName, dir);
+        myStatistics = new InstrumentationStatistics(dir);
+        myCallSiteIndex = myOptions.isCallSiteAnalysisEnabled() ? indexCallSites(dir) : null;
+        final InstrumentationState state = incremental ? loadState(dir, stateName) : null;
+        final int instrumented;
+        try {
+            instrumented = instrumentDirectoryRecursive(dir, finder, state);
+        } finally {
+            releaseClassFinder(finder);
+        }
+        myStatistics.finish();
+        getLog().info("Added @NotNull assertions to " + instrumented + " files");
+        myReporter.reportStatistics(myStatistics, finder);
+        myReporter.reportSkippedChecks();
+        if (myCallSiteIndex != null) {
+            myReporter.reportElidedParameterChecks(myCallSiteIndex);
+        }
+        myReporter.reportCodeSize();
+    }
+
+    @NotNull
+    protected InstrumentationClassFinder createClassFinder(@NotNull final List<String> classpathElements) throws MojoExecutionException {
         final ArrayList<URL> urls = new ArrayList<URL>();
         try {
             for (String cp : classpathElements) {
@@ -51,91 +230,324 @@ public abstract class AbstractNotNullInstrumenterTask extends org.apache.maven.p
         } catch (MalformedURLException e) {
             throw new MojoExecutionException("Cannot convert classpath element into URL", e);
         }
-        final InstrumentationClassFinder finder = new InstrumentationClassFinder(urls.toArray(new URL[urls.size()]));
-        int instrumented = instrumentDirectoryRecursive(new File(directory), finder);
-        getLog().info("Added @NotNull assertions to " + instrumented + " files");
+        return new InstrumentationClassFinder(urls.toArray(new URL[urls.size()]), getLoaderCache());
     }
 
-    private int instrumentDirectoryRecursive(@NotNull final File dir, @NotNull final InstrumentationClassFinder finder) throws MojoExecutionException {
-        int instrumented = 0;
-        final Collection<File> classes = collectClasses(dir);
-        for (@NotNull final File file : classes) {
-            getLog().debug("Adding @NotNull assertions to " + file.getPath());
-            try {
-                instrumented += instrumentClass(file, finder) ? 1 : 0;
-            } catch (IOException e) {
-                getLog().warn("Failed to instrument @NotNull assertion for " + file.getPath() + ": " + e.getMessage());
-            } catch (Exception e) {
-                throw new MojoExecutionException("@NotNull instrumentation failed for " + file.getPath() + ": " + e.toString(), e);
-            }
+    /**
+     * Closes the jars opened by the finder unless other executions still use them; a loader cache that is not shared
+     * with other executions is closed as well.
+     */
+    protected void releaseClassFinder(@NotNull final InstrumentationClassFinder finder) {
+        finder.releaseResources();
+        if (!isLoaderCacheShared()) {
+            finder.getLoaderCache().close();
         }
-        return instrumented;
     }
 
-    private boolean instrumentClass(@NotNull final File file, @NotNull final InstrumentationClassFinder finder) throws java.io.IOException {
-        final FileInputStream inputStream = new FileInputStream(file);
+    /**
+     * Checks the options and reads the files they reference, before any class is instrumented.
+     *
+     * @param name prefix of the state and report files, unique per goal
+     * @param directory instrumented directory, or null for a jar
+     */
+    protected void prepare(@NotNull final String name, @Nullable final File directory) throws MojoExecutionException {
+        myOptions = new InstrumentationOptions(this);
+        myReporter = new InstrumentationReporter(getLog(), myOptions, getReportsDirectory(), name, directory);
+        myOriginals = directory != null ? new OriginalClasses(directory, new File(getReportsDirectory(), name + ".originals")) : null;
+        myCallSiteIndex = null;
+    }
+
+    /**
+     * @return the options of the current run
+     */
+    @NotNull
+    protected InstrumentationOptions getOptions() {
+        return myOptions;
+    }
+
+    /**
+     * @return the reports of the current run
+     */
+    @NotNull
+    protected InstrumentationReporter getReporter() {
+        return myReporter;
+    }
+
+    /**
+     * @return whether parameter checks may be left out based on the call sites of the instrumented directory; the jar
+     *         goal has no directory to index
+     */
+    protected boolean isCallSiteAnalysisSupported() {
+        return true;
+    }
+
+    /**
+     * Reads the call sites of all classes in the directory, before any of them is instrumented.
+     *
+     * @return the index, or null if a class could not be read and the callers of methods are not known
+     */
+    @Nullable
+    private CallSiteIndex indexCallSites(@NotNull final File dir) {
+        final long start = System.nanoTime();
+        final MethodPatterns skippedMethods = skipHotMethods ? myOptions.getHotMethods() : null;
+        final CallSiteIndex index = new CallSiteIndex("package".equals(myOptions.getCallSiteAnalysis()), skippedMethods);
+        final int[] count = new int[1];
         try {
-            ClassReader reader = new ClassReader(inputStream);
-
-            int version = getClassFileVersion(reader);
-
-            if (version != Opcodes.V1_1 && version >= Opcodes.V1_5) {
-                ClassWriter writer = new InstrumenterClassWriter(getAsmClassWriterFlags(version), finder);
-
-                final NotNullVerifyingInstrumenter instrumenter = new NotNullVerifyingInstrumenter(writer);
-                reader.accept(instrumenter, 0);
-                if (instrumenter.isModification()) {
-                    final FileOutputStream fileOutputStream = new FileOutputStream(file);
-                    try {
-                        fileOutputStream.write(writer.toByteArray());
-                        return true;
-                    } finally {
-                        fileOutputStream.close();
+            Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(final Path path, final BasicFileAttributes attributes) throws IOException {
+                    if (attributes.isRegularFile() && path.getFileName().toString().endsWith(".class")) {
+                        index.index(ClassFileIO.read(path.toFile()));
+                        count[0]++;
                     }
+                    return FileVisitResult.CONTINUE;
                 }
+            });
+        } catch (IOException e) {
+            getLog().warn("Failed to read call sites, checking all parameters of internal methods: " + e.getMessage());
+            return null;
+        }
+        final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        getLog().debug("Indexed call sites of " + count[0] + " classes in " + millis + " ms");
+        return index;
+    }
+
+    @NotNull
+    private File getReportsDirectory() {
+        return new File(project.getBuild().getDirectory(), "notnull-instrumenter");
+    }
+
+    private boolean isLoaderCacheShared() {
+        return shareClassFinderCache && session != null;
+    }
+
+    @NotNull
+    private InstrumentationClassFinder.LoaderCache getLoaderCache() {
+        if (!isLoaderCacheShared()) {
+            return new InstrumentationClassFinder.LoaderCache(hierarchyCacheDirectory, jdkHome);
+        }
+        final String key = (hierarchyCacheDirectory != null ? hierarchyCacheDirectory.getAbsolutePath() : "") + File.pathSeparator
+                           + (jdkHome != null ? jdkHome.getAbsolutePath() : "");
+        final MavenExecutionRequest request = session.getRequest();
+        synchronized (SHARED_LOADER_CACHES) {
+            Map<String, InstrumentationClassFinder.LoaderCache> caches = SHARED_LOADER_CACHES.get(request);
+            if (caches == null) {
+                caches = new HashMap<String, InstrumentationClassFinder.LoaderCache>();
+                SHARED_LOADER_CACHES.put(request, caches);
+            }
+            InstrumentationClassFinder.LoaderCache cache = caches.get(key);
+            if (cache == null) {
+                cache = new InstrumentationClassFinder.LoaderCache(hierarchyCacheDirectory, jdkHome);
+                caches.put(key, cache);
             }
+            return cache;
+        }
+    }
+
+    @Nullable
+    private InstrumentationState loadState(@NotNull final File dir, @NotNull final String stateName) {
+        final File stateFile = new File(getReportsDirectory(), stateName + ".state");
+        try {
+            return InstrumentationState.load(stateFile, dir, myOptions.getStateSignature());
+        } catch (IOException e) {
+            getLog().warn("Failed to read incremental @NotNull instrumentation state from " + stateFile.getPath() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private int instrumentDirectoryRecursive(@NotNull final File dir, @NotNull final InstrumentationClassFinder finder,
+                                             @Nullable final InstrumentationState state) throws MojoExecutionException {
+        final InstrumentationPipeline pipeline = new InstrumentationPipeline(new InstrumentationPipeline.Transformer() {
+            @Nullable
+            public byte[] transform(@NotNull final File file, @NotNull final byte[] content) throws IOException {
+                return instrumentClass(file, content, finder);
+            }
+        }, state, myStatistics, getLog(), getThreadCount());
+        try {
+            return pipeline.run(dir);
         } finally {
-            inputStream.close();
+            if (state != null) {
+                // saved even after a failure, so that classes instrumented so far are not instrumented twice
+                final Collection<File> classes = pipeline.getClasses();
+                if (classes != null) {
+                    state.retain(classes);
+                }
+                try {
+                    state.save();
+                } catch (IOException e) {
+                    getLog().warn("Failed to save incremental @NotNull instrumentation state: " + e.getMessage());
+                }
+            }
         }
-        return false;
     }
 
-    @NotNull
-    private static Collection<File> collectClasses(@NotNull final File directory) {
-        final HashSet<File> classes = new HashSet<File>();
-        final Queue<File> queue = new LinkedList<File>();
-        queue.add(directory);
-        while (!queue.isEmpty()) {
-            File dir = queue.poll();
-            File[] files = dir.listFiles();
-            if (files == null) {
-                continue;
+    protected int getThreadCount() {
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return instrumented class bytes, or null if the class needs no @NotNull assertions
+     */
+    @Nullable
+    protected byte[] instrumentClass(@NotNull final byte[] content, @NotNull final InstrumentationClassFinder finder) throws IOException {
+        return instrumentClass(null, content, finder);
+    }
+
+    /**
+     * Instruments a class, or a class instrumented with other options again from its kept original.
+     *
+     * @param file class file of the output directory the content was read from, or null for a class of a jar
+     */
+    @Nullable
+    private byte[] instrumentClass(@Nullable final File file, @NotNull final byte[] content,
+                                   @NotNull final InstrumentationClassFinder finder) throws IOException {
+        if (!mayNeedInstrumentation(content)) {
+            return null;
+        }
+        final InstrumentedAttribute marker = InstrumentedAttribute.read(content);
+        if (marker == null) {
+            final byte[] instrumented = instrumentOriginal(content, finder);
+            if (instrumented != null && file != null && myOriginals != null) {
+                try {
+                    myOriginals.save(file);
+                } catch (IOException e) {
+                    getLog().debug("Failed to keep " + file.getPath() + " for instrumenting it again with other options: "
+                                   + e.getMessage());
+                }
+            }
+            return instrumented;
+        }
+        final boolean sameOptions = marker.getOptions().equals(myOptions.getMarkerOptions());
+        final byte[] original = sameOptions || file == null || myOriginals == null
+                                ? null : myOriginals.load(file, marker.getOriginalChecksum());
+        if (original == null) {
+            myReporter.addInstrumentedBefore(content, sameOptions);
+            return null;
+        }
+        myReporter.addInstrumentedAgain();
+        final byte[] instrumented = mayNeedInstrumentation(original) ? instrumentOriginal(original, finder) : null;
+        return instrumented != null ? instrumented : original;
+    }
+
+    private static boolean mayNeedInstrumentation(@NotNull final byte[] content) {
+        final int version = ClassFileHeader.getVersion(content);
+        return version != Opcodes.V1_1 && version >= Opcodes.V1_5 && NotNullVerifyingInstrumenter.mayNeedInstrumentation(content);
+    }
+
+    /**
+     * @param content class bytes without a marker
+     */
+    @Nullable
+    private byte[] instrumentOriginal(@NotNull final byte[] content, @NotNull final InstrumentationClassFinder finder) throws IOException {
+        final int version = ClassFileHeader.getVersion(content);
+        myReporter.addProcessed(content);
+        boolean keepFrames = preserveFrames;
+        InstrumentedClass instrumented = instrumentClass(content, version, finder, keepFrames, null);
+        if (instrumented == null) {
+            return null;
+        }
+        if (instrumented.myInstrumenter.isFramesBroken()) {
+            keepFrames = false;
+            instrumented = instrumentClass(content, version, finder, keepFrames, null);
+        }
+        final CodeSizeReport codeSizeReport = myReporter.getCodeSizeReport();
+        if (codeSizeReport != null && instrumented.myBytes != null) {
+            final Map<String, Integer> before = ClassFileHeader.readCodeLengths(content);
+            Map<String, Integer> after = ClassFileHeader.readCodeLengths(instrumented.myBytes);
+            Set<String> compacted = Collections.emptySet();
+            if ("compact".equals(myOptions.getCodeSizeAnalysis())) {
+                final Set<String> crossing = codeSizeReport.getCrossingMethods(before, after);
+                if (!crossing.isEmpty()) {
+                    instrumented = instrumentClass(content, version, finder, keepFrames, crossing);
+                    after = ClassFileHeader.readCodeLengths(instrumented.myBytes);
+                    compacted = crossing;
+                }
             }
-            for (File file : files) {
-                if (file.isDirectory()) {
-                    queue.add(file);
-                } else if (file.isFile() && file.getName().endsWith(".class")) {
-                    classes.add(file);
+            codeSizeReport.add(instrumented.myClassName, before, after, compacted);
+            if ("fail".equals(myOptions.getCodeSizeAnalysis())) {
+                final Set<String> crossing = codeSizeReport.getCrossingMethods(before, after);
+                if (!crossing.isEmpty()) {
+                    // neither written nor recorded as instrumented, so that the next build finds the methods again
+                    throw new CodeSizeExceededException(instrumented.myClassName, crossing);
                 }
             }
         }
-        return classes;
+        myReporter.addInstrumented(instrumented.myInstrumenter);
+        return instrumented.myBytes;
+    }
+
+    /**
+     * @param keepFrames whether to keep the stack map frames rather than compute them
+     * @param compactMethods methods that get the compact form of the checks, or null
+     * @return the instrumented class, or null if no method has @NotNull annotations
+     */
+    @Nullable
+    private InstrumentedClass instrumentClass(@NotNull final byte[] content, final int version,
+                                              @NotNull final InstrumentationClassFinder finder, final boolean keepFrames,
+                                              @Nullable final Set<String> compactMethods) {
+        ClassReader reader = new ClassReader(content);
+        final Map<String, BitSet> storedLocals = skipRedundantChecks ? new HashMap<String, BitSet>() : null;
+        final DelegatingMethods delegatingMethods = skipDelegatingChecks ? new DelegatingMethods() : null;
+        Set<String> annotatedMethods = null;
+        if (copyUnchangedMethods || storedLocals != null || delegatingMethods != null) {
+            annotatedMethods = NotNullVerifyingInstrumenter.collectAnnotatedMethods(reader, storedLocals, delegatingMethods);
+            if (annotatedMethods.isEmpty()) {
+                return null;
+            }
+        }
+        final ClassWriter writer;
+        if (copyUnchangedMethods) {
+            writer = new InstrumenterClassWriter(reader, getAsmClassWriterFlags(version, keepFrames), finder);
+        } else {
+            writer = new InstrumenterClassWriter(getAsmClassWriterFlags(version, keepFrames), finder);
+            annotatedMethods = null; // all methods are visited when nothing is copied
+        }
+        final MethodPatterns hotMethods = myOptions.getHotMethods();
+        final NotNullVerifyingInstrumenter instrumenter = new NotNullVerifyingInstrumenter(writer, annotatedMethods);
+        instrumenter.setStoredLocals(storedLocals);
+        instrumenter.setCallSiteIndex(myCallSiteIndex);
+        instrumenter.setDelegatingMethods(delegatingMethods);
+        instrumenter.setPreserveFrames(keepFrames);
+        final boolean outlineHotMethods = hotMethods != null && !skipHotMethods;
+        final boolean outline = outlineChecks || invokeDynamic || outlineHotMethods || compactMethods != null;
+        instrumenter.setReportMethodName(outline ? NotNullVerifyingInstrumenter.getFreeReportMethodName(content) : null);
+        instrumenter.setOutlineChecks(outlineChecks);
+        instrumenter.setSharedReturnCheck(sharedReturnCheck);
+        instrumenter.setCompactMethods(compactMethods);
+        instrumenter.setInvokeDynamic(invokeDynamic);
+        instrumenter.setHotMethods(hotMethods, skipHotMethods);
+        instrumenter.setMarker(myOptions.getMarkerOptions(), OriginalClasses.getChecksum(content));
+        reader.accept(instrumenter, 0);
+        return new InstrumentedClass(reader.getClassName(), instrumenter, instrumenter.isModification() ? writer.toByteArray() : null);
     }
 
     /**
      * @return the flags for class writer
      */
-    private static int getAsmClassWriterFlags(int version) {
-        return version >= Opcodes.V1_6 && version != Opcodes.V1_1 ? ClassWriter.COMPUTE_FRAMES : ClassWriter.COMPUTE_MAXS;
+    private int getAsmClassWriterFlags(int version, boolean keepFrames) {
+        return !keepFrames && version >= Opcodes.V1_6 && version != Opcodes.V1_1 ? ClassWriter.COMPUTE_FRAMES : ClassWriter.COMPUTE_MAXS;
     }
 
-    private static int getClassFileVersion(@NotNull final ClassReader reader) {
-        final int[] classFileVersion = new int[1];
-        reader.accept(new ClassVisitor(Opcodes.ASM4) {
-            public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
-                classFileVersion[0] = version;
-            }
-        }, 0);
-        return classFileVersion[0];
+    /**
+     * Thrown for a class that is left as it is because the checks would grow methods past a code size threshold.
+     */
+    static class CodeSizeExceededException extends IOException {
+        CodeSizeExceededException(@NotNull final String className, @NotNull final Set<String> methods) {
+            super("left without @NotNull assertions, which would grow " + className + "." + new TreeSet<String>(methods)
+                  + " past a code size threshold");
+        }
+    }
+
+    private static class InstrumentedClass {
+        private final String myClassName;
+        private final NotNullVerifyingInstrumenter myInstrumenter;
+        private final byte[] myBytes;
+
+        private InstrumentedClass(@NotNull final String className, @NotNull final NotNullVerifyingInstrumenter instrumenter,
+                                  @Nullable final byte[] bytes) {
+            myClassName = className;
+            myInstrumenter = instrumenter;
+            myBytes = bytes;
+        }
     }
 }
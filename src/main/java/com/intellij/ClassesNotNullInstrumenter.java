@@ -36,7 +36,7 @@ public class ClassesNotNullInstrumenter extends AbstractNotNullInstrumenterTask
 
     public void execute() throws MojoExecutionException {
         try {
-            instrument(project.getBuild().getOutputDirectory(), project.getCompileClasspathElements());
+            instrument(project.getBuild().getOutputDirectory(), project.getCompileClasspathElements(), "classes");
         } catch (DependencyResolutionRequiredException e) {
             throw new MojoExecutionException(e.getMessage(), e);
         }
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Code sizes of the methods changed by the instrumentation, before and after, compared to bytecode size thresholds
+ * of the JIT. With the HotSpot defaults, methods longer than MaxInlineSize (35 bytes) are only inlined when they are
+ * called often, methods longer than FreqInlineSize (325 bytes) are not inlined, and methods longer than
+ * HugeMethodLimit (8000 bytes) are not compiled at all. A method crosses a threshold when its original code was not
+ * longer than it and the instrumented code is.
+ */
+public class CodeSizeReport {
+    public static final String DEFAULT_THRESHOLDS = "35,325,8000";
+
+    private final int[] myThresholds;
+    private final Queue<MethodSize> myMethods = new ConcurrentLinkedQueue<MethodSize>();
+
+    /**
+     * @param thresholds code sizes in bytes, in ascending order
+     */
+    public CodeSizeReport(@NotNull final int[] thresholds) {
+        myThresholds = thresholds;
+    }
+
+    /**
+     * Reads a report written by {@link #write}.
+     *
+     * @return the methods listed in the file, which may not exist
+     */
+    @NotNull
+    public static CodeSizeReport load(@NotNull final File file, @NotNull final int[] thresholds) throws IOException {
+        final CodeSizeReport report = new CodeSizeReport(thresholds);
+        if (!file.isFile()) {
+            return report;
+        }
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] parts = line.split("\t");
+                final int classEnd = parts.length == 6 ? parts[5].indexOf('.') : -1;
+                if (line.startsWith("#") || classEnd <= 0) {
+                    continue;
+                }
+                try {
+                    report.myMethods.add(new MethodSize(parts[5].substring(0, classEnd), parts[5], Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+                                                        "compact".equals(parts[4])));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return report;
+    }
+
+    /**
+     * @param thresholds comma separated code sizes in bytes
+     * @return the sizes in ascending order
+     * @throws NumberFormatException if a size is not a positive number
+     */
+    @NotNull
+    public static int[] parseThresholds(@NotNull final String thresholds) {
+        final String[] parts = thresholds.split(",");
+        final int[] sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            sizes[i] = Integer.parseInt(parts[i].trim());
+            if (sizes[i] <= 0) {
+                throw new NumberFormatException("Not a positive size: " + sizes[i]);
+            }
+        }
+        Arrays.sort(sizes);
+        return sizes;
+    }
+
+    /**
+     * @param before code lengths of the original class, by method name + descriptor
+     * @param after  code lengths of the instrumented class
+     * @return methods (name + descriptor) that crossed a threshold
+     */
+    @NotNull
+    public Set<String> getCrossingMethods(@NotNull final Map<String, Integer> before, @NotNull final Map<String, Integer> after) {
+        final Set<String> methods = new HashSet<String>();
+        for (Map.Entry<String, Integer> entry : after.entrySet()) {
+            final Integer size = before.get(entry.getKey());
+            if (size != null && getCrossedThreshold(size, entry.getValue()) > 0) {
+                methods.add(entry.getKey());
+            }
+        }
+        return methods;
+    }
+
+    /**
+     * Adds the methods of a class whose code size changed. Can be called from several threads.
+     *
+     * @param compacted methods that were instrumented in the compact form because they crossed a threshold otherwise
+     */
+    public void add(@NotNull final String className, @NotNull final Map<String, Integer> before, @NotNull final Map<String, Integer> after,
+                    @NotNull final Set<String> compacted) {
+        for (Map.Entry<String, Integer> entry : after.entrySet()) {
+            final Integer size = before.get(entry.getKey());
+            if (size != null && !size.equals(entry.getValue())) {
+                final String method = className + "." + entry.getKey();
+                myMethods.add(new MethodSize(className, method, size, entry.getValue(), compacted.contains(entry.getKey())));
+            }
+        }
+    }
+
+    /**
+     * Adds the methods of the given classes from another report, e.g. one written for classes that are left as they are now.
+     */
+    public void addClasses(@NotNull final CodeSizeReport report, @NotNull final Set<String> classNames) {
+        for (MethodSize method : report.myMethods) {
+            if (classNames.contains(method.myClassName)) {
+                myMethods.add(method);
+            }
+        }
+    }
+
+    /**
+     * @return names of the classes with methods in the report
+     */
+    @NotNull
+    public Set<String> getClasses() {
+        final Set<String> classNames = new HashSet<String>();
+        for (MethodSize method : myMethods) {
+            classNames.add(method.myClassName);
+        }
+        return classNames;
+    }
+
+    /**
+     * @return number of methods that crossed each threshold, in the order of the thresholds
+     */
+    @NotNull
+    public int[] getCrossingCounts() {
+        final int[] counts = new int[myThresholds.length];
+        for (MethodSize method : myMethods) {
+            final int threshold = getCrossedThreshold(method.myBefore, method.myAfter);
+            if (threshold > 0) {
+                counts[Arrays.binarySearch(myThresholds, threshold)]++;
+            }
+        }
+        return counts;
+    }
+
+    @NotNull
+    public int[] getThresholds() {
+        return myThresholds;
+    }
+
+    /**
+     * @return methods that crossed a threshold, as {@code owner.name desc}
+     */
+    @NotNull
+    public List<String> getCrossingMethods() {
+        final List<String> methods = new ArrayList<String>();
+        for (MethodSize method : getSorted()) {
+            if (getCrossedThreshold(method.myBefore, method.myAfter) > 0) {
+                methods.add(method.myMethod);
+            }
+        }
+        return methods;
+    }
+
+    /**
+     * Writes one tab separated line per changed method, largest growth first: size before, size after, growth, the
+     * highest threshold crossed or 0, the check form ({@code compact} or {@code regular}) and the method.
+     */
+    public void write(@NotNull final File file) throws IOException {
+        final File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            writer.write("#before\tafter\tgrowth\tcrossed\tform\tmethod\n");
+            for (MethodSize method : getSorted()) {
+                writer.write(method.myBefore + "\t" + method.myAfter + "\t" + (method.myAfter - method.myBefore) + "\t"
+                             + getCrossedThreshold(method.myBefore, method.myAfter) + "\t" + (method.myCompacted ? "compact" : "regular")
+                             + "\t" + method.myMethod + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @return the highest threshold between the sizes, or 0 if there is none
+     */
+    private int getCrossedThreshold(final int before, final int after) {
+        for (int i = myThresholds.length - 1; i >= 0; i--) {
+            if (before <= myThresholds[i] && after > myThresholds[i]) {
+                return myThresholds[i];
+            }
+        }
+        return 0;
+    }
+
+    @NotNull
+    private List<MethodSize> getSorted() {
+        final List<MethodSize> methods = new ArrayList<MethodSize>(myMethods);
+        Collections.sort(methods);
+        return methods;
+    }
+
+    private static class MethodSize implements Comparable<MethodSize> {
+        private final String myClassName;
+        private final String myMethod;
+        private final int myBefore;
+        private final int myAfter;
+        private final boolean myCompacted;
+
+        private MethodSize(@NotNull final String className, @NotNull final String method, final int before, final int after, final boolean compacted) {
+            myClassName = className;
+            myMethod = method;
+            myBefore = before;
+            myAfter = after;
+            myCompacted = compacted;
+        }
+
+        public int compareTo(@NotNull final MethodSize other) {
+            final int growth = (other.myAfter - other.myBefore) - (myAfter - myBefore);
+            return growth != 0 ? growth : myMethod.compareTo(other.myMethod);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij;
+
+import com.intellij.compiler.notNullVerification.MethodPatterns;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * The parameters of a task that need checking or reading files before any class is instrumented, as they apply to
+ * one run. Unset parameters, e.g. when the task is not run by Maven, mean none.
+ */
+public class InstrumentationOptions {
+    private final String myCallSiteAnalysis;
+    private final String myCodeSizeAnalysis;
+    private final int[] myCodeSizeThresholds;
+    private final MethodPatterns myHotMethods;
+    private final boolean mySkipHotMethods;
+    private final String myMarkerOptions;
+    private final String myStateSignature;
+
+    /**
+     * @throws MojoExecutionException if a parameter has an unknown value or the hot methods profile cannot be read
+     */
+    public InstrumentationOptions(@NotNull final AbstractNotNullInstrumenterTask task) throws MojoExecutionException {
+        final String callSiteAnalysis = valueOf(task.callSiteAnalysis);
+        if (!"none".equals(callSiteAnalysis) && !"private".equals(callSiteAnalysis) && !"package".equals(callSiteAnalysis)) {
+            throw new MojoExecutionException("Unknown callSiteAnalysis '" + callSiteAnalysis + "', expected none, private or package");
+        }
+        myCallSiteAnalysis = task.isCallSiteAnalysisSupported() ? callSiteAnalysis : "none";
+        myCodeSizeAnalysis = valueOf(task.codeSizeAnalysis);
+        if (!"none".equals(myCodeSizeAnalysis) && !"report".equals(myCodeSizeAnalysis) && !"fail".equals(myCodeSizeAnalysis)
+            && !"compact".equals(myCodeSizeAnalysis)) {
+            throw new MojoExecutionException("Unknown codeSizeAnalysis '" + myCodeSizeAnalysis
+                                             + "', expected none, report, fail or compact");
+        }
+        final String thresholds = task.codeSizeThresholds != null ? task.codeSizeThresholds : CodeSizeReport.DEFAULT_THRESHOLDS;
+        try {
+            myCodeSizeThresholds = isCodeSizeAnalysisEnabled() ? CodeSizeReport.parseThresholds(thresholds) : null;
+        } catch (NumberFormatException e) {
+            throw new MojoExecutionException("Invalid codeSizeThresholds '" + thresholds + "': " + e.getMessage(), e);
+        }
+        myHotMethods = loadHotMethods(task);
+        mySkipHotMethods = task.skipHotMethods;
+
+        final String checks = task.invokeDynamic ? "invokeDynamic" : task.outlineChecks ? "outlined" : "inline";
+        final String hotMethods = myHotMethods == null ? "none" : mySkipHotMethods ? "skip" : "outline";
+        myMarkerOptions = "checks=" + checks
+                          + ";preserveFrames=" + task.preserveFrames
+                          + ";sharedReturnCheck=" + task.sharedReturnCheck
+                          + ";hotMethods=" + hotMethods
+                          + ";skipRedundantChecks=" + task.skipRedundantChecks
+                          + ";skipDelegatingChecks=" + task.skipDelegatingChecks
+                          + ";compactAbove=" + ("compact".equals(myCodeSizeAnalysis) ? thresholds : "none")
+                          + ";callSiteAnalysis=" + myCallSiteAnalysis;
+        myStateSignature = myMarkerOptions + ";hotMethodsProfile=" + getProfileChecksum(task);
+    }
+
+    /**
+     * @return {@code none}, {@code private} or {@code package}; always {@code none} for tasks without a directory
+     *         whose call sites could be indexed
+     */
+    @NotNull
+    public String getCallSiteAnalysis() {
+        return myCallSiteAnalysis;
+    }
+
+    public boolean isCallSiteAnalysisEnabled() {
+        return !"none".equals(myCallSiteAnalysis);
+    }
+
+    /**
+     * @return {@code none}, {@code report}, {@code fail} or {@code compact}
+     */
+    @NotNull
+    public String getCodeSizeAnalysis() {
+        return myCodeSizeAnalysis;
+    }
+
+    public boolean isCodeSizeAnalysisEnabled() {
+        return !"none".equals(myCodeSizeAnalysis);
+    }
+
+    /**
+     * @return the code size thresholds in ascending order, or null if the code size is not analyzed
+     */
+    @Nullable
+    public int[] getCodeSizeThresholds() {
+        return myCodeSizeThresholds;
+    }
+
+    /**
+     * @return the methods of the hot methods profile, or null if there is none or it is empty
+     */
+    @Nullable
+    public MethodPatterns getHotMethods() {
+        return myHotMethods;
+    }
+
+    /**
+     * @return whether hot methods get no checks at all rather than outlined or invokedynamic ones
+     */
+    public boolean isSkipHotMethods() {
+        return mySkipHotMethods;
+    }
+
+    /**
+     * @return description of the options that affect the generated code, recorded in every instrumented class
+     */
+    @NotNull
+    public String getMarkerOptions() {
+        return myMarkerOptions;
+    }
+
+    /**
+     * @return the marker options together with a checksum of the hot methods profile; the incremental state is
+     *         discarded when it changes
+     */
+    @NotNull
+    public String getStateSignature() {
+        return myStateSignature;
+    }
+
+    @NotNull
+    private static String valueOf(@Nullable final String option) {
+        return option != null ? option : "none";
+    }
+
+    @Nullable
+    private static MethodPatterns loadHotMethods(@NotNull final AbstractNotNullInstrumenterTask task) throws MojoExecutionException {
+        if (task.hotMethodsProfile == null) {
+            return null;
+        }
+        try {
+            final MethodPatterns patterns = MethodPatterns.load(task.hotMethodsProfile);
+            return patterns.isEmpty() ? null : patterns;
+        } catch (IOException e) {
+            throw new MojoExecutionException("Cannot read hot methods profile " + task.hotMethodsProfile.getPath(), e);
+        }
+    }
+
+    @NotNull
+    private String getProfileChecksum(@NotNull final AbstractNotNullInstrumenterTask task) {
+        if (myHotMethods == null) {
+            return "none";
+        }
+        try {
+            return Long.toHexString(OriginalClasses.getChecksum(Files.readAllBytes(task.hotMethodsProfile.toPath())));
+        } catch (IOException e) {
+            return "unknown" + System.nanoTime(); // never matches a saved state
+        }
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Instruments the classes of an output directory in four stages connected by bounded queues, so that walking the
+ * directory, reading, transforming and writing class files overlap:
+ * <ul>
+ * <li>one thread walks the directory and emits class files as they are found</li>
+ * <li>{@link #READ_THREADS} threads read them, skipping classes that have not changed since the previous run</li>
+ * <li>{@code threadCount} threads transform them</li>
+ * <li>one thread writes the instrumented classes in batches</li>
+ * </ul>
+ * Every queue holds a few entries per transforming thread, so at most that many classes are kept in memory. With a
+ * single transforming thread the stages run one class after the other on the calling thread instead, as the gain of
+ * overlapping them would not pay for the threads.
+ * <p/>
+ * Failures to read or write a class are logged and the class is left as it is; any other failure stops the pipeline.
+ */
+public class InstrumentationPipeline {
+    private static final int READ_THREADS = 2;
+    private static final int FILE_QUEUE_CAPACITY = 1024;
+    private static final int CLASSES_PER_THREAD = 4;
+    private static final int WRITE_BATCH = 32;
+
+    private static final File END_OF_FILES = new File("");
+    private static final ClassFile END_OF_CLASSES = new ClassFile(END_OF_FILES, new byte[0]);
+
+    /**
+     * Transformation of a single class, called concurrently from several threads.
+     */
+    public interface Transformer {
+        /**
+         * @return transformed class bytes, or null if the class stays as it is
+         */
+        @Nullable
+        byte[] transform(@NotNull File file, @NotNull byte[] content) throws Exception;
+    }
+
+    private final Transformer myTransformer;
+    private final InstrumentationState myState;
+    private final InstrumentationStatistics myStatistics;
+    private final Log myLog;
+    private final int myThreadCount;
+
+    private final BlockingQueue<File> myFiles = new ArrayBlockingQueue<File>(FILE_QUEUE_CAPACITY);
+    private final BlockingQueue<ClassFile> myRead;
+    private final BlockingQueue<ClassFile> myTransformed;
+    private final AtomicInteger myActiveReaders = new AtomicInteger(READ_THREADS);
+    private final AtomicInteger myActiveTransformers;
+    private final AtomicInteger myInstrumented = new AtomicInteger();
+    private final List<File> myClasses = new ArrayList<File>(); // only touched by the walking thread until the walk completes
+    private volatile boolean myWalkCompleted;
+
+    public InstrumentationPipeline(@NotNull final Transformer transformer, @Nullable final InstrumentationState state,
+                                   @NotNull final InstrumentationStatistics statistics, @NotNull final Log log, final int threadCount) {
+        myTransformer = transformer;
+        myState = state;
+        myStatistics = statistics;
+        myLog = log;
+        myThreadCount = Math.max(1, threadCount);
+        myRead = new ArrayBlockingQueue<ClassFile>(myThreadCount * CLASSES_PER_THREAD);
+        myTransformed = new ArrayBlockingQueue<ClassFile>(myThreadCount * CLASSES_PER_THREAD);
+        myActiveTransformers = new AtomicInteger(myThreadCount);
+    }
+
+    /**
+     * @return number of instrumented classes
+     */
+    public int run(@NotNull final File dir) throws MojoExecutionException {
+        if (myThreadCount == 1) {
+            return runSequentially(dir);
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(READ_THREADS + myThreadCount + 2);
+        final CompletionService<Void> stages = new ExecutorCompletionService<Void>(executor);
+        int running = 0;
+        try {
+            stages.submit(new Callable<Void>() {
+                public Void call() throws IOException, InterruptedException {
+                    walk(dir, true);
+                    for (int i = 0; i < READ_THREADS; i++) {
+                        myFiles.put(END_OF_FILES);
+                    }
+                    return null;
+                }
+            });
+            running++;
+            for (int i = 0; i < READ_THREADS; i++) {
+                stages.submit(new Callable<Void>() {
+                    public Void call() throws InterruptedException {
+                        read();
+                        return null;
+                    }
+                });
+                running++;
+            }
+            for (int i = 0; i < myThreadCount; i++) {
+                stages.submit(new Callable<Void>() {
+                    public Void call() throws InterruptedException, MojoExecutionException {
+                        transform();
+                        return null;
+                    }
+                });
+                running++;
+            }
+            stages.submit(new Callable<Void>() {
+                public Void call() throws InterruptedException {
+                    write();
+                    return null;
+                }
+            });
+            running++;
+            while (running > 0) {
+                try {
+                    stages.take().get();
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof MojoExecutionException) {
+                        throw (MojoExecutionException) cause;
+                    }
+                    throw new MojoExecutionException("@NotNull instrumentation failed: " + cause, cause);
+                }
+                running--;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("@NotNull instrumentation was interrupted", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        return myInstrumented.get();
+    }
+
+    private int runSequentially(@NotNull final File dir) throws MojoExecutionException {
+        try {
+            walk(dir, false);
+            for (File file : myClasses) {
+                final ClassFile classFile = read(file);
+                final ClassFile instrumented = classFile != null ? transform(classFile) : null;
+                if (instrumented != null) {
+                    write(instrumented);
+                }
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("@NotNull instrumentation failed: " + e, e);
+        } catch (RuntimeException e) {
+            throw new MojoExecutionException("@NotNull instrumentation failed: " + e, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("@NotNull instrumentation was interrupted", e);
+        }
+        return myInstrumented.get();
+    }
+
+    /**
+     * @return all class files of the directory, or null if the pipeline stopped before the walk completed
+     */
+    @Nullable
+    public Collection<File> getClasses() {
+        return myWalkCompleted ? myClasses : null;
+    }
+
+    /**
+     * @param emit whether to pass the class files on to the readers as they are found
+     */
+    private void walk(@NotNull final File dir, final boolean emit) throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        final long[] blocked = new long[1];
+        try {
+            Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(final Path path, final BasicFileAttributes attributes) throws IOException {
+                    if (attributes.isRegularFile() && path.getFileName().toString().endsWith(".class")) {
+                        final File file = path.toFile();
+                        myClasses.add(file);
+                        if (!emit) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                        final long putStart = System.nanoTime();
+                        try {
+                            myFiles.put(file);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException();
+                        }
+                        blocked[0] += System.nanoTime() - putStart;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(final Path path, final IOException e) {
+                    return FileVisitResult.CONTINUE; // unreadable entries are skipped
+                }
+            });
+        } catch (InterruptedIOException e) {
+            throw new InterruptedException();
+        }
+        myStatistics.addScan(System.nanoTime() - start - blocked[0], myClasses.size());
+        myWalkCompleted = true;
+    }
+
+    private void read() throws InterruptedException {
+        File file;
+        while ((file = myFiles.take()) != END_OF_FILES) {
+            final ClassFile classFile = read(file);
+            if (classFile != null) {
+                myRead.put(classFile);
+            }
+        }
+        if (myActiveReaders.decrementAndGet() == 0) {
+            for (int i = 0; i < myThreadCount; i++) {
+                myRead.put(END_OF_CLASSES);
+            }
+        }
+    }
+
+    private void transform() throws InterruptedException, MojoExecutionException {
+        ClassFile classFile;
+        while ((classFile = myRead.take()) != END_OF_CLASSES) {
+            final ClassFile instrumented = transform(classFile);
+            if (instrumented != null) {
+                myTransformed.put(instrumented);
+            }
+        }
+        if (myActiveTransformers.decrementAndGet() == 0) {
+            myTransformed.put(END_OF_CLASSES);
+        }
+    }
+
+    private void write() throws InterruptedException {
+        final List<ClassFile> batch = new ArrayList<ClassFile>(WRITE_BATCH);
+        while (true) {
+            batch.add(myTransformed.take());
+            myTransformed.drainTo(batch, WRITE_BATCH - 1);
+            for (ClassFile classFile : batch) {
+                if (classFile == END_OF_CLASSES) {
+                    return;
+                }
+                write(classFile);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * @return the content of the class file, or null if it has not changed since the previous run or can not be read
+     */
+    @Nullable
+    private ClassFile read(@NotNull final File file) {
+        try {
+            if (myState != null && myState.isUnchanged(file)) {
+                myStatistics.addUnchanged();
+                myLog.debug("Skipping unchanged " + file.getPath());
+                return null;
+            }
+            myLog.debug("Adding @NotNull assertions to " + file.getPath());
+            final long start = System.nanoTime();
+            final byte[] content = ClassFileIO.read(file);
+            myStatistics.addRead(System.nanoTime() - start);
+            if (myState != null && myState.isUnchanged(file, content)) {
+                myStatistics.addUnchanged();
+                return null;
+            }
+            return new ClassFile(file, content);
+        } catch (IOException e) {
+            warn(file, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the instrumented class, or null if it stays as it is
+     */
+    @Nullable
+    private ClassFile transform(@NotNull final ClassFile classFile) throws InterruptedException, MojoExecutionException {
+        final File file = classFile.myFile;
+        try {
+            final long start = System.nanoTime();
+            final byte[] instrumented = myTransformer.transform(file, classFile.myContent);
+            myStatistics.addTransform(file, System.nanoTime() - start);
+            if (instrumented != null) {
+                return new ClassFile(file, instrumented);
+            }
+            if (myState != null) {
+                myState.update(file, classFile.myContent);
+            }
+        } catch (IOException e) {
+            warn(file, e);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new MojoExecutionException("@NotNull instrumentation failed for " + file.getPath() + ": " + e.toString(), e);
+        }
+        return null;
+    }
+
+    private void write(@NotNull final ClassFile classFile) throws InterruptedException {
+        try {
+            final long start = System.nanoTime();
+            ClassFileIO.write(classFile.myFile, classFile.myContent);
+            myStatistics.addWrite(System.nanoTime() - start);
+            myStatistics.addInstrumented();
+            myInstrumented.incrementAndGet();
+            if (myState != null) {
+                myState.update(classFile.myFile, classFile.myContent);
+            }
+        } catch (IOException e) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            warn(classFile.myFile, e);
+        }
+    }
+
+    private void warn(@NotNull final File file, @NotNull final IOException e) {
+        myLog.warn("Failed to instrument @NotNull assertion for " + file.getPath() + ": " + e.getMessage());
+    }
+
+    private static class ClassFile {
+        private final File myFile;
+        private final byte[] myContent;
+
+        private ClassFile(@NotNull final File file, @NotNull final byte[] content) {
+            myFile = file;
+            myContent = content;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij;
+
+import com.intellij.compiler.instrumentation.InstrumentationClassFinder;
+import com.intellij.compiler.notNullVerification.CallSiteIndex;
+import com.intellij.compiler.notNullVerification.ElidedCheck;
+import com.intellij.compiler.notNullVerification.NotNullVerifyingInstrumenter;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.objectweb.asm.ClassReader;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects what the checks of one instrumentation run left out or changed, from any number of threads, and logs it
+ * or writes it to the reports under {@code notnull-instrumenter} in the build directory once all classes are done.
+ * Reports of earlier runs are merged for the classes that were instrumented before and left as they are.
+ */
+public class InstrumentationReporter {
+    private final Log myLog;
+    private final InstrumentationOptions myOptions;
+    private final File myReportsDirectory;
+    private final String myName;
+    private final File myDirectory;
+    private final CodeSizeReport myCodeSizeReport;
+    private final Queue<String> myHotMethodsFound = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger myInstrumentedDifferently = new AtomicInteger();
+    private final AtomicInteger myInstrumentedAgain = new AtomicInteger();
+    private final AtomicInteger myElidedReturnChecks = new AtomicInteger();
+    private final AtomicInteger myDelegatedChecks = new AtomicInteger();
+    private final Queue<ElidedCheck> myElidedParameterChecks = new ConcurrentLinkedQueue<ElidedCheck>();
+    private final Set<String> myProcessedClasses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> myInstrumentedBefore = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * @param name prefix of the report files, unique per goal
+     * @param directory instrumented directory, or null for a jar
+     */
+    public InstrumentationReporter(@NotNull final Log log, @NotNull final InstrumentationOptions options,
+                                   @NotNull final File reportsDirectory, @NotNull final String name, @Nullable final File directory) {
+        myLog = log;
+        myOptions = options;
+        myReportsDirectory = reportsDirectory;
+        myName = name;
+        myDirectory = directory;
+        final int[] thresholds = options.getCodeSizeThresholds();
+        myCodeSizeReport = thresholds != null ? new CodeSizeReport(thresholds) : null;
+    }
+
+    /**
+     * @return the report that instrumented methods are added to, or null if the code size is not analyzed
+     */
+    @Nullable
+    public CodeSizeReport getCodeSizeReport() {
+        return myCodeSizeReport;
+    }
+
+    /**
+     * Records a class that is instrumented by this run, whether or not it gets checks.
+     *
+     * @param content class bytes
+     */
+    public void addProcessed(@NotNull final byte[] content) {
+        if (myOptions.isCallSiteAnalysisEnabled() || myCodeSizeReport != null) {
+            myProcessedClasses.add(new ClassReader(content).getClassName());
+        }
+    }
+
+    /**
+     * Records what the checks of an instrumented class left out.
+     */
+    public void addInstrumented(@NotNull final NotNullVerifyingInstrumenter instrumenter) {
+        myHotMethodsFound.addAll(instrumenter.getHotMethodsFound());
+        myElidedReturnChecks.addAndGet(instrumenter.getElidedReturnChecks());
+        myElidedParameterChecks.addAll(instrumenter.getElidedParameterChecks());
+        myDelegatedChecks.addAndGet(instrumenter.getDelegatedChecks());
+    }
+
+    /**
+     * Records a class that was instrumented by an earlier run and is left as it is.
+     *
+     * @param content class bytes
+     * @param sameOptions whether it was instrumented with the current options
+     */
+    public void addInstrumentedBefore(@NotNull final byte[] content, final boolean sameOptions) {
+        if (!sameOptions) {
+            myInstrumentedDifferently.incrementAndGet();
+        }
+        if (myCodeSizeReport != null) {
+            myInstrumentedBefore.add(new ClassReader(content).getClassName());
+        }
+    }
+
+    /**
+     * Records a class that was instrumented with other options and is instrumented again from its original.
+     */
+    public void addInstrumentedAgain() {
+        myInstrumentedAgain.incrementAndGet();
+    }
+
+    public void reportStatistics(@NotNull final InstrumentationStatistics statistics, @NotNull final InstrumentationClassFinder finder) {
+        myLog.info(statistics.getSummary(finder));
+        if (myLog.isDebugEnabled()) {
+            myLog.debug("Slowest classes to instrument:");
+            for (String timing : statistics.getSlowestClasses()) {
+                myLog.debug("  " + timing);
+            }
+        }
+        final File report = getReport("-report.json");
+        try {
+            statistics.writeReport(report, finder);
+        } catch (IOException e) {
+            myLog.warn("Failed to write @NotNull instrumentation report " + report.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    public void reportSkippedChecks() {
+        if (myInstrumentedDifferently.get() > 0) {
+            myLog.warn(myInstrumentedDifferently.get() + " classes had been instrumented before with other options than the current ones ("
+                       + myOptions.getMarkerOptions() + ") and were left as they are; rebuild them to apply the current options");
+        }
+        if (myInstrumentedAgain.get() > 0) {
+            myLog.info("Instrumented " + myInstrumentedAgain.get() + " classes again from their compiled class files, "
+                       + "as they had been instrumented with other options");
+        }
+        if (myElidedReturnChecks.get() > 0) {
+            myLog.info("Left out " + myElidedReturnChecks.get() + " @NotNull result checks that could never fail");
+        }
+        if (myDelegatedChecks.get() > 0) {
+            myLog.info("Left " + myDelegatedChecks.get() + " @NotNull checks of bridge and delegating methods to the methods they call");
+        }
+        if (!myHotMethodsFound.isEmpty()) {
+            final String action = myOptions.isSkipHotMethods() ? "Skipped" : "Outlined";
+            myLog.info(action + " @NotNull assertions in " + myHotMethodsFound.size() + " hot methods:");
+            for (String method : myHotMethodsFound) {
+                myLog.info("  " + method);
+            }
+        }
+    }
+
+    /**
+     * Lists the checks left out by this and earlier runs. Checks left out of classes that were instrumented before and
+     * left as they are are verified against the current call sites.
+     *
+     * @throws MojoExecutionException if callers may now pass null to a parameter whose check was left out before
+     */
+    public void reportElidedParameterChecks(@NotNull final CallSiteIndex callSiteIndex) throws MojoExecutionException {
+        final File report = getReport("-elided-checks.txt");
+        final List<ElidedCheck> elided = new ArrayList<ElidedCheck>(myElidedParameterChecks);
+        final List<ElidedCheck> stale = new ArrayList<ElidedCheck>();
+        for (ElidedCheck check : readElidedParameterChecks(report)) {
+            if (!myProcessedClasses.contains(check.getOwner()) && callSiteIndex.isDeclared(check)) {
+                elided.add(check);
+                if (!callSiteIndex.isNotNullAtAllCalls(check)) {
+                    stale.add(check);
+                }
+            }
+        }
+        Collections.sort(elided);
+        try {
+            if (!myReportsDirectory.isDirectory() && !myReportsDirectory.mkdirs()) {
+                throw new IOException("Cannot create directory " + myReportsDirectory);
+            }
+            final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(report), "UTF-8"));
+            try {
+                for (ElidedCheck check : elided) {
+                    writer.write(check.toString());
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            myLog.warn("Failed to write the list of left out @NotNull checks " + report.getPath() + ": " + e.getMessage());
+        }
+        myLog.info("Left out " + elided.size() + " @NotNull parameter checks of internal methods whose callers pass non-null values, see "
+                   + report.getPath());
+        if (!stale.isEmpty()) {
+            Collections.sort(stale);
+            for (ElidedCheck check : stale) {
+                myLog.error("  " + check);
+            }
+            throw new MojoExecutionException(stale.size() + " @NotNull parameter checks were left out of classes instrumented before"
+                                             + " because all callers passed non-null values, but recompiled callers may pass null now;"
+                                             + " rebuild the classes of these packages, e.g. with a clean build");
+        }
+    }
+
+    /**
+     * Logs how many methods grew past each code size threshold and writes all size changes to a report.
+     *
+     * @throws MojoExecutionException if the build should fail because methods grew past a threshold
+     */
+    public void reportCodeSize() throws MojoExecutionException {
+        if (myCodeSizeReport == null) {
+            return;
+        }
+        final File report = getReport("-code-size.txt");
+        try {
+            // methods of classes left as they are, because they were instrumented before, are taken from the previous report
+            final CodeSizeReport previous = CodeSizeReport.load(report, myCodeSizeReport.getThresholds());
+            final Set<String> unchanged = new HashSet<String>();
+            for (String className : previous.getClasses()) {
+                if (!myProcessedClasses.contains(className)
+                    && (myInstrumentedBefore.contains(className) || isClassFilePresent(className))) {
+                    unchanged.add(className);
+                }
+            }
+            myCodeSizeReport.addClasses(previous, unchanged);
+        } catch (IOException e) {
+            myLog.warn("Failed to read @NotNull instrumentation code size report " + report.getPath() + ": " + e.getMessage());
+        }
+        try {
+            myCodeSizeReport.write(report);
+        } catch (IOException e) {
+            myLog.warn("Failed to write @NotNull instrumentation code size report " + report.getPath() + ": " + e.getMessage());
+        }
+        final int[] thresholds = myCodeSizeReport.getThresholds();
+        final int[] counts = myCodeSizeReport.getCrossingCounts();
+        final StringBuilder summary = new StringBuilder();
+        int total = 0;
+        for (int i = 0; i < thresholds.length; i++) {
+            summary.append(i == 0 ? "" : ", ").append(counts[i]).append(" past ").append(thresholds[i]).append(" bytes");
+            total += counts[i];
+        }
+        if (total == 0) {
+            myLog.info("No method grew past a code size threshold with @NotNull assertions, see " + report.getPath());
+            return;
+        }
+        final String message = total + " methods grew past a code size threshold with @NotNull assertions (" + summary + "), see "
+                               + report.getPath();
+        if ("fail".equals(myOptions.getCodeSizeAnalysis())) {
+            for (String method : myCodeSizeReport.getCrossingMethods()) {
+                myLog.error("  " + method);
+            }
+            throw new MojoExecutionException(message);
+        }
+        myLog.warn(message);
+    }
+
+    /**
+     * @return the checks listed by the previous run, or nothing if there was none
+     */
+    @NotNull
+    private List<ElidedCheck> readElidedParameterChecks(@NotNull final File report) {
+        final List<ElidedCheck> checks = new ArrayList<ElidedCheck>();
+        if (!report.isFile()) {
+            return checks;
+        }
+        try {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(report), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final ElidedCheck check = ElidedCheck.parse(line);
+                    if (check != null) {
+                        checks.add(check);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            myLog.warn("Failed to read the list of left out @NotNull checks " + report.getPath() + ": " + e.getMessage());
+        }
+        return checks;
+    }
+
+    /**
+     * @return true if the instrumented directory contains the class; a jar has no directory
+     */
+    private boolean isClassFilePresent(@NotNull final String className) {
+        return myDirectory != null && new File(myDirectory, className.replace('/', File.separatorChar) + ".class").isFile();
+    }
+
+    @NotNull
+    private File getReport(@NotNull final String suffix) {
+        return new File(myReportsDirectory, myName + suffix);
+    }
+}
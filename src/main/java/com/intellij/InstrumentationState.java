@@ -0,0 +1,175 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers size, modification time and content hash of every class file left behind by the previous run,
+ * so that classes the compiler did not touch since then are not parsed and instrumented again.
+ */
+public class InstrumentationState {
+    private static final String HEADER = "notnull-instrumenter-state 2";
+    private static final String SEPARATOR = "\t";
+
+    private final File myStateFile;
+    private final File myRootDir;
+    private final String myRootPath;
+    private final String mySignature;
+    private final ConcurrentMap<String, Entry> myEntries = new ConcurrentHashMap<String, Entry>();
+
+    private InstrumentationState(@NotNull final File stateFile, @NotNull final File rootDir, @NotNull final String signature) {
+        myStateFile = stateFile;
+        myRootDir = rootDir.getAbsoluteFile();
+        myRootPath = myRootDir.getPath() + File.separator;
+        mySignature = signature;
+    }
+
+    /**
+     * Loads the state saved by a previous run. The state is discarded when it was written for another directory or
+     * with a different {@code signature}, i.e. when the instrumentation options changed in between.
+     */
+    @NotNull
+    public static InstrumentationState load(@NotNull final File stateFile, @NotNull final File rootDir, @NotNull final String signature) throws IOException {
+        final InstrumentationState state = new InstrumentationState(stateFile, rootDir, signature);
+        if (!stateFile.isFile()) {
+            return state;
+        }
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(stateFile), "UTF-8"));
+        try {
+            if (!HEADER.equals(reader.readLine()) || !state.myRootDir.getPath().equals(reader.readLine()) || !signature.equals(reader.readLine())) {
+                return state;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] parts = line.split(SEPARATOR);
+                if (parts.length != 4) {
+                    continue;
+                }
+                try {
+                    state.myEntries.put(parts[0], new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return state;
+    }
+
+    /**
+     * @return true when size and modification time of {@code file} match the recorded ones
+     */
+    public boolean isUnchanged(@NotNull final File file) throws IOException {
+        final Entry entry = myEntries.get(getPath(file));
+        if (entry == null) {
+            return false;
+        }
+        final BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        return entry.mySize == attributes.size() && entry.myModified == attributes.lastModifiedTime().toMillis();
+    }
+
+    /**
+     * @return true when {@code content} of the file is the one recorded after the previous run, in which case the
+     *         recorded modification time is refreshed
+     */
+    public boolean isUnchanged(@NotNull final File file, @NotNull final byte[] content) throws IOException {
+        final Entry entry = myEntries.get(getPath(file));
+        if (entry == null || entry.mySize != content.length || entry.myHash != hash(content)) {
+            return false;
+        }
+        update(file, content);
+        return true;
+    }
+
+    /**
+     * Records {@code content} as the current (instrumented) content of {@code file}.
+     */
+    public void update(@NotNull final File file, @NotNull final byte[] content) throws IOException {
+        final BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        myEntries.put(getPath(file), new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), hash(content)));
+    }
+
+    /**
+     * Forgets about classes that are no longer present in the output directory.
+     */
+    public void retain(@NotNull final Collection<File> files) {
+        final Set<String> paths = new HashSet<String>();
+        for (File file : files) {
+            paths.add(getPath(file));
+        }
+        myEntries.keySet().retainAll(paths);
+    }
+
+    public void save() throws IOException {
+        final File dir = myStateFile.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(myStateFile), "UTF-8"));
+        try {
+            writer.write(HEADER);
+            writer.write('\n');
+            writer.write(myRootDir.getPath());
+            writer.write('\n');
+            writer.write(mySignature);
+            writer.write('\n');
+            for (Map.Entry<String, Entry> entry : myEntries.entrySet()) {
+                final Entry value = entry.getValue();
+                writer.write(entry.getKey() + SEPARATOR + value.mySize + SEPARATOR + value.myModified + SEPARATOR + value.myHash + '\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    @NotNull
+    private String getPath(@NotNull final File file) {
+        final String path = file.getAbsolutePath();
+        final String relative = path.startsWith(myRootPath) ? path.substring(myRootPath.length()) : path;
+        return relative.replace(File.separatorChar, '/');
+    }
+
+    private static long hash(@NotNull final byte[] content) {
+        final CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        return crc.getValue();
+    }
+
+    private static class Entry {
+        private final long mySize;
+        private final long myModified;
+        private final long myHash;
+
+        private Entry(final long size, final long modified, final long hash) {
+            mySize = size;
+            myModified = modified;
+            myHash = hash;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij;
+
+import com.intellij.compiler.instrumentation.InstrumentationClassFinder;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time spent in the phases of one instrumentation run, class finder cache statistics and the classes that took
+ * longest to transform. Phase times are summed over all threads, so with several threads they may exceed the
+ * elapsed time.
+ */
+public class InstrumentationStatistics {
+    private static final int SLOWEST_CLASSES = 10;
+
+    private final String myRootPath;
+    private final long myStart = System.nanoTime();
+    private final AtomicLong myScanNanos = new AtomicLong();
+    private final AtomicLong myReadNanos = new AtomicLong();
+    private final AtomicLong myTransformNanos = new AtomicLong();
+    private final AtomicLong myWriteNanos = new AtomicLong();
+    private final AtomicInteger myClasses = new AtomicInteger();
+    private final AtomicInteger myUnchanged = new AtomicInteger();
+    private final AtomicInteger myInstrumented = new AtomicInteger();
+    private final PriorityQueue<ClassTiming> mySlowest = new PriorityQueue<ClassTiming>(); // fastest of the slowest first
+    private long myElapsedNanos = -1;
+
+    public InstrumentationStatistics(@NotNull final File rootDir) {
+        myRootPath = rootDir.getAbsolutePath() + File.separator;
+    }
+
+    public void addScan(final long nanos, final int classes) {
+        myScanNanos.addAndGet(nanos);
+        myClasses.addAndGet(classes);
+    }
+
+    public void addRead(final long nanos) {
+        myReadNanos.addAndGet(nanos);
+    }
+
+    public void addTransform(@NotNull final File file, final long nanos) {
+        myTransformNanos.addAndGet(nanos);
+        synchronized (mySlowest) {
+            if (mySlowest.size() < SLOWEST_CLASSES || mySlowest.peek().myNanos < nanos) {
+                mySlowest.add(new ClassTiming(getPath(file), nanos));
+                if (mySlowest.size() > SLOWEST_CLASSES) {
+                    mySlowest.poll();
+                }
+            }
+        }
+    }
+
+    public void addWrite(final long nanos) {
+        myWriteNanos.addAndGet(nanos);
+    }
+
+    public void addUnchanged() {
+        myUnchanged.incrementAndGet();
+    }
+
+    public void addInstrumented() {
+        myInstrumented.incrementAndGet();
+    }
+
+    /**
+     * Marks the end of the run.
+     */
+    public void finish() {
+        myElapsedNanos = System.nanoTime() - myStart;
+    }
+
+    @NotNull
+    public String getSummary(@NotNull final InstrumentationClassFinder finder) {
+        return "@NotNull instrumentation of " + myClasses.get() + " classes took " + millis(myElapsedNanos) + " ms: "
+               + "scanning " + millis(myScanNanos.get()) + " ms, reading " + millis(myReadNanos.get()) + " ms, "
+               + "transforming " + millis(myTransformNanos.get()) + " ms (frames " + millis(finder.getCommonSuperClassNanos()) + " ms), "
+               + "writing " + millis(myWriteNanos.get()) + " ms; "
+               + myUnchanged.get() + " unchanged classes skipped; "
+               + "class lookups " + finder.getLookups() + " (" + percent(finder.getLookupHits(), finder.getLookups()) + " cached), "
+               + "common superclass queries " + finder.getCommonSuperClassQueries()
+               + " (" + percent(finder.getCommonSuperClassHits(), finder.getCommonSuperClassQueries()) + " cached)";
+    }
+
+    /**
+     * @return paths and transformation times of the slowest classes, slowest first
+     */
+    @NotNull
+    public List<String> getSlowestClasses() {
+        final List<String> result = new ArrayList<String>();
+        for (ClassTiming timing : getSlowest()) {
+            result.add(timing.myPath + " " + millis(timing.myNanos) + " ms");
+        }
+        return result;
+    }
+
+    public void writeReport(@NotNull final File file, @NotNull final InstrumentationClassFinder finder) throws IOException {
+        final File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            writer.write("{\n");
+            writer.write("  \"directory\": " + quote(myRootPath.substring(0, myRootPath.length() - 1)) + ",\n");
+            writer.write("  \"classes\": " + myClasses.get() + ",\n");
+            writer.write("  \"unchanged\": " + myUnchanged.get() + ",\n");
+            writer.write("  \"instrumented\": " + myInstrumented.get() + ",\n");
+            writer.write("  \"elapsedMillis\": " + millis(myElapsedNanos) + ",\n");
+            writer.write("  \"phaseMillis\": {\"scan\": " + millis(myScanNanos.get()) + ", \"read\": " + millis(myReadNanos.get())
+                         + ", \"transform\": " + millis(myTransformNanos.get()) + ", \"frames\": " + millis(finder.getCommonSuperClassNanos())
+                         + ", \"write\": " + millis(myWriteNanos.get()) + "},\n");
+            writer.write("  \"classFinder\": {\"lookups\": " + finder.getLookups() + ", \"lookupHits\": " + finder.getLookupHits()
+                         + ", \"commonSuperClassQueries\": " + finder.getCommonSuperClassQueries()
+                         + ", \"commonSuperClassHits\": " + finder.getCommonSuperClassHits() + "},\n");
+            writer.write("  \"slowestClasses\": [");
+            String separator = "\n";
+            for (ClassTiming timing : getSlowest()) {
+                writer.write(separator + "    {\"path\": " + quote(timing.myPath) + ", \"transformMillis\": " + millis(timing.myNanos) + "}");
+                separator = ",\n";
+            }
+            writer.write("\n  ]\n}\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    @NotNull
+    private List<ClassTiming> getSlowest() {
+        final List<ClassTiming> result;
+        synchronized (mySlowest) {
+            result = new ArrayList<ClassTiming>(mySlowest);
+        }
+        Collections.sort(result, Collections.reverseOrder());
+        return result;
+    }
+
+    @NotNull
+    private String getPath(@NotNull final File file) {
+        final String path = file.getAbsolutePath();
+        return (path.startsWith(myRootPath) ? path.substring(myRootPath.length()) : path).replace(File.separatorChar, '/');
+    }
+
+    @NotNull
+    private static String millis(final long nanos) {
+        return String.format(Locale.ROOT, "%.3f", (double) nanos / TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    @NotNull
+    private static String percent(final long part, final long total) {
+        return total == 0 ? "0%" : (100 * part / total) + "%";
+    }
+
+    @NotNull
+    private static String quote(@NotNull final String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static class ClassTiming implements Comparable<ClassTiming> {
+        private final String myPath;
+        private final long myNanos;
+
+        private ClassTiming(@NotNull final String path, final long nanos) {
+            myPath = path;
+            myNanos = nanos;
+        }
+
+        public int compareTo(@NotNull final ClassTiming o) {
+            return myNanos < o.myNanos ? -1 : myNanos == o.myNanos ? 0 : 1;
+        }
+    }
+}
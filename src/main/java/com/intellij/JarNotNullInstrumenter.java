@@ -0,0 +1,262 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij;
+
+import com.intellij.compiler.instrumentation.InstrumentationClassFinder;
+import org.apache.maven.artifact.DependencyResolutionRequiredException;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Instruments the classes of an already packaged jar in a single pass from the input to the output archive, without
+ * unpacking it. Entries keep their order, compression method and metadata; class entries are transformed on
+ * {@code threads} threads while the following entries are being read. The jar itself comes first on the classpath
+ * used to compute frames.
+ *
+ * @author Vladislav.Rassokhin
+ */
+@SuppressWarnings("UnusedDeclaration")
+@Mojo(
+        name = "instrument-jar",
+        defaultPhase = LifecyclePhase.PACKAGE,
+        requiresOnline = false,
+        requiresProject = true,
+        requiresDependencyResolution = ResolutionScope.RUNTIME)
+public class JarNotNullInstrumenter extends AbstractNotNullInstrumenterTask {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String CLASS_EXTENSION = ".class";
+
+    /**
+     * Jar to instrument.
+     */
+    @Parameter(property = "notnull.instrumenter.jar", defaultValue = "${project.build.directory}/${project.build.finalName}.jar")
+    protected File jar;
+
+    /**
+     * Where to write the instrumented jar. The input jar is replaced when not set.
+     */
+    @Parameter(property = "notnull.instrumenter.outputJar")
+    protected File outputJar;
+
+    public void execute() throws MojoExecutionException {
+        if (!jar.isFile()) {
+            throw new MojoExecutionException("Jar to instrument does not exist: " + jar.getPath());
+        }
+        final List<String> classpath = new ArrayList<String>();
+        classpath.add(jar.getAbsolutePath());
+        try {
+            classpath.addAll(project.getRuntimeClasspathElements());
+        } catch (DependencyResolutionRequiredException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+        final InstrumentationClassFinder finder = createClassFinder(classpath);
+        prepare("jar", null);
+
+        final File target = outputJar != null ? outputJar : jar;
+        final File temp = new File(target.getAbsoluteFile().getParentFile(), target.getName() + ".tmp");
+        boolean moved = false;
+        try {
+            final int instrumented;
+            try {
+                instrumented = instrumentJar(jar, temp, finder);
+            } finally {
+                releaseClassFinder(finder); // the jar may be replaced below
+            }
+            getReporter().reportCodeSize(); // fails before the jar is replaced
+            try {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            moved = true;
+            getLog().info("Added @NotNull assertions to " + instrumented + " classes in " + target.getPath());
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to instrument " + jar.getPath() + ": " + e.getMessage(), e);
+        } finally {
+            if (!moved && temp.exists() && !temp.delete()) {
+                getLog().warn("Failed to delete " + temp.getPath());
+            }
+        }
+        getReporter().reportSkippedChecks();
+    }
+
+    @Override
+    protected boolean isCallSiteAnalysisSupported() {
+        return false;
+    }
+
+    private int instrumentJar(@NotNull final File input, @NotNull final File output, @NotNull final InstrumentationClassFinder finder) throws IOException, MojoExecutionException {
+        final int threadCount = getThreadCount();
+        final ExecutorService executor = threadCount > 1 ? Executors.newFixedThreadPool(threadCount) : null;
+        // transformed classes waiting to be written in entry order
+        final Deque<PendingClass> pending = new ArrayDeque<PendingClass>();
+        final int window = Math.max(1, threadCount * 4);
+        int instrumented = 0;
+        boolean signed = false;
+        final ZipInputStream in = new ZipInputStream(new BufferedInputStream(new FileInputStream(input), BUFFER_SIZE));
+        try {
+            final ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(output), BUFFER_SIZE));
+            try {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                ZipEntry entry;
+                while ((entry = in.getNextEntry()) != null) {
+                    if (!entry.isDirectory() && entry.getName().endsWith(CLASS_EXTENSION)) {
+                        final byte[] content = readFully(in, buffer);
+                        pending.add(new PendingClass(entry, content, submit(executor, content, finder)));
+                        if (pending.size() >= window) {
+                            instrumented += writeClass(out, pending.poll()) ? 1 : 0;
+                        }
+                        continue;
+                    }
+                    while (!pending.isEmpty()) {
+                        instrumented += writeClass(out, pending.poll()) ? 1 : 0;
+                    }
+                    signed |= entry.getName().startsWith("META-INF/") && entry.getName().endsWith(".SF");
+                    out.putNextEntry(copyEntry(entry));
+                    int read;
+                    while ((read = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, read);
+                    }
+                    out.closeEntry();
+                }
+                while (!pending.isEmpty()) {
+                    instrumented += writeClass(out, pending.poll()) ? 1 : 0;
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+        if (signed && instrumented > 0) {
+            getLog().warn(input.getPath() + " is signed, signatures of the instrumented classes will not verify");
+        }
+        return instrumented;
+    }
+
+    @NotNull
+    private Future<byte[]> submit(@Nullable final ExecutorService executor, @NotNull final byte[] content, @NotNull final InstrumentationClassFinder finder) {
+        final FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                return instrumentClass(content, finder);
+            }
+        });
+        if (executor != null) {
+            executor.execute(task);
+        } else {
+            task.run();
+        }
+        return task;
+    }
+
+    /**
+     * @return true if the class was instrumented
+     */
+    private boolean writeClass(@NotNull final ZipOutputStream out, @NotNull final PendingClass pendingClass) throws IOException, MojoExecutionException {
+        byte[] instrumented;
+        try {
+            instrumented = pendingClass.myInstrumented.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CodeSizeExceededException) {
+                instrumented = null; // the build fails once all classes are known
+            } else {
+                throw new MojoExecutionException("@NotNull instrumentation failed for " + pendingClass.myEntry.getName() + ": " + e.getCause(), e.getCause());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("@NotNull instrumentation was interrupted", e);
+        }
+        final byte[] content = instrumented != null ? instrumented : pendingClass.myContent;
+        final ZipEntry entry = copyEntry(pendingClass.myEntry);
+        if (entry.getMethod() == ZipEntry.STORED) {
+            final CRC32 crc = new CRC32();
+            crc.update(content, 0, content.length);
+            entry.setSize(content.length);
+            entry.setCompressedSize(content.length);
+            entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(content);
+        out.closeEntry();
+        return instrumented != null;
+    }
+
+    /**
+     * @return entry with the same name, metadata and compression method; sizes are only kept for stored entries,
+     *         which need them up front
+     */
+    @NotNull
+    private static ZipEntry copyEntry(@NotNull final ZipEntry entry) {
+        final ZipEntry copy = new ZipEntry(entry.getName());
+        copy.setTime(entry.getTime());
+        copy.setComment(entry.getComment());
+        copy.setExtra(entry.getExtra());
+        if (entry.getMethod() == ZipEntry.STORED) {
+            copy.setMethod(ZipEntry.STORED);
+            copy.setSize(entry.getSize());
+            copy.setCompressedSize(entry.getSize());
+            copy.setCrc(entry.getCrc());
+        } else {
+            copy.setMethod(ZipEntry.DEFLATED);
+        }
+        return copy;
+    }
+
+    @NotNull
+    private static byte[] readFully(@NotNull final InputStream in, @NotNull final byte[] buffer) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static class PendingClass {
+        private final ZipEntry myEntry;
+        private final byte[] myContent;
+        private final Future<byte[]> myInstrumented;
+
+        private PendingClass(@NotNull final ZipEntry entry, @NotNull final byte[] content, @NotNull final Future<byte[]> instrumented) {
+            myEntry = entry;
+            myContent = content;
+            myInstrumented = instrumented;
+        }
+    }
+}
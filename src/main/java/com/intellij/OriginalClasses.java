@@ -0,0 +1,94 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * Class files of an output directory as the compiler wrote them, kept before they are instrumented, so that classes
+ * instrumented with other options can be instrumented again from them. A copy is a hard link where the file system
+ * supports it, which costs no I/O: the instrumented class replaces the file with a rename and leaves the original
+ * content to the link.
+ */
+public class OriginalClasses {
+    private final String myRootPath;
+    private final File myStore;
+
+    /**
+     * @param rootDir directory of the class files
+     * @param store directory of the copies
+     */
+    public OriginalClasses(@NotNull final File rootDir, @NotNull final File store) {
+        myRootPath = rootDir.getAbsolutePath() + File.separator;
+        myStore = store;
+    }
+
+    /**
+     * Keeps the current content of a class file that is about to be instrumented.
+     */
+    public void save(@NotNull final File classFile) throws IOException {
+        final Path copy = getCopy(classFile);
+        Files.createDirectories(copy.getParent());
+        Files.deleteIfExists(copy);
+        try {
+            Files.createLink(copy, classFile.toPath());
+        } catch (UnsupportedOperationException e) {
+            Files.copy(classFile.toPath(), copy, StandardCopyOption.REPLACE_EXISTING);
+        } catch (FileSystemException e) {
+            Files.copy(classFile.toPath(), copy, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @param checksum CRC-32 of the original content, as recorded in the instrumented class
+     * @return the kept content of the class file, or null if there is no copy with that checksum
+     */
+    @Nullable
+    public byte[] load(@NotNull final File classFile, final long checksum) {
+        final byte[] content;
+        try {
+            content = ClassFileIO.read(getCopy(classFile).toFile());
+        } catch (IOException e) {
+            return null;
+        }
+        return getChecksum(content) == checksum ? content : null;
+    }
+
+    public static long getChecksum(@NotNull final byte[] content) {
+        final CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        return crc.getValue();
+    }
+
+    @NotNull
+    private Path getCopy(@NotNull final File classFile) throws IOException {
+        final String path = classFile.getAbsolutePath();
+        if (!path.startsWith(myRootPath)) {
+            throw new IOException(path + " is not in " + myRootPath);
+        }
+        return new File(myStore, path.substring(myRootPath.length())).toPath();
+    }
+}
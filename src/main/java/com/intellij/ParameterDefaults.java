@@ -0,0 +1,70 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+
+/**
+ * Default values of the parameters of {@link AbstractNotNullInstrumenterTask}, used by its {@code @Parameter}
+ * annotations and by {@link #apply}, so that a task run outside of Maven gets the same defaults as the mojos.
+ */
+public final class ParameterDefaults {
+    public static final String THREADS = "1";
+    public static final String INCREMENTAL = "false";
+    public static final String COPY_UNCHANGED_METHODS = "false";
+    public static final String PRESERVE_FRAMES = "false";
+    public static final String OUTLINE_CHECKS = "false";
+    public static final String INVOKE_DYNAMIC = "false";
+    public static final String SHARED_RETURN_CHECK = "false";
+    public static final String SKIP_HOT_METHODS = "true";
+    public static final String SKIP_REDUNDANT_CHECKS = "false";
+    public static final String SKIP_DELEGATING_CHECKS = "false";
+    public static final String CALL_SITE_ANALYSIS = "none";
+    public static final String CODE_SIZE_ANALYSIS = "none";
+    public static final String CODE_SIZE_THRESHOLDS = CodeSizeReport.DEFAULT_THRESHOLDS;
+    public static final String JDK_HOME = "${java.home}";
+    public static final String SHARE_CLASS_FINDER_CACHE = "false";
+
+    private ParameterDefaults() {
+    }
+
+    /**
+     * Sets every parameter of the task to its default, as Maven does when none is configured. Parameters without a
+     * default are cleared.
+     */
+    public static void apply(@NotNull final AbstractNotNullInstrumenterTask task) {
+        task.threads = Integer.parseInt(THREADS);
+        task.incremental = Boolean.parseBoolean(INCREMENTAL);
+        task.copyUnchangedMethods = Boolean.parseBoolean(COPY_UNCHANGED_METHODS);
+        task.preserveFrames = Boolean.parseBoolean(PRESERVE_FRAMES);
+        task.outlineChecks = Boolean.parseBoolean(OUTLINE_CHECKS);
+        task.invokeDynamic = Boolean.parseBoolean(INVOKE_DYNAMIC);
+        task.sharedReturnCheck = Boolean.parseBoolean(SHARED_RETURN_CHECK);
+        task.hotMethodsProfile = null;
+        task.skipHotMethods = Boolean.parseBoolean(SKIP_HOT_METHODS);
+        task.skipRedundantChecks = Boolean.parseBoolean(SKIP_REDUNDANT_CHECKS);
+        task.skipDelegatingChecks = Boolean.parseBoolean(SKIP_DELEGATING_CHECKS);
+        task.callSiteAnalysis = CALL_SITE_ANALYSIS;
+        task.codeSizeAnalysis = CODE_SIZE_ANALYSIS;
+        task.codeSizeThresholds = CODE_SIZE_THRESHOLDS;
+        task.hierarchyCacheDirectory = null;
+        task.jdkHome = new File(System.getProperty("java.home"));
+        task.shareClassFinderCache = Boolean.parseBoolean(SHARE_CLASS_FINDER_CACHE);
+    }
+}
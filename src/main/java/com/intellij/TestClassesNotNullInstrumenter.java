@@ -36,7 +36,7 @@ public class TestClassesNotNullInstrumenter extends AbstractNotNullInstrumenterT
 
     public void execute() throws MojoExecutionException {
         try {
-            instrument(project.getBuild().getTestOutputDirectory(), project.getTestClasspathElements());
+            instrument(project.getBuild().getTestOutputDirectory(), project.getTestClasspathElements(), "test-classes");
         } catch (DependencyResolutionRequiredException e) {
             throw new MojoExecutionException(e.getMessage(), e);
         }
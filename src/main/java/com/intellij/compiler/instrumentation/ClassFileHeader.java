@@ -0,0 +1,273 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.compiler.instrumentation;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads the class file header and constant pool directly from class bytes, without running a ClassReader pass.
+ */
+public class ClassFileHeader {
+  private static final int MAGIC = 0xCAFEBABE;
+
+  private static final int UTF8 = 1;
+  private static final int INT = 3;
+  private static final int FLOAT = 4;
+  private static final int LONG = 5;
+  private static final int DOUBLE = 6;
+  private static final int CLASS = 7;
+  private static final int STR = 8;
+  private static final int FIELD = 9;
+  private static final int METH = 10;
+  private static final int IMETH = 11;
+  private static final int NAME_TYPE = 12;
+  private static final int HANDLE = 15;
+  private static final int MTYPE = 16;
+  private static final int CONDY = 17;
+  private static final int INDY = 18;
+  private static final int MODULE = 19;
+  private static final int PACKAGE = 20;
+
+  private ClassFileHeader() {
+  }
+
+  /**
+   * @return class file version in the format used by ASM (minor version in the upper 16 bits), or -1 if the bytes are not a class file
+   */
+  public static int getVersion(final byte[] b) {
+    if (b.length < 10 || readInt(b, 0) != MAGIC) {
+      return -1;
+    }
+    return readUnsignedShort(b, 4) << 16 | readUnsignedShort(b, 6);
+  }
+
+  /**
+   * Checks whether the constant pool contains the given UTF8 entry. Only ASCII strings are supported, which is enough
+   * for class names and descriptors.
+   *
+   * @return true if the entry is present or the constant pool cannot be parsed
+   */
+  public static boolean containsUtf8(final byte[] b, final String value) {
+    if (getVersion(b) == -1) {
+      return true;
+    }
+    final int count = readUnsignedShort(b, 8);
+    int offset = 10;
+    try {
+      for (int i = 1; i < count; i++) {
+        if (b[offset] == UTF8) {
+          final int length = readUnsignedShort(b, offset + 1);
+          if (length == value.length() && matches(b, offset + 3, value)) {
+            return true;
+          }
+        }
+        else if (b[offset] == LONG || b[offset] == DOUBLE) {
+          i++;
+        }
+        offset = skipConstant(b, offset);
+        if (offset < 0) {
+          return true; // unknown constant, let the full reader deal with it
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return offsets of the constant pool entries by their index, followed by the offset of the access flags that
+   *         come right after the constant pool; or null if the bytes are not a class file
+   */
+  public static int[] readConstantPool(final byte[] b) {
+    if (getVersion(b) == -1) {
+      return null;
+    }
+    final int count = readUnsignedShort(b, 8);
+    final int[] offsets = new int[count + 1];
+    int offset = 10;
+    try {
+      for (int i = 1; i < count; i++) {
+        offsets[i] = offset;
+        if (b[offset] == LONG || b[offset] == DOUBLE) {
+          i++;
+        }
+        offset = skipConstant(b, offset);
+        if (offset < 0) {
+          return null;
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      return null;
+    }
+    offsets[count] = offset;
+    return offsets;
+  }
+
+  /**
+   * @return name of the class referenced by the CONSTANT_Class entry with the given index, or null for index 0
+   */
+  public static String readClassName(final byte[] b, final int[] constantPool, final int index) throws IOException {
+    if (index == 0) {
+      return null;
+    }
+    return readUtf8(b, constantPool, readUnsignedShort(b, constantPool[index] + 1));
+  }
+
+  /**
+   * @return lengths of the Code attributes of the methods that have code, by method name + descriptor; or null if
+   *         the bytes are not a class file
+   */
+  public static Map<String, Integer> readCodeLengths(final byte[] b) throws IOException {
+    final int[] pool = readConstantPool(b);
+    if (pool == null) {
+      return null;
+    }
+    try {
+      int offset = pool[pool.length - 1] + 6; // access flags, this and super class
+      offset += 2 + 2 * readUnsignedShort(b, offset);
+      final int fieldCount = readUnsignedShort(b, offset);
+      offset += 2;
+      for (int i = 0; i < fieldCount; i++) {
+        offset = skipAttributes(b, offset + 6);
+      }
+      final Map<String, Integer> lengths = new LinkedHashMap<String, Integer>();
+      final int methodCount = readUnsignedShort(b, offset);
+      offset += 2;
+      for (int i = 0; i < methodCount; i++) {
+        final String method = readUtf8(b, pool, readUnsignedShort(b, offset + 2)) + readUtf8(b, pool, readUnsignedShort(b, offset + 4));
+        final int attributeCount = readUnsignedShort(b, offset + 6);
+        offset += 8;
+        for (int j = 0; j < attributeCount; j++) {
+          if ("Code".equals(readUtf8(b, pool, readUnsignedShort(b, offset)))) {
+            lengths.put(method, readInt(b, offset + 10));
+          }
+          offset += 6 + readInt(b, offset + 2);
+        }
+      }
+      return lengths;
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IOException("Truncated class file");
+    }
+  }
+
+  /**
+   * @return content of the class level attribute with the given name, or null if there is no such attribute
+   */
+  public static byte[] readClassAttribute(final byte[] b, final String name) throws IOException {
+    if (!containsUtf8(b, name)) {
+      return null;
+    }
+    final int[] pool = readConstantPool(b);
+    if (pool == null) {
+      return null;
+    }
+    try {
+      int offset = pool[pool.length - 1] + 6; // access flags, this and super class
+      offset += 2 + 2 * readUnsignedShort(b, offset);
+      for (int members = 0; members < 2; members++) { // fields, then methods
+        final int count = readUnsignedShort(b, offset);
+        offset += 2;
+        for (int i = 0; i < count; i++) {
+          offset = skipAttributes(b, offset + 6);
+        }
+      }
+      final int attributeCount = readUnsignedShort(b, offset);
+      offset += 2;
+      for (int i = 0; i < attributeCount; i++) {
+        final int length = readInt(b, offset + 2);
+        if (name.equals(readUtf8(b, pool, readUnsignedShort(b, offset)))) {
+          final byte[] content = new byte[length];
+          System.arraycopy(b, offset + 6, content, 0, length);
+          return content;
+        }
+        offset += 6 + length;
+      }
+      return null;
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IOException("Truncated class file");
+    }
+  }
+
+  private static int skipAttributes(final byte[] b, int offset) {
+    final int count = readUnsignedShort(b, offset);
+    offset += 2;
+    for (int i = 0; i < count; i++) {
+      offset += 6 + readInt(b, offset + 2);
+    }
+    return offset;
+  }
+
+  private static String readUtf8(final byte[] b, final int[] constantPool, final int index) throws IOException {
+    final int offset = constantPool[index];
+    // modified UTF-8 with a two byte length prefix is exactly what DataInput.readUTF expects
+    return new DataInputStream(new ByteArrayInputStream(b, offset + 1, readUnsignedShort(b, offset + 1) + 2)).readUTF();
+  }
+
+  /**
+   * @return offset of the constant following the one at {@code offset}, or -1 if the constant type is not known
+   */
+  private static int skipConstant(final byte[] b, final int offset) {
+    switch (b[offset]) {
+      case UTF8:
+        return offset + 3 + readUnsignedShort(b, offset + 1);
+      case CLASS:
+      case STR:
+      case MTYPE:
+      case MODULE:
+      case PACKAGE:
+        return offset + 3;
+      case HANDLE:
+        return offset + 4;
+      case INT:
+      case FLOAT:
+      case FIELD:
+      case METH:
+      case IMETH:
+      case NAME_TYPE:
+      case CONDY:
+      case INDY:
+        return offset + 5;
+      case LONG:
+      case DOUBLE:
+        return offset + 9;
+      default:
+        return -1;
+    }
+  }
+
+  private static boolean matches(final byte[] b, final int offset, final String value) {
+    for (int i = 0; i < value.length(); i++) {
+      if (b[offset + i] != (byte) value.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public static int readUnsignedShort(final byte[] b, final int offset) {
+    return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+  }
+
+  private static int readInt(final byte[] b, final int offset) {
+    return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16) | ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+  }
+}
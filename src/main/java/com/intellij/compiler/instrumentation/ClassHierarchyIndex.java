@@ -0,0 +1,399 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.compiler.instrumentation;
+
+import java.io.*;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Name, superclass, interfaces and modifiers of every class in a jar. Indices are persisted in a cache directory
+ * and keyed by jar path, size and modification time, so hierarchy queries against jars that did not change
+ * since the previous build are answered without opening them.
+ */
+public class ClassHierarchyIndex {
+  private static final int FORMAT_VERSION = 1;
+  private static final String CLASS_EXTENSION = ".class";
+  private static final String META_INF = "META-INF/";
+  private static final String INDEX_EXTENSION = ".idx";
+  private static final String[] EMPTY_STRING_ARRAY = new String[0];
+
+  private final Map<String, Entry> myEntries;
+
+  private ClassHierarchyIndex(final Map<String, Entry> entries) {
+    myEntries = entries;
+  }
+
+  /**
+   * @param internalName class name in internal form, e.g. {@code java/lang/Object}
+   * @return the class, or null if it is not contained in the indexed jar
+   */
+  public Entry get(final String internalName) {
+    return myEntries.get(internalName);
+  }
+
+  public Collection<Entry> getEntries() {
+    return Collections.unmodifiableCollection(myEntries.values());
+  }
+
+  /**
+   * @return internal names of all packages containing indexed classes, {@code ""} for the default package
+   */
+  public Set<String> getPackages() {
+    final Set<String> packages = new HashSet<String>();
+    for (String path : myEntries.keySet()) {
+      packages.add(getPackageName(path));
+    }
+    return packages;
+  }
+
+  public static String getPackageName(final String internalName) {
+    final int index = internalName.lastIndexOf('/');
+    return index >= 0 ? internalName.substring(0, index) : "";
+  }
+
+  /**
+   * Returns the index of {@code jar}, reading it from {@code cacheDir} when the cached copy is up to date or
+   * building and storing it otherwise. Failure to store the index is not an error.
+   */
+  public static ClassHierarchyIndex load(final File cacheDir, final File jar) throws IOException {
+    final ClassHierarchyIndex cached = loadCached(cacheDir, jar);
+    if (cached != null) {
+      return cached;
+    }
+    final File indexFile = getIndexFile(cacheDir, jar);
+    final long size = jar.length();
+    final long modified = jar.lastModified();
+    final ZipFile zipFile = new ZipFile(jar);
+    final ClassHierarchyIndex index;
+    try {
+      index = build(zipFile);
+    } finally {
+      zipFile.close();
+    }
+    try {
+      index.write(indexFile, jar.getAbsolutePath(), size, modified);
+    } catch (IOException ignored) {
+      // the cache is an optimization only
+    }
+    return index;
+  }
+
+  /**
+   * @return the index of {@code jar} stored in {@code cacheDir}, or null if there is none for the current size and
+   *         modification time of the jar, or it can not be read
+   */
+  public static ClassHierarchyIndex loadCached(final File cacheDir, final File jar) {
+    final File indexFile = getIndexFile(cacheDir, jar);
+    if (!indexFile.isFile()) {
+      return null;
+    }
+    try {
+      return read(indexFile, jar.getAbsolutePath(), jar.length(), jar.lastModified());
+    } catch (IOException ignored) {
+      return null; // corrupted index, rebuilt when needed
+    }
+  }
+
+  private static File getIndexFile(final File cacheDir, final File jar) {
+    return new File(cacheDir, jar.getName() + "-" + Integer.toHexString(jar.getAbsolutePath().hashCode()) + INDEX_EXTENSION);
+  }
+
+  /**
+   * Returns the index of the platform classes of the JDK or JRE installed in {@code javaHome}, from the boot jars
+   * of Java 8 and earlier or from the {@code jrt:} file system of the run-time image of Java 9 and later.
+   * Like jar indices, the result is cached in {@code cacheDir}.
+   */
+  public static ClassHierarchyIndex loadPlatform(final File cacheDir, final File javaHome) throws IOException {
+    File libDir = new File(javaHome, "lib");
+    final File modules = new File(libDir, "modules");
+    File rtJar = new File(libDir, "rt.jar");
+    if (!rtJar.isFile() && !modules.isFile()) {
+      libDir = new File(javaHome, "jre" + File.separator + "lib");
+      rtJar = new File(libDir, "rt.jar");
+    }
+    final File image = modules.isFile() ? modules : rtJar;
+    if (!image.isFile()) {
+      throw new FileNotFoundException("No run-time image or rt.jar found in " + javaHome);
+    }
+
+    final File indexFile = new File(cacheDir, "jdk-" + Integer.toHexString(image.getAbsolutePath().hashCode()) + INDEX_EXTENSION);
+    final long size = image.length();
+    final long modified = image.lastModified();
+    if (indexFile.isFile()) {
+      try {
+        final ClassHierarchyIndex index = read(indexFile, image.getAbsolutePath(), size, modified);
+        if (index != null) {
+          return index;
+        }
+      } catch (IOException ignored) {
+        // corrupted index, rebuild it
+      }
+    }
+
+    final ClassHierarchyIndex index;
+    if (image == modules) {
+      index = buildFromRuntimeImage(javaHome);
+    }
+    else {
+      final Map<String, Entry> entries = new HashMap<String, Entry>();
+      final File[] jars = libDir.listFiles();
+      if (jars != null) {
+        for (File jar : jars) {
+          // rt.jar wins over the other boot jars
+          if (jar.getName().endsWith(".jar") && !jar.equals(rtJar)) {
+            addJar(entries, jar);
+          }
+        }
+      }
+      addJar(entries, rtJar);
+      index = new ClassHierarchyIndex(entries);
+    }
+    try {
+      index.write(indexFile, image.getAbsolutePath(), size, modified);
+    } catch (IOException ignored) {
+      // the cache is an optimization only
+    }
+    return index;
+  }
+
+  private static void addJar(final Map<String, Entry> entries, final File jar) throws IOException {
+    final ZipFile zipFile = new ZipFile(jar);
+    try {
+      entries.putAll(build(zipFile).myEntries);
+    } finally {
+      zipFile.close();
+    }
+  }
+
+  private static ClassHierarchyIndex buildFromRuntimeImage(final File javaHome) throws IOException {
+    // jrt-fs.jar of the target JDK provides the file system even when Maven runs on Java 8
+    final URLClassLoader loader = new URLClassLoader(new URL[]{new File(javaHome, "lib" + File.separator + "jrt-fs.jar").toURI().toURL()});
+    try {
+      final FileSystem fs = FileSystems.newFileSystem(URI.create("jrt:/"), Collections.singletonMap("java.home", javaHome.getAbsolutePath()), loader);
+      try {
+        final Map<String, Entry> entries = new HashMap<String, Entry>();
+        Files.walkFileTree(fs.getPath("/modules"), new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+            final String name = file.getFileName().toString();
+            if (file.getNameCount() > 2 && name.endsWith(CLASS_EXTENSION) && !name.equals("module-info.class")) {
+              // /modules/<module>/<package>/<class>.class
+              final String path = file.subpath(2, file.getNameCount()).toString();
+              final String className = path.substring(0, path.length() - CLASS_EXTENSION.length());
+              if (!entries.containsKey(className)) {
+                entries.put(className, readEntry(Files.readAllBytes(file)));
+              }
+            }
+            return FileVisitResult.CONTINUE;
+          }
+        });
+        return new ClassHierarchyIndex(entries);
+      } finally {
+        fs.close();
+      }
+    } catch (ProviderNotFoundException e) {
+      throw new IOException("Cannot open the run-time image of " + javaHome, e);
+    } finally {
+      loader.close();
+    }
+  }
+
+  public static ClassHierarchyIndex build(final ZipFile zipFile) throws IOException {
+    final Map<String, Entry> entries = new HashMap<String, Entry>();
+    final Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+    while (zipEntries.hasMoreElements()) {
+      final ZipEntry zipEntry = zipEntries.nextElement();
+      final String name = zipEntry.getName();
+      // versioned and module descriptor classes are never looked up by the finder
+      if (zipEntry.isDirectory() || !name.endsWith(CLASS_EXTENSION) || name.startsWith(META_INF) || name.endsWith("module-info.class")) {
+        continue;
+      }
+      final InputStream is = zipFile.getInputStream(zipEntry);
+      try {
+        // classes are looked up by resource name, so a misplaced class must be found under its path
+        entries.put(name.substring(0, name.length() - CLASS_EXTENSION.length()), readEntry(is));
+      } catch (RuntimeException e) {
+        throw new IOException("Cannot read class header of " + name + " in " + zipFile.getName(), e);
+      } finally {
+        is.close();
+      }
+    }
+    return new ClassHierarchyIndex(entries);
+  }
+
+  /**
+   * Reads the class header only; fields, methods and attributes are not parsed. Unlike ClassReader this works
+   * for class files of any version.
+   */
+  public static Entry readEntry(final InputStream is) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+    final byte[] buffer = new byte[4096];
+    int read;
+    while ((read = is.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return readEntry(out.toByteArray());
+  }
+
+  public static Entry readEntry(final byte[] b) throws IOException {
+    final int[] constantPool = ClassFileHeader.readConstantPool(b);
+    if (constantPool == null) {
+      throw new IOException("Malformed class file");
+    }
+    try {
+      final int header = constantPool[constantPool.length - 1];
+      final int access = ClassFileHeader.readUnsignedShort(b, header);
+      final String name = ClassFileHeader.readClassName(b, constantPool, ClassFileHeader.readUnsignedShort(b, header + 2));
+      final String superName = ClassFileHeader.readClassName(b, constantPool, ClassFileHeader.readUnsignedShort(b, header + 4));
+      final String[] interfaces = new String[ClassFileHeader.readUnsignedShort(b, header + 6)];
+      for (int i = 0; i < interfaces.length; i++) {
+        interfaces[i] = ClassFileHeader.readClassName(b, constantPool, ClassFileHeader.readUnsignedShort(b, header + 8 + 2 * i));
+      }
+      return new Entry(name, superName, interfaces, access);
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IOException("Malformed class file", e);
+    }
+  }
+
+  private static ClassHierarchyIndex read(final File indexFile, final String jarPath, final long size, final long modified) throws IOException {
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+    try {
+      if (in.readInt() != FORMAT_VERSION || !jarPath.equals(in.readUTF()) || in.readLong() != size || in.readLong() != modified) {
+        return null;
+      }
+      final String[] strings = new String[in.readInt()];
+      for (int i = 0; i < strings.length; i++) {
+        strings[i] = in.readUTF();
+      }
+      final int count = in.readInt();
+      final Map<String, Entry> entries = new HashMap<String, Entry>(count * 4 / 3 + 1);
+      for (int i = 0; i < count; i++) {
+        final String path = strings[in.readInt()];
+        final String name = strings[in.readInt()];
+        final int superIndex = in.readInt();
+        final String[] interfaces = new String[in.readUnsignedShort()];
+        for (int j = 0; j < interfaces.length; j++) {
+          interfaces[j] = strings[in.readInt()];
+        }
+        final int modifiers = in.readUnsignedShort();
+        entries.put(path, new Entry(name, superIndex >= 0 ? strings[superIndex] : null, interfaces, modifiers));
+      }
+      return new ClassHierarchyIndex(entries);
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IOException("Corrupted class hierarchy index " + indexFile, e);
+    } finally {
+      in.close();
+    }
+  }
+
+  private void write(final File indexFile, final String jarPath, final long size, final long modified) throws IOException {
+    final File dir = indexFile.getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create directory " + dir);
+    }
+    // names repeat a lot (java/lang/Object, common interfaces), so entries refer to a shared string table
+    final Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+    for (Map.Entry<String, Entry> entry : myEntries.entrySet()) {
+      intern(strings, entry.getKey());
+      final Entry value = entry.getValue();
+      intern(strings, value.getName());
+      if (value.getSuperName() != null) {
+        intern(strings, value.getSuperName());
+      }
+      for (String anInterface : value.getInterfaces()) {
+        intern(strings, anInterface);
+      }
+    }
+
+    final File temp = File.createTempFile(indexFile.getName(), ".tmp", dir);
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+    try {
+      out.writeInt(FORMAT_VERSION);
+      out.writeUTF(jarPath);
+      out.writeLong(size);
+      out.writeLong(modified);
+      out.writeInt(strings.size());
+      for (String string : strings.keySet()) {
+        out.writeUTF(string);
+      }
+      out.writeInt(myEntries.size());
+      for (Map.Entry<String, Entry> entry : myEntries.entrySet()) {
+        final Entry value = entry.getValue();
+        out.writeInt(strings.get(entry.getKey()));
+        out.writeInt(strings.get(value.getName()));
+        out.writeInt(value.getSuperName() != null ? strings.get(value.getSuperName()) : -1);
+        out.writeShort(value.getInterfaces().length);
+        for (String anInterface : value.getInterfaces()) {
+          out.writeInt(strings.get(anInterface));
+        }
+        out.writeShort(value.getModifiers());
+      }
+    } finally {
+      out.close();
+    }
+    try {
+      Files.move(temp.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(temp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp.toPath());
+    }
+  }
+
+  private static void intern(final Map<String, Integer> strings, final String s) {
+    if (!strings.containsKey(s)) {
+      strings.put(s, strings.size());
+    }
+  }
+
+  public static final class Entry {
+    private final String myName;
+    private final String mySuperName;
+    private final String[] myInterfaces;
+    private final int myModifiers;
+
+    public Entry(final String name, final String superName, final String[] interfaces, final int modifiers) {
+      myName = name;
+      mySuperName = superName;
+      myInterfaces = interfaces != null ? interfaces : EMPTY_STRING_ARRAY;
+      myModifiers = modifiers;
+    }
+
+    public String getName() {
+      return myName;
+    }
+
+    public String getSuperName() {
+      return mySuperName;
+    }
+
+    public String[] getInterfaces() {
+      return myInterfaces;
+    }
+
+    public int getModifiers() {
+      return myModifiers;
+    }
+  }
+}
@@ -16,8 +16,6 @@
 
 package com.intellij.compiler.instrumentation;
 
-import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.Opcodes;
 import sun.misc.Resource;
 
@@ -25,6 +23,9 @@ import java.io.*;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -35,49 +36,149 @@ import java.util.zip.ZipFile;
 public class InstrumentationClassFinder {
   private static final PseudoClass[] EMPTY_PSEUDOCLASS_ARRAY = new PseudoClass[0];
   private static final String CLASS_RESOURCE_EXTENSION = ".class";
-  private final Map<String, PseudoClass> myLoaded = new HashMap<String, PseudoClass>(); // className -> class object
+  private static final String JAVA_LANG_OBJECT = "java/lang/Object";
+  private final ConcurrentMap<String, String> myCommonSuperClasses = new ConcurrentHashMap<String, String>(); // "type1;type2" -> common superclass
+  private final ConcurrentMap<String, PseudoClass> myLoaded = new ConcurrentHashMap<String, PseudoClass>(); // className -> class object
   private final ClassFinderClasspath myClasspath;
+  private final boolean myOwnLoaderCache;
+  private final AtomicLong myLookups = new AtomicLong();
+  private final AtomicLong myLookupHits = new AtomicLong();
+  private final AtomicLong myCommonSuperClassQueries = new AtomicLong();
+  private final AtomicLong myCommonSuperClassHits = new AtomicLong();
+  private final AtomicLong myCommonSuperClassNanos = new AtomicLong();
 
   public InstrumentationClassFinder(final URL[] cp) {
-    myClasspath = new ClassFinderClasspath(cp);
+    this(cp, new LoaderCache(null, null), true);
+  }
+
+  /**
+   * @param loaderCache classpath loaders to use; may be shared with other finders
+   */
+  public InstrumentationClassFinder(final URL[] cp, final LoaderCache loaderCache) {
+    this(cp, loaderCache, false);
+  }
+
+  private InstrumentationClassFinder(final URL[] cp, final LoaderCache loaderCache, final boolean ownLoaderCache) {
+    myClasspath = new ClassFinderClasspath(cp, loaderCache);
+    myOwnLoaderCache = ownLoaderCache;
+  }
+
+  public LoaderCache getLoaderCache() {
+    return myClasspath.myLoaderCache;
+  }
+
+  /**
+   * Releases the classpath loaders used by this finder, so that jars no other finder uses any more can be closed.
+   * A loader cache created by the finder itself is closed. The finder must not be used afterwards.
+   */
+  public void releaseResources() {
+    myClasspath.release();
+    if (myOwnLoaderCache) {
+      myClasspath.myLoaderCache.close();
+    }
   }
 
   public PseudoClass loadClass(final String name) throws IOException, ClassNotFoundException {
     final String internalName = name.replace('.', '/'); // normalize
+    myLookups.incrementAndGet();
     final PseudoClass aClass = myLoaded.get(internalName);
     if (aClass != null) {
+      myLookupHits.incrementAndGet();
       return aClass;
     }
 
-    final InputStream is;
-    final String resourceName = internalName + CLASS_RESOURCE_EXTENSION;
-    // look into classpath
-    final Resource resource = myClasspath.getResource(resourceName, false);
-    if (resource == null) {
-      is = ClassLoader.getSystemResourceAsStream(resourceName);
-    } else {
-      is = resource.getInputStream();
+    // look into classpath, then into the platform classes
+    ClassHierarchyIndex.Entry entry = myClasspath.findClass(internalName);
+    if (entry == null) {
+      entry = myClasspath.myLoaderCache.findPlatformClass(internalName);
     }
-    if (is == null) {
-      throw new ClassNotFoundException("Class not found: "  + name.replace('/', '.')); // ensure presentable class name in error message
+    if (entry == null) {
+      final InputStream is = ClassLoader.getSystemResourceAsStream(internalName + CLASS_RESOURCE_EXTENSION);
+      if (is == null) {
+        throw new ClassNotFoundException("Class not found: "  + name.replace('/', '.')); // ensure presentable class name in error message
+      }
+      try {
+        entry = ClassHierarchyIndex.readEntry(is);
+      } finally {
+        is.close();
+      }
     }
 
-    try {
-      final PseudoClass result = loadPseudoClass(is);
-      myLoaded.put(internalName, result);
-      return result;
-    } finally {
-      is.close();
+    final PseudoClass result = new PseudoClass(entry.getName(), entry.getSuperName(), entry.getInterfaces(), entry.getModifiers());
+    final PseudoClass previous = myLoaded.putIfAbsent(internalName, result);
+    return previous != null ? previous : result;
+  }
+
+  /**
+   * @return the closest common superclass of two classes given by internal names, as required for stack map frames;
+   *         results are memoized per pair of types
+   */
+  public String getCommonSuperClass(final String type1, final String type2) throws IOException, ClassNotFoundException {
+    // the result does not depend on the order of the arguments
+    final long start = System.nanoTime();
+    final String key = type1.compareTo(type2) <= 0 ? type1 + ";" + type2 : type2 + ";" + type1;
+    myCommonSuperClassQueries.incrementAndGet();
+    String result = myCommonSuperClasses.get(key);
+    if (result == null) {
+      result = computeCommonSuperClass(type1, type2);
+      myCommonSuperClasses.put(key, result);
     }
+    else {
+      myCommonSuperClassHits.incrementAndGet();
+    }
+    myCommonSuperClassNanos.addAndGet(System.nanoTime() - start);
+    return result;
   }
 
-  private PseudoClass loadPseudoClass(InputStream is) throws IOException {
-    final ClassReader reader = new ClassReader(is);
-    final V visitor = new V();
+  /**
+   * @return number of {@link #loadClass} calls, including the ones made while answering common superclass queries
+   */
+  public long getLookups() {
+    return myLookups.get();
+  }
 
-    reader.accept(visitor, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+  /**
+   * @return number of {@link #loadClass} calls answered from classes loaded before
+   */
+  public long getLookupHits() {
+    return myLookupHits.get();
+  }
 
-    return new PseudoClass(visitor.myName, visitor.mySuperclassName, visitor.myInterfaces, visitor.myModifiers);
+  public long getCommonSuperClassQueries() {
+    return myCommonSuperClassQueries.get();
+  }
+
+  public long getCommonSuperClassHits() {
+    return myCommonSuperClassHits.get();
+  }
+
+  /**
+   * @return total time spent in {@link #getCommonSuperClass}, i.e. in class hierarchy lookups for frame computation
+   */
+  public long getCommonSuperClassNanos() {
+    return myCommonSuperClassNanos.get();
+  }
+
+  private String computeCommonSuperClass(final String type1, final String type2) throws IOException, ClassNotFoundException {
+    final PseudoClass cls1 = loadClass(type1);
+    final PseudoClass cls2 = loadClass(type2);
+    if (cls1.isAssignableFrom(cls2)) {
+      return cls1.getName();
+    }
+    if (cls2.isAssignableFrom(cls1)) {
+      return cls2.getName();
+    }
+    if (cls1.isInterface() || cls2.isInterface()) {
+      return JAVA_LANG_OBJECT;
+    }
+    else {
+      PseudoClass c = cls1;
+      do {
+        c = c.getSuperClass();
+      }
+      while (!c.isAssignableFrom(cls2));
+      return c.getName();
+    }
   }
 
   public final class PseudoClass {
@@ -85,6 +186,8 @@ public class InstrumentationClassFinder {
     private final String mySuperClass;
     private final String[] myInterfaces;
     private final int myModifiers;
+    private volatile PseudoClass[] myInterfaceClasses;
+    private volatile Set<String> myAncestors;
 
     private PseudoClass(final String name, final String superClass, final String[] interfaces, final int modifiers) {
       myName = name;
@@ -107,19 +210,44 @@ public class InstrumentationClassFinder {
     }
 
     private PseudoClass[] getInterfaces() throws IOException, ClassNotFoundException {
-      if (myInterfaces == null) {
-        return EMPTY_PSEUDOCLASS_ARRAY;
+      PseudoClass[] result = myInterfaceClasses;
+      if (result != null) {
+        return result;
       }
-
-      final PseudoClass[] result = new PseudoClass[myInterfaces.length];
-
-      for (int i = 0; i < result.length; i++) {
-        result[i] = loadClass(myInterfaces[i]);
+      if (myInterfaces == null || myInterfaces.length == 0) {
+        result = EMPTY_PSEUDOCLASS_ARRAY;
       }
-
+      else {
+        result = new PseudoClass[myInterfaces.length];
+        for (int i = 0; i < result.length; i++) {
+          result[i] = loadClass(myInterfaces[i]);
+        }
+      }
+      myInterfaceClasses = result;
       return result;
     }
 
+    /**
+     * @return names of all superclasses and all directly or indirectly implemented interfaces, computed once
+     */
+    private Set<String> getAncestors() throws IOException, ClassNotFoundException {
+      Set<String> ancestors = myAncestors;
+      if (ancestors == null) {
+        ancestors = new HashSet<String>();
+        final PseudoClass superClass = getSuperClass();
+        if (superClass != null) {
+          ancestors.add(superClass.getName());
+          ancestors.addAll(superClass.getAncestors());
+        }
+        for (PseudoClass anInterface : getInterfaces()) {
+          ancestors.add(anInterface.getName());
+          ancestors.addAll(anInterface.getAncestors());
+        }
+        myAncestors = ancestors;
+      }
+      return ancestors;
+    }
+
     public boolean equals(final Object o) {
       if (this == o) return true;
       //noinspection SimplifiableIfStatement
@@ -128,42 +256,19 @@ public class InstrumentationClassFinder {
       return getName().equals(((PseudoClass) o).getName());
     }
 
-    private boolean isSubclassOf(final PseudoClass x) throws IOException, ClassNotFoundException {
-      for (PseudoClass c = this; c != null; c = c.getSuperClass()) {
-        final PseudoClass superClass = c.getSuperClass();
-
-        if (superClass != null && superClass.equals(x)) {
-          return true;
-        }
-      }
-
-      return false;
-    }
-
-    private boolean implementsInterface(final PseudoClass x) throws IOException, ClassNotFoundException {
-      for (PseudoClass c = this; c != null; c = c.getSuperClass()) {
-        final PseudoClass[] tis = c.getInterfaces();
-        for (final PseudoClass ti : tis) {
-          if (ti.equals(x) || ti.implementsInterface(x)) {
-            return true;
-          }
-        }
-      }
-      return false;
+    public int hashCode() {
+      return myName.hashCode();
     }
 
     public boolean isAssignableFrom(final PseudoClass x) throws IOException, ClassNotFoundException {
       if (this.equals(x)) {
         return true;
       }
-      if (x.isSubclassOf(this)) {
-        return true;
-      }
-      if (x.implementsInterface(this)) {
+      if (x.getAncestors().contains(getName())) {
         return true;
       }
       //noinspection RedundantIfStatement
-      if (x.isInterface() && "java/lang/Object".equals(getName())) {
+      if (x.isInterface() && JAVA_LANG_OBJECT.equals(getName())) {
         return true;
       }
       return false;
@@ -171,32 +276,119 @@ public class InstrumentationClassFinder {
 
   }
 
-  private static class V extends ClassVisitor {
-    public String mySuperclassName = null;
-    public String[] myInterfaces = null;
-    public String myName = null;
-    public int myModifiers;
+  /**
+   * Classpath loaders together with the class headers they have already read, keyed by classpath element.
+   * A cache may be shared by finders of different modules of a build, so that every dependency is opened and
+   * parsed once: jar loaders are replaced when the jar changes, and classes read from directories are re-read
+   * when their class files change. Loaders are counted by the finders using them and close their jars when the last
+   * of them releases them, so that jars are not held open between executions; a replaced loader is dropped then.
+   */
+  public static final class LoaderCache {
+    private static final String FILE_PROTOCOL = "file";
+
+    private final File myIndexCacheDir;
+    private final File myJavaHome;
+    private final Map<URL, ClassFinderClasspath.Loader> myLoaders = new HashMap<URL, ClassFinderClasspath.Loader>();
+    private volatile ClassHierarchyIndex myPlatformIndex;
+    private volatile boolean myPlatformIndexUnavailable;
+
+    /**
+     * @param indexCacheDir directory for persistent class hierarchy indices of jars, or null to look classes up in jars directly
+     * @param javaHome JDK whose platform classes are resolved from a cached hierarchy snapshot, or null to resolve them
+     *                 through the system class loader; the snapshot also requires {@code indexCacheDir}
+     */
+    public LoaderCache(final File indexCacheDir, final File javaHome) {
+      myIndexCacheDir = indexCacheDir;
+      myJavaHome = javaHome;
+    }
+
+    /**
+     * @return hierarchy information of a platform class, or null if there is no snapshot or the class is not in it
+     */
+    private ClassHierarchyIndex.Entry findPlatformClass(final String internalName) {
+      ClassHierarchyIndex index = myPlatformIndex;
+      if (index == null && myIndexCacheDir != null && myJavaHome != null && !myPlatformIndexUnavailable) {
+        synchronized (this) {
+          index = myPlatformIndex;
+          if (index == null && !myPlatformIndexUnavailable) {
+            try {
+              index = ClassHierarchyIndex.loadPlatform(myIndexCacheDir, myJavaHome);
+              myPlatformIndex = index;
+            } catch (IOException e) {
+              myPlatformIndexUnavailable = true; // fall back to the system class loader
+            }
+          }
+        }
+      }
+      return index != null ? index.get(internalName) : null;
+    }
+
+    /**
+     * @return the loader of the classpath element, which must be released by the caller when it is no longer used
+     */
+    private ClassFinderClasspath.Loader acquireLoader(final URL url) throws IOException {
+      synchronized (myLoaders) {
+        ClassFinderClasspath.Loader loader = myLoaders.get(url);
+        if (loader == null || !loader.isUpToDate()) {
+          loader = createLoader(url);
+          if (loader == null) {
+            return null;
+          }
+          myLoaders.put(url, loader); // a replaced loader still in use by another finder is closed when it is released
+        }
+        loader.myUsers++;
+        return loader;
+      }
+    }
+
+    private void releaseLoader(final ClassFinderClasspath.Loader loader) {
+      synchronized (myLoaders) {
+        if (--loader.myUsers == 0) {
+          loader.close();
+        }
+      }
+    }
 
-    private V() {
-      super(Opcodes.ASM4);
+    /**
+     * Drops all loaders. Loaders still in use are closed when the finders using them release them.
+     */
+    public void close() {
+      synchronized (myLoaders) {
+        myLoaders.clear();
+      }
     }
 
-    public void visit(int version, int access, String pName, String signature, String pSuperName, String[] pInterfaces) {
-      mySuperclassName = pSuperName;
-      myInterfaces = pInterfaces;
-      myName = pName;
-      myModifiers = access;
+    private ClassFinderClasspath.Loader createLoader(final URL url) throws IOException {
+      String s;
+      try {
+        s = url.toURI().getSchemeSpecificPart();
+      } catch (URISyntaxException thisShouldNotHappen) {
+        thisShouldNotHappen.printStackTrace();
+        s = url.getFile();
+      }
+
+      ClassFinderClasspath.Loader loader = null;
+      if (s != null && new File(s).isDirectory()) {
+        if (FILE_PROTOCOL.equals(url.getProtocol())) {
+          loader = new ClassFinderClasspath.FileLoader(url);
+        }
+      } else {
+        loader = new ClassFinderClasspath.JarLoader(url, myIndexCacheDir);
+      }
+
+      return loader;
     }
   }
 
   static class ClassFinderClasspath {
-    private static final String FILE_PROTOCOL = "file";
-
     private final Stack<URL> myUrls = new Stack<URL>();
     private final List<Loader> myLoaders = new ArrayList<Loader>();
     private final Map<URL, Loader> myLoadersMap = new HashMap<URL, Loader>();
+    private final ConcurrentMap<String, Loader[]> myPackageLoaders = new ConcurrentHashMap<String, Loader[]>(); // package -> loaders containing it
+    private final LoaderCache myLoaderCache;
 
-    public ClassFinderClasspath(URL[] urls) {
+    public ClassFinderClasspath(URL[] urls, LoaderCache loaderCache) {
+      myLoaderCache = loaderCache;
       if (urls.length > 0) {
         for (int i = urls.length - 1; i >= 0; i--) {
           myUrls.push(urls[i]);
@@ -216,6 +408,39 @@ public class InstrumentationClassFinder {
       return null;
     }
 
+    /**
+     * @return hierarchy information of the first class with the given name on the classpath, or null if there is none
+     */
+    public ClassHierarchyIndex.Entry findClass(String internalName) throws IOException {
+      for (Loader loader : getLoaders(ClassHierarchyIndex.getPackageName(internalName))) {
+        ClassHierarchyIndex.Entry entry = loader.findClass(internalName);
+        if (entry != null) {
+          return entry;
+        }
+      }
+
+      return null;
+    }
+
+    /**
+     * @return loaders that may contain classes of the package, in classpath order
+     */
+    private Loader[] getLoaders(String packageName) {
+      Loader[] loaders = myPackageLoaders.get(packageName);
+      if (loaders == null) {
+        final List<Loader> result = new ArrayList<Loader>();
+        int i = 0;
+        for (Loader loader; (loader = getLoader(i)) != null; i++) {
+          if (loader.containsPackage(packageName)) {
+            result.add(loader);
+          }
+        }
+        loaders = result.toArray(new Loader[result.size()]);
+        myPackageLoaders.put(packageName, loaders);
+      }
+      return loaders;
+    }
+
     private synchronized Loader getLoader(int i) {
       while (myLoaders.size() < i + 1) {
         URL url;
@@ -232,7 +457,7 @@ public class InstrumentationClassFinder {
 
         Loader loader;
         try {
-          loader = getLoader(url);
+          loader = myLoaderCache.acquireLoader(url);
           if (loader == null) {
             continue;
           }
@@ -247,33 +472,24 @@ public class InstrumentationClassFinder {
       return myLoaders.get(i);
     }
 
-    private Loader getLoader(final URL url) throws IOException {
-      String s;
-      try {
-        s = url.toURI().getSchemeSpecificPart();
-      } catch (URISyntaxException thisShouldNotHappen) {
-        thisShouldNotHappen.printStackTrace();
-        s = url.getFile();
+    private synchronized void release() {
+      for (Loader loader : myLoaders) {
+        myLoaderCache.releaseLoader(loader);
       }
-
-      Loader loader = null;
-      if (s != null && new File(s).isDirectory()) {
-        if (FILE_PROTOCOL.equals(url.getProtocol())) {
-          loader = new FileLoader(url);
-        }
-      } else {
-        loader = new JarLoader(url);
+      myLoaders.clear();
+      myLoadersMap.clear();
+      myPackageLoaders.clear();
+      synchronized (myUrls) {
+        myUrls.clear();
       }
-
-      return loader;
     }
 
-
     private abstract static class Loader {
       protected static final String JAR_PROTOCOL = "jar";
       protected static final String FILE_PROTOCOL = "file";
 
       private final URL myURL;
+      private int myUsers; // finders using the loader, guarded by the loader cache
 
       protected Loader(URL url) {
         myURL = url;
@@ -286,10 +502,30 @@ public class InstrumentationClassFinder {
 
       public abstract Resource getResource(final String name, boolean flag);
 
+      public abstract ClassHierarchyIndex.Entry findClass(final String internalName) throws IOException;
+
+      /**
+       * @return false if no class of the package can be found by this loader
+       */
+      public abstract boolean containsPackage(final String packageName);
+
+      /**
+       * @return false if the classpath element changed since this loader was created and a new loader is needed
+       */
+      public boolean isUpToDate() {
+        return true;
+      }
+
+      /**
+       * Closes the files held open by this loader; they are opened again when needed.
+       */
+      public void close() {
+      }
     }
 
     private static class FileLoader extends Loader {
       private final File myRootDir;
+      private final ConcurrentMap<String, CachedEntry> myClasses = new ConcurrentHashMap<String, CachedEntry>();
 
       FileLoader(URL url) throws IOException {
         super(url);
@@ -326,6 +562,31 @@ public class InstrumentationClassFinder {
         return null;
       }
 
+      public ClassHierarchyIndex.Entry findClass(final String internalName) throws IOException {
+        final File file = new File(myRootDir, internalName.replace('/', File.separatorChar) + CLASS_RESOURCE_EXTENSION);
+        final long modified = file.lastModified();
+        if (modified == 0L && !file.isFile()) {
+          return null;
+        }
+        final long size = file.length();
+        final CachedEntry cached = myClasses.get(internalName);
+        if (cached != null && cached.myModified == modified && cached.mySize == size) {
+          return cached.myEntry;
+        }
+        final InputStream is = new BufferedInputStream(new FileInputStream(file));
+        try {
+          final ClassHierarchyIndex.Entry entry = ClassHierarchyIndex.readEntry(is);
+          myClasses.put(internalName, new CachedEntry(entry, modified, size));
+          return entry;
+        } finally {
+          is.close();
+        }
+      }
+
+      public boolean containsPackage(final String packageName) {
+        return packageName.length() == 0 || new File(myRootDir, packageName.replace('/', File.separatorChar)).isDirectory();
+      }
+
       private class FileResource extends Resource {
         private final String myName;
         private final URL myUrl;
@@ -366,26 +627,74 @@ public class InstrumentationClassFinder {
       public String toString() {
         return "FileLoader [" + myRootDir + "]";
       }
+
+      private static class CachedEntry {
+        private final ClassHierarchyIndex.Entry myEntry;
+        private final long myModified;
+        private final long mySize;
+
+        private CachedEntry(final ClassHierarchyIndex.Entry entry, final long modified, final long size) {
+          myEntry = entry;
+          myModified = modified;
+          mySize = size;
+        }
+      }
     }
 
-    private class JarLoader extends Loader {
-      private final URL myURL;
-      private ZipFile myZipFile;
+    private static class JarLoader extends Loader {
+      private static final ClassHierarchyIndex.Entry NOT_FOUND = new ClassHierarchyIndex.Entry(null, null, null, 0);
 
-      JarLoader(URL url) throws IOException {
+      private final URL myURL;
+      private final File myIndexCacheDir;
+      private final File myFile;
+      private final long myModified;
+      private final long mySize;
+      private final ConcurrentMap<String, ClassHierarchyIndex.Entry> myClasses = new ConcurrentHashMap<String, ClassHierarchyIndex.Entry>();
+      private volatile ZipFile myZipFile;
+      private volatile ClassHierarchyIndex myIndex;
+      private volatile boolean myIndexUnavailable;
+      private volatile Set<String> myPackages;
+
+      JarLoader(URL url, File indexCacheDir) throws IOException {
         super(new URL(JAR_PROTOCOL, "", -1, url + "!/"));
         myURL = url;
+        myIndexCacheDir = indexCacheDir;
+        myFile = FILE_PROTOCOL.equals(url.getProtocol()) ? new File(unescapePercentSequences(url.getFile().replace('/', File.separatorChar))) : null;
+        myModified = myFile != null ? myFile.lastModified() : 0L;
+        mySize = myFile != null ? myFile.length() : 0L;
+      }
+
+      @Override
+      public boolean isUpToDate() {
+        return myFile == null || myFile.lastModified() == myModified && myFile.length() == mySize;
       }
 
       private ZipFile acquireZipFile() throws IOException {
         ZipFile zipFile = myZipFile;
         if (zipFile == null) {
-          zipFile = doGetZipFile();
-          myZipFile = zipFile;
+          synchronized (this) {
+            zipFile = myZipFile;
+            if (zipFile == null) {
+              zipFile = doGetZipFile();
+              myZipFile = zipFile;
+            }
+          }
         }
         return zipFile;
       }
 
+      @Override
+      public synchronized void close() {
+        final ZipFile zipFile = myZipFile;
+        myZipFile = null;
+        if (zipFile != null) {
+          try {
+            zipFile.close();
+          } catch (IOException ignored) {
+          }
+        }
+      }
+
       private ZipFile doGetZipFile() throws IOException {
         if (FILE_PROTOCOL.equals(myURL.getProtocol())) {
           String s = unescapePercentSequences(myURL.getFile().replace('/', File.separatorChar));
@@ -399,6 +708,102 @@ public class InstrumentationClassFinder {
         return null;
       }
 
+      @Override
+      public ClassHierarchyIndex.Entry findClass(final String internalName) throws IOException {
+        final ClassHierarchyIndex index = acquireIndex();
+        if (index != null) {
+          return index.get(internalName);
+        }
+        final ClassHierarchyIndex.Entry cached = myClasses.get(internalName);
+        if (cached != null) {
+          return cached != NOT_FOUND ? cached : null;
+        }
+        final ClassHierarchyIndex.Entry entry = readClass(internalName);
+        myClasses.put(internalName, entry != null ? entry : NOT_FOUND);
+        return entry;
+      }
+
+      private ClassHierarchyIndex.Entry readClass(final String internalName) throws IOException {
+        final ZipFile file = acquireZipFile();
+        if (file == null) {
+          return null;
+        }
+        final ZipEntry entry = file.getEntry(internalName + CLASS_RESOURCE_EXTENSION);
+        if (entry == null) {
+          return null;
+        }
+        final InputStream is = file.getInputStream(entry);
+        try {
+          return ClassHierarchyIndex.readEntry(is);
+        } finally {
+          is.close();
+        }
+      }
+
+      public boolean containsPackage(final String packageName) {
+        Set<String> packages = myPackages;
+        if (packages == null) {
+          synchronized (this) {
+            packages = myPackages;
+            if (packages == null) {
+              packages = readPackages();
+              myPackages = packages;
+            }
+          }
+        }
+        return packages.contains(packageName);
+      }
+
+      /**
+       * Uses the index if it is loaded or up to date on disk, but does not build it: every jar on the classpath is asked
+       * for the package of a looked up class, while only the jars containing the package are looked into.
+       */
+      private Set<String> readPackages() {
+        ClassHierarchyIndex index = myIndex;
+        if (index == null && myIndexCacheDir != null && myFile != null) {
+          index = ClassHierarchyIndex.loadCached(myIndexCacheDir, myFile);
+          myIndex = index;
+        }
+        if (index != null) {
+          return index.getPackages();
+        }
+        final Set<String> packages = new HashSet<String>();
+        try {
+          final ZipFile file = acquireZipFile();
+          if (file != null) {
+            // the central directory is read when the zip file is opened, listing entries does not touch their data
+            final Enumeration<? extends ZipEntry> entries = file.entries();
+            while (entries.hasMoreElements()) {
+              final String name = entries.nextElement().getName();
+              if (name.endsWith(CLASS_RESOURCE_EXTENSION)) {
+                packages.add(ClassHierarchyIndex.getPackageName(name));
+              }
+            }
+          }
+        } catch (IOException ignored) {
+          // an unreadable jar contains nothing
+        }
+        return packages;
+      }
+
+      private ClassHierarchyIndex acquireIndex() {
+        ClassHierarchyIndex index = myIndex;
+        if (index == null && myIndexCacheDir != null && myFile != null && !myIndexUnavailable) {
+          synchronized (this) {
+            index = myIndex;
+            if (index == null && !myIndexUnavailable) {
+              try {
+                index = ClassHierarchyIndex.load(myIndexCacheDir, myFile);
+                myIndex = index;
+              } catch (IOException e) {
+                myIndexUnavailable = true; // fall back to reading classes from the jar
+              }
+            }
+          }
+        }
+        return index;
+      }
+
       public Resource getResource(String name, boolean flag) {
         try {
           final ZipFile file = acquireZipFile();
@@ -16,6 +16,7 @@
 
 package com.intellij.compiler.instrumentation;
 
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 
 /**
@@ -30,27 +31,17 @@ public class InstrumenterClassWriter extends ClassWriter {
     myFinder = finder;
   }
 
+  /**
+   * Creates a writer that copies the constant pool and all methods not transformed by the visitor chain from {@code reader}.
+   */
+  public InstrumenterClassWriter(final ClassReader reader, int flags, final InstrumentationClassFinder finder) {
+    super(reader, flags);
+    myFinder = finder;
+  }
+
   protected String getCommonSuperClass(final String type1, final String type2) {
     try {
-      final InstrumentationClassFinder.PseudoClass cls1 = myFinder.loadClass(type1);
-      final InstrumentationClassFinder.PseudoClass cls2 = myFinder.loadClass(type2);
-      if (cls1.isAssignableFrom(cls2)) {
-        return cls1.getName();
-      }
-      if (cls2.isAssignableFrom(cls1)) {
-        return cls2.getName();
-      }
-      if (cls1.isInterface() || cls2.isInterface()) {
-        return "java/lang/Object";
-      }
-      else {
-        InstrumentationClassFinder.PseudoClass c = cls1;
-        do {
-          c = c.getSuperClass();
-        }
-        while (!c.isAssignableFrom(cls2));
-        return c.getName();
-      }
+      return myFinder.getCommonSuperClass(type1, type2);
     }
     catch (Exception e) {
       throw new RuntimeException(e.toString(), e);
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.compiler.notNullVerification;
+
+import com.intellij.compiler.instrumentation.ClassFileHeader;
+import org.objectweb.asm.*;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Call sites of all classes of an output directory, telling which arguments of private and package-private methods
+ * are non-null at every call. Calls are matched by method name and descriptor only, whatever the owner in the
+ * instruction: a private method by all calls within its class, a package-private one by all calls within its
+ * package. An argument counts as non-null when it is {@link NullnessTracker} non-null or a @NotNull parameter of the
+ * calling method that keeps its check.
+ * <p/>
+ * Methods with no calls, or whose name appears as a method handle or a String constant in their scope (i.e. which
+ * may be called reflectively), are considered called with anything, as are the methods of packages with classes that
+ * can not be read. Code outside the indexed classes is assumed not to call package-private methods.
+ * <p/>
+ * The index also knows the @NotNull parameters of the analysed methods, so that checks left out when a class was
+ * instrumented before can be verified against the current callers.
+ */
+public class CallSiteIndex {
+  private static final String NOT_NULL_TYPE = "Lorg/jetbrains/annotations/NotNull;";
+  private static final String SYNTHETIC_TYPE = "Ljava/lang/Synthetic;";
+
+  private final boolean myPackagePrivate;
+  private final MethodPatterns mySkippedMethods;
+  private final Map<String, BitSet> myNotNullArguments = new HashMap<String, BitSet>();
+  private final Set<String> myEscapedNames = new HashSet<String>();
+  private final Set<String> myUnreadableScopes = new HashSet<String>();
+  private final Map<String, DeclaredMethod> myDeclaredMethods = new HashMap<String, DeclaredMethod>(); // owner.name desc -> method
+  private boolean myUnreadableClass = false;
+
+  /**
+   * @param packagePrivate whether package-private methods are analysed too, not only private ones
+   * @param skippedMethods methods whose checks are left out in any case, so that their parameters are not non-null
+   */
+  public CallSiteIndex(final boolean packagePrivate, final MethodPatterns skippedMethods) {
+    myPackagePrivate = packagePrivate;
+    mySkippedMethods = skippedMethods;
+  }
+
+  /**
+   * Adds the call sites of a class. Can be called from several threads.
+   */
+  public void index(final byte[] classBytes) {
+    final ClassReader reader;
+    try {
+      reader = new ClassReader(classBytes);
+    } catch (IllegalArgumentException e) {
+      addUnreadable(classBytes);
+      return;
+    }
+    final String className = reader.getClassName();
+    final Map<String, BitSet> notNullArguments = new HashMap<String, BitSet>();
+    final Set<String> escapedNames = new HashSet<String>();
+    final Map<String, DeclaredMethod> declaredMethods = new HashMap<String, DeclaredMethod>();
+    reader.accept(new ClassVisitor(Opcodes.ASM4) {
+      @Override
+      public MethodVisitor visitMethod(final int access, final String name, final String desc, final String signature, final String[] exceptions) {
+        final boolean keepsChecks = !isAnalysed(access) && (mySkippedMethods == null || !mySkippedMethods.matches(className, name, desc));
+        final DeclaredMethod declared = isAnalysed(access) ? new DeclaredMethod(access) : null;
+        if (declared != null) {
+          declaredMethods.put(className + "." + name + desc, declared);
+        }
+        final Type[] args = Type.getArgumentTypes(desc);
+        final BitSet notNullParams = new BitSet();
+        final BitSet stores = new BitSet();
+        final List<int[]> calls = new ArrayList<int[]>();
+        final List<String> callKeys = new ArrayList<String>();
+        if ((access & Opcodes.ACC_STATIC) == 0) {
+          notNullParams.set(0); // this
+        }
+        final NullnessTracker tracker = new NullnessTracker(null);
+        return new MethodVisitor(Opcodes.ASM4, tracker) {
+          @Override
+          public AnnotationVisitor visitParameterAnnotation(final int parameter, final String anno, final boolean visible) {
+            if (declared != null) {
+              if (anno.equals(NOT_NULL_TYPE)) {
+                declared.myNotNullParams.set(parameter);
+              } else if (anno.equals(SYNTHETIC_TYPE)) {
+                declared.mySyntheticCount++;
+              }
+            }
+            if (anno.equals(NOT_NULL_TYPE) && keepsChecks) {
+              int var = (access & Opcodes.ACC_STATIC) == 0 ? 1 : 0;
+              for (int i = 0; i < parameter; i++) {
+                var += args[i].getSize();
+              }
+              notNullParams.set(var);
+            }
+            return null;
+          }
+
+          @Override
+          public void visitVarInsn(final int opcode, final int var) {
+            if (opcode == Opcodes.ASTORE) {
+              stores.set(var);
+            }
+            super.visitVarInsn(opcode, var);
+          }
+
+          @Override
+          public void visitMethodInsn(final int opcode, final String owner, final String calledName, final String calledDesc) {
+            final Type[] calledArgs = Type.getArgumentTypes(calledDesc);
+            final int[] values = new int[calledArgs.length];
+            int depth = 0;
+            for (int i = calledArgs.length - 1; i >= 0; i--) {
+              depth += calledArgs[i].getSize();
+              values[i] = tracker.getValue(depth - 1);
+            }
+            calls.add(values);
+            callKeys.add(calledName + calledDesc);
+            super.visitMethodInsn(opcode, owner, calledName, calledDesc);
+          }
+
+          @Override
+          public void visitInvokeDynamicInsn(final String name, final String desc, final Handle bsm, final Object... bsmArgs) {
+            escape(bsm);
+            for (Object arg : bsmArgs) {
+              escape(arg);
+            }
+            super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+          }
+
+          @Override
+          public void visitLdcInsn(final Object cst) {
+            escape(cst);
+            super.visitLdcInsn(cst);
+          }
+
+          private void escape(final Object cst) {
+            if (cst instanceof Handle) {
+              escapedNames.add(((Handle)cst).getName());
+            } else if (cst instanceof String) {
+              escapedNames.add((String)cst);
+            }
+          }
+
+          @Override
+          public void visitEnd() {
+            // the variables loaded at the calls are known now to be never stored or not
+            notNullParams.andNot(stores);
+            for (int i = 0; i < calls.size(); i++) {
+              final int[] values = calls.get(i);
+              final BitSet notNull = new BitSet();
+              for (int arg = 0; arg < values.length; arg++) {
+                final int value = values[arg];
+                if (value == NullnessTracker.NOT_NULL || value >= 0 && notNullParams.get(value)) {
+                  notNull.set(arg);
+                }
+              }
+              add(notNullArguments, callKeys.get(i), notNull);
+            }
+          }
+        };
+      }
+    }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+
+    synchronized (this) {
+      for (Map.Entry<String, BitSet> entry : notNullArguments.entrySet()) {
+        add(myNotNullArguments, getClassScope(className) + entry.getKey(), entry.getValue());
+        add(myNotNullArguments, getPackageScope(className) + entry.getKey(), entry.getValue());
+      }
+      for (String name : escapedNames) {
+        myEscapedNames.add(getClassScope(className) + name);
+        myEscapedNames.add(getPackageScope(className) + name);
+      }
+      myDeclaredMethods.putAll(declaredMethods);
+    }
+  }
+
+  /**
+   * @param check a left out check as listed by {@link NotNullVerifyingInstrumenter#getElidedParameterChecks()}
+   * @return true if the indexed classes still declare the method with the @NotNull parameter
+   */
+  public synchronized boolean isDeclared(final ElidedCheck check) {
+    return getParameter(check) >= 0;
+  }
+
+  /**
+   * @param check a left out check as listed by {@link NotNullVerifyingInstrumenter#getElidedParameterChecks()}
+   * @return true if the check can still be left out, i.e. the parameter is non-null at all calls of the method
+   */
+  public synchronized boolean isNotNullAtAllCalls(final ElidedCheck check) {
+    final int param = getParameter(check);
+    if (param < 0) {
+      return false;
+    }
+    final DeclaredMethod method = myDeclaredMethods.get(check.getOwner() + "." + check.getName() + check.getDesc());
+    return isNotNullAtAllCalls(check.getOwner(), method.myAccess, check.getName(), check.getDesc(), param);
+  }
+
+  /**
+   * @return the index of the checked parameter in the method descriptor, or -1 if there is no such @NotNull parameter
+   */
+  private int getParameter(final ElidedCheck check) {
+    final DeclaredMethod method = myDeclaredMethods.get(check.getOwner() + "." + check.getName() + check.getDesc());
+    if (method == null) {
+      return -1;
+    }
+    final int param = check.getParameter() + method.mySyntheticCount;
+    return method.myNotNullParams.get(param) ? param : -1;
+  }
+
+  /**
+   * @param param index of the parameter in the method descriptor
+   * @return true if the method is analysed and the parameter is non-null at all its calls
+   */
+  public synchronized boolean isNotNullAtAllCalls(final String className, final int access, final String name, final String desc, final int param) {
+    if (!isAnalysed(access) || myUnreadableClass || myUnreadableScopes.contains(getPackageScope(className))) {
+      return false;
+    }
+    final String scope = (access & Opcodes.ACC_PRIVATE) != 0 ? getClassScope(className) : getPackageScope(className);
+    if (myEscapedNames.contains(scope + name)) {
+      return false;
+    }
+    final BitSet notNull = myNotNullArguments.get(scope + name + desc);
+    return notNull != null && notNull.get(param);
+  }
+
+  private boolean isAnalysed(final int access) {
+    if ((access & Opcodes.ACC_PRIVATE) != 0) {
+      return true;
+    }
+    return myPackagePrivate && (access & (Opcodes.ACC_PUBLIC | Opcodes.ACC_PROTECTED)) == 0;
+  }
+
+  /**
+   * Records a call, or calls, with the given non-null arguments.
+   */
+  private static void add(final Map<String, BitSet> notNullArguments, final String key, final BitSet notNull) {
+    final BitSet known = notNullArguments.get(key);
+    if (known == null) {
+      notNullArguments.put(key, (BitSet)notNull.clone());
+    } else {
+      known.and(notNull);
+    }
+  }
+
+  /**
+   * Makes the package of a class that can not be analysed unknown, or everything if the class name is unknown too.
+   */
+  private synchronized void addUnreadable(final byte[] classBytes) {
+    final int[] pool = ClassFileHeader.readConstantPool(classBytes);
+    try {
+      if (pool != null) {
+        final String className = ClassFileHeader.readClassName(classBytes, pool, ClassFileHeader.readUnsignedShort(classBytes, pool[pool.length - 1] + 2));
+        if (className != null) {
+          myUnreadableScopes.add(getPackageScope(className));
+          return;
+        }
+      }
+    } catch (IOException ignored) {
+    } catch (ArrayIndexOutOfBoundsException ignored) {
+    }
+    myUnreadableClass = true;
+  }
+
+  private static class DeclaredMethod {
+    private final int myAccess;
+    private final BitSet myNotNullParams = new BitSet();
+    private int mySyntheticCount = 0;
+
+    private DeclaredMethod(final int access) {
+      myAccess = access;
+    }
+  }
+
+  private static String getClassScope(final String className) {
+    return "class " + className + " ";
+  }
+
+  private static String getPackageScope(final String className) {
+    final int index = className.lastIndexOf('/');
+    return "package " + (index < 0 ? "" : className.substring(0, index)) + " ";
+  }
+}
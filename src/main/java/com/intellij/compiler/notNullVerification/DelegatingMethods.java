@@ -0,0 +1,270 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.compiler.notNullVerification;
+
+import org.objectweb.asm.*;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds the methods of a class that do nothing but call another method of the same class with their parameters, or
+ * constants, and return its result: bridge methods, overloads that supply default arguments, constructors calling
+ * {@code this(...)}. Such a method can leave the checks of a parameter to the target when the target checks it under
+ * the same method name and parameter index, so that the message stays the same, and the result check when the
+ * target checks its result.
+ * <p/>
+ * The target must not be overridable, so that the checks that run are the ones seen here: a bridge of a non-final
+ * method keeps its checks, as an override of the target in a subclass may not check its parameters. Targets
+ * delegating further keep their own checks.
+ */
+public class DelegatingMethods extends ClassVisitor implements Opcodes {
+  private static final String NOT_NULL_TYPE = "Lorg/jetbrains/annotations/NotNull;";
+  private static final String SYNTHETIC_TYPE = "Ljava/lang/Synthetic;";
+  private static final int THIS = -2;
+  private static final int CONSTANT = -1;
+
+  private final Map<String, MethodInfo> myMethods = new HashMap<String, MethodInfo>();
+  private String myClassName;
+  private boolean myFinalClass;
+
+  public DelegatingMethods() {
+    super(Opcodes.ASM4);
+  }
+
+  @Override
+  public void visit(final int version, final int access, final String name, final String signature, final String superName, final String[] interfaces) {
+    myClassName = name;
+    myFinalClass = (access & ACC_FINAL) != 0;
+  }
+
+  @Override
+  public MethodVisitor visitMethod(final int access, final String name, final String desc, final String signature, final String[] exceptions) {
+    final MethodInfo info = new MethodInfo(access);
+    myMethods.put(name + desc, info);
+    final Type[] args = Type.getArgumentTypes(desc);
+    final int[] params = new int[Type.getArgumentsAndReturnSizes(desc) >> 2]; // parameter index by local variable
+    int var = (access & ACC_STATIC) == 0 ? 1 : 0;
+    for (int i = 0; i < args.length; i++) {
+      params[var] = i + 1;
+      var += args[i].getSize();
+    }
+    return new MethodVisitor(Opcodes.ASM4) {
+      private final int[] myValues = new int[params.length + 1];
+      private int myCount = 0;
+      private boolean myCalled = false;
+      private boolean myReturned = false;
+      private boolean myFailed = false;
+
+      @Override
+      public AnnotationVisitor visitParameterAnnotation(final int parameter, final String anno, final boolean visible) {
+        if (anno.equals(NOT_NULL_TYPE)) {
+          info.myNotNullParams.set(parameter);
+        } else if (anno.equals(SYNTHETIC_TYPE)) {
+          info.mySyntheticParams = true; // annotation indices may not match the descriptor
+        }
+        return null;
+      }
+
+      @Override
+      public AnnotationVisitor visitAnnotation(final String anno, final boolean visible) {
+        if (anno.equals(NOT_NULL_TYPE)) {
+          info.myNotNullResult = true;
+        }
+        return null;
+      }
+
+      @Override
+      public void visitVarInsn(final int opcode, final int var) {
+        if (opcode >= ILOAD && opcode <= ALOAD && var < params.length && (params[var] > 0 || var == 0 && (access & ACC_STATIC) == 0)) {
+          push(params[var] > 0 ? params[var] - 1 : THIS);
+        } else {
+          fail();
+        }
+      }
+
+      @Override
+      public void visitInsn(final int opcode) {
+        if (opcode >= ACONST_NULL && opcode <= DCONST_1) {
+          push(CONSTANT);
+        } else if (opcode >= IRETURN && opcode <= RETURN && myCalled && !myReturned && !myFailed) {
+          myReturned = true;
+          info.myDelegating = true;
+        } else {
+          fail();
+        }
+      }
+
+      @Override
+      public void visitIntInsn(final int opcode, final int operand) {
+        if (opcode == BIPUSH || opcode == SIPUSH) {
+          push(CONSTANT);
+        } else {
+          fail();
+        }
+      }
+
+      @Override
+      public void visitLdcInsn(final Object cst) {
+        push(CONSTANT);
+      }
+
+      @Override
+      public void visitTypeInsn(final int opcode, final String type) {
+        if (opcode != CHECKCAST || myCount == 0 || myCalled) {
+          fail();
+        }
+      }
+
+      @Override
+      public void visitMethodInsn(final int opcode, final String owner, final String calledName, final String calledDesc) {
+        final int receiver = opcode == INVOKESTATIC ? 0 : 1;
+        if (myCalled || !owner.equals(myClassName) || myCount != receiver + Type.getArgumentTypes(calledDesc).length
+            || receiver == 1 && myValues[0] != THIS) {
+          fail();
+          return;
+        }
+        myCalled = true;
+        info.myTarget = calledName + calledDesc;
+        info.myTargetOverridable = opcode == INVOKEVIRTUAL && !myFinalClass;
+        info.mySameName = calledName.equals(name);
+        info.myArguments = new int[myCount - receiver];
+        System.arraycopy(myValues, receiver, info.myArguments, 0, info.myArguments.length);
+      }
+
+      @Override
+      public void visitFieldInsn(final int opcode, final String owner, final String name, final String desc) {
+        fail();
+      }
+
+      @Override
+      public void visitInvokeDynamicInsn(final String name, final String desc, final Handle bsm, final Object... bsmArgs) {
+        fail();
+      }
+
+      @Override
+      public void visitJumpInsn(final int opcode, final Label label) {
+        fail();
+      }
+
+      @Override
+      public void visitIincInsn(final int var, final int increment) {
+        fail();
+      }
+
+      @Override
+      public void visitTableSwitchInsn(final int min, final int max, final Label dflt, final Label... labels) {
+        fail();
+      }
+
+      @Override
+      public void visitLookupSwitchInsn(final Label dflt, final int[] keys, final Label[] labels) {
+        fail();
+      }
+
+      @Override
+      public void visitMultiANewArrayInsn(final String desc, final int dims) {
+        fail();
+      }
+
+      @Override
+      public void visitTryCatchBlock(final Label start, final Label end, final Label handler, final String type) {
+        fail();
+      }
+
+      private void push(final int value) {
+        if (myCalled || myCount == myValues.length) {
+          fail();
+        } else {
+          myValues[myCount++] = value;
+        }
+      }
+
+      private void fail() {
+        myFailed = true;
+        info.myDelegating = false;
+      }
+    };
+  }
+
+  /**
+   * @return true if the target of the method checks the parameter with the same message
+   */
+  public boolean isParameterCheckedByTarget(final String method, final int param) {
+    final MethodInfo info = myMethods.get(method);
+    final MethodInfo target = getTarget(info);
+    return target != null && info.mySameName && param < info.myArguments.length && info.myArguments[param] == param
+           && target.myNotNullParams.get(param);
+  }
+
+  /**
+   * @return true if the method returns the result of a target that checks its result
+   */
+  public boolean isResultCheckedByTarget(final String method) {
+    final MethodInfo target = getTarget(myMethods.get(method));
+    return target != null && target.myNotNullResult;
+  }
+
+  /**
+   * @return name + descriptor of the method called by the delegating method, or null if it is not delegating
+   */
+  public String getTarget(final String method) {
+    final MethodInfo info = myMethods.get(method);
+    return getTarget(info) != null ? info.myTarget : null;
+  }
+
+  /**
+   * @return access flags of the method
+   */
+  public int getAccess(final String method) {
+    final MethodInfo info = myMethods.get(method);
+    return info != null ? info.myAccess : 0;
+  }
+
+  private MethodInfo getTarget(final MethodInfo info) {
+    if (info == null || !info.myDelegating) {
+      return null;
+    }
+    final MethodInfo target = myMethods.get(info.myTarget);
+    if (target == null || target.myDelegating || info.mySyntheticParams || target.mySyntheticParams
+        || (target.myAccess & (ACC_ABSTRACT | ACC_NATIVE)) != 0) {
+      return null;
+    }
+    final boolean overridable = info.myTargetOverridable && (target.myAccess & (ACC_PRIVATE | ACC_STATIC | ACC_FINAL)) == 0;
+    return overridable ? null : target;
+  }
+
+  private static class MethodInfo {
+    private final int myAccess;
+    private final BitSet myNotNullParams = new BitSet();
+    private boolean myNotNullResult;
+    private boolean mySyntheticParams;
+    private boolean myDelegating;
+    private String myTarget;
+    private boolean myTargetOverridable;
+    private boolean mySameName;
+    /**
+     * Parameter index of the delegating method passed as each argument of the target, or {@link #CONSTANT}.
+     */
+    private int[] myArguments;
+
+    private MethodInfo(final int access) {
+      myAccess = access;
+    }
+  }
+}
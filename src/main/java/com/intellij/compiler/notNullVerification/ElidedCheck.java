@@ -0,0 +1,95 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.compiler.notNullVerification;
+
+/**
+ * A parameter check left out because all callers pass non-null values. Written to reports as
+ * {@code owner.name(desc)ret #parameter}, with the parameter numbered as in the exception message, i.e. without
+ * synthetic parameters.
+ */
+public class ElidedCheck implements Comparable<ElidedCheck> {
+  private final String myOwner;
+  private final String myName;
+  private final String myDesc;
+  private final int myParameter;
+
+  public ElidedCheck(final String owner, final String name, final String desc, final int parameter) {
+    myOwner = owner;
+    myName = name;
+    myDesc = desc;
+    myParameter = parameter;
+  }
+
+  /**
+   * @param line a check as written by {@link #toString()}
+   * @return the check, or null if the line is not one
+   */
+  public static ElidedCheck parse(final String line) {
+    final int dot = line.indexOf('.');
+    final int descStart = line.indexOf('(', dot + 1);
+    final int paramStart = line.lastIndexOf(" #");
+    if (dot <= 0 || descStart <= dot + 1 || paramStart <= descStart) {
+      return null;
+    }
+    try {
+      final int parameter = Integer.parseInt(line.substring(paramStart + 2));
+      return parameter < 0 ? null : new ElidedCheck(line.substring(0, dot), line.substring(dot + 1, descStart),
+                                                    line.substring(descStart, paramStart), parameter);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  public String getOwner() {
+    return myOwner;
+  }
+
+  public String getName() {
+    return myName;
+  }
+
+  public String getDesc() {
+    return myDesc;
+  }
+
+  public int getParameter() {
+    return myParameter;
+  }
+
+  public int compareTo(final ElidedCheck o) {
+    return toString().compareTo(o.toString());
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (!(o instanceof ElidedCheck)) {
+      return false;
+    }
+    final ElidedCheck check = (ElidedCheck)o;
+    return myParameter == check.myParameter && myOwner.equals(check.myOwner) && myName.equals(check.myName) && myDesc.equals(check.myDesc);
+  }
+
+  @Override
+  public int hashCode() {
+    return ((myOwner.hashCode() * 31 + myName.hashCode()) * 31 + myDesc.hashCode()) * 31 + myParameter;
+  }
+
+  @Override
+  public String toString() {
+    return myOwner + "." + myName + myDesc + " #" + myParameter;
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.compiler.notNullVerification;
+
+import com.intellij.compiler.instrumentation.ClassFileHeader;
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ByteVector;
+import org.objectweb.asm.ClassWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Class attribute marking a class as instrumented, with the instrumentation options as a modified UTF-8 string
+ * followed by the CRC-32 of the class as it was before, so that a kept copy of it can be told from a later one.
+ * The JVM ignores attributes it does not know.
+ */
+public class InstrumentedAttribute extends Attribute {
+  public static final String NAME = "com.intellij.NotNullInstrumented";
+
+  private final String myOptions;
+  private final long myOriginalChecksum;
+
+  public InstrumentedAttribute(final String options, final long originalChecksum) {
+    super(NAME);
+    myOptions = options;
+    myOriginalChecksum = originalChecksum;
+  }
+
+  /**
+   * @return the marker of the class, or null if the class bytes carry none
+   */
+  public static InstrumentedAttribute read(final byte[] classBytes) throws IOException {
+    final byte[] content = ClassFileHeader.readClassAttribute(classBytes, NAME);
+    if (content == null) {
+      return null;
+    }
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+    final String options = in.readUTF();
+    return new InstrumentedAttribute(options, in.readInt() & 0xFFFFFFFFL);
+  }
+
+  public String getOptions() {
+    return myOptions;
+  }
+
+  public long getOriginalChecksum() {
+    return myOriginalChecksum;
+  }
+
+  @Override
+  protected ByteVector write(final ClassWriter cw, final byte[] code, final int len, final int maxStack, final int maxLocals) {
+    return new ByteVector().putUTF8(myOptions).putInt((int) myOriginalChecksum);
+  }
+}
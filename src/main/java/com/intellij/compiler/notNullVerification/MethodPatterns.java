@@ -0,0 +1,99 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.compiler.notNullVerification;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Set of methods read from a profile file, one entry per line:
+ * <pre>
+ * # exact method: owner, name and descriptor
+ * com.example.Parser.next()Lcom/example/Token;
+ * # any overload of a method; owners may also be written with slashes
+ * com/example/Parser.peek
+ * # all methods of matching classes, '*' matches any sequence of characters
+ * com.example.fast.*
+ * </pre>
+ * Entries without a descriptor match all overloads.
+ */
+public class MethodPatterns {
+  private final Set<String> myMethods = new HashSet<String>();
+  private final List<Pattern> myPatterns = new ArrayList<Pattern>();
+
+  public static MethodPatterns load(final File file) throws IOException {
+    final MethodPatterns patterns = new MethodPatterns();
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.length() > 0 && !line.startsWith("#")) {
+          patterns.add(line);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return patterns;
+  }
+
+  public void add(final String entry) {
+    final int descStart = entry.indexOf('(');
+    final String method = (descStart < 0 ? entry : entry.substring(0, descStart)).replace('/', '.');
+    final String desc = descStart < 0 ? null : entry.substring(descStart);
+    if (entry.indexOf('*') < 0) {
+      myMethods.add(desc == null ? method : method + desc);
+      return;
+    }
+    final StringBuilder regex = new StringBuilder();
+    for (String part : (desc == null ? method : method + desc).split("\\*", -1)) {
+      if (regex.length() > 0) {
+        regex.append(".*");
+      }
+      regex.append(Pattern.quote(part));
+    }
+    if (desc == null) {
+      regex.append("\\(.*");
+    }
+    myPatterns.add(Pattern.compile(regex.toString()));
+  }
+
+  public boolean isEmpty() {
+    return myMethods.isEmpty() && myPatterns.isEmpty();
+  }
+
+  /**
+   * @param owner internal name of the class declaring the method
+   */
+  public boolean matches(final String owner, final String name, final String desc) {
+    final String method = owner.replace('/', '.') + '.' + name;
+    if (myMethods.contains(method) || myMethods.contains(method + desc)) {
+      return true;
+    }
+    for (Pattern pattern : myPatterns) {
+      if (pattern.matcher(method + desc).matches()) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
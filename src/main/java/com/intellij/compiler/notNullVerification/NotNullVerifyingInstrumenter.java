@@ -16,10 +16,10 @@
 
 package com.intellij.compiler.notNullVerification;
 
+import com.intellij.compiler.instrumentation.ClassFileHeader;
 import org.objectweb.asm.*;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
 
 /**
  * @author ven
@@ -39,35 +39,338 @@ public class NotNullVerifyingInstrumenter extends ClassVisitor implements Opcode
   private static final String NULL_ARG_MESSAGE = "Argument %d for @NotNull parameter of %s.%s must not be null";
   private static final String NULL_RESULT_MESSAGE = "@NotNull method %s.%s must not return null";
 
+  private static final String REPORT_METHOD_PREFIX = "$$$reportNull$$$";
+  private static final String REPORT_METHOD_DESC = "(I)Ljava/lang/RuntimeException;";
+  private static final String CHECK_METHOD_PREFIX = "$$$checkNull$$$";
+  private static final String CHECK_METHOD_DESC = "(Ljava/lang/Object;I)V";
+  private static final String BOOTSTRAP_METHOD_PREFIX = "$$$bootstrapNull$$$";
+  private static final String BOOTSTRAP_METHOD_DESC =
+    "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;";
+  private static final String METHOD_HANDLE_CLASS_NAME = "java/lang/invoke/MethodHandle";
+  private static final String METHOD_HANDLES_CLASS_NAME = "java/lang/invoke/MethodHandles";
+  private static final String METHOD_TYPE_CLASS_NAME = "java/lang/invoke/MethodType";
+  private static final String LOOKUP_CLASS_NAME = "java/lang/invoke/MethodHandles$Lookup";
+  private static final String CONSTANT_CALL_SITE_CLASS_NAME = "java/lang/invoke/ConstantCallSite";
+
+  /**
+   * System property that turns the checks emitted in invokedynamic mode into no-ops when set to true at run time.
+   */
+  public static final String DISABLE_CHECKS_PROPERTY = "notnull.checks.disabled";
+
   private String myClassName;
+  private int myVersion;
   private boolean myIsModification = false;
+  private boolean myPreserveFrames = false;
+  private boolean myFramesBroken = false;
+  private String myReportMethodName;
+  private boolean myOutlineChecks = false;
+  private boolean mySharedReturnCheck = false;
+  private Set<String> myCompactMethods;
+  private MethodPatterns myHotMethods;
+  private boolean mySkipHotMethods = false;
+  private final List<String> myHotMethodsFound = new ArrayList<String>();
+  private boolean myInvokeDynamic = false;
+  private String myMarkerOptions;
+  private long myOriginalChecksum;
+  private Map<String, BitSet> myStoredLocals;
+  private int myElidedReturnChecks = 0;
+  private CallSiteIndex myCallSiteIndex;
+  private final List<ElidedCheck> myElidedParameterChecks = new ArrayList<ElidedCheck>();
+  private DelegatingMethods myDelegatingMethods;
+  private int myDelegatedChecks = 0;
+  private boolean myInvokeDynamicUsed = false;
+  private final Map<String, Integer> myReportCodes = new HashMap<String, Integer>();
+  private final List<String> myReportMethods = new ArrayList<String>();
+  private final List<Integer> myReportParams = new ArrayList<Integer>();
   private RuntimeException myPostponedError;
+  private final Set<String> myAnnotatedMethods;
 
   public NotNullVerifyingInstrumenter(final ClassVisitor classVisitor) {
+    this(classVisitor, null);
+  }
+
+  /**
+   * @param annotatedMethods methods (name + descriptor) that may need assertions, as returned by {@link #collectAnnotatedMethods};
+   *                         other methods are passed to {@code classVisitor} untouched, which lets a ClassWriter sharing
+   *                         the ClassReader copy them as is. Null means all methods are visited.
+   */
+  public NotNullVerifyingInstrumenter(final ClassVisitor classVisitor, final Set<String> annotatedMethods) {
     super(Opcodes.ASM4, classVisitor);
+    myAnnotatedMethods = annotatedMethods;
+  }
+
+  /**
+   * Makes the null checks branch to failure blocks placed after the original code instead of branching around inline
+   * throw sequences. Existing stack map frames then stay valid and only the failure blocks need new ones, which are
+   * known without analysing the method, so the class can be written without {@code ClassWriter.COMPUTE_FRAMES}.
+   * The frame of the failure block for results holds just the returned value, so a class that returns with more on
+   * the operand stack gets invalid frames, see {@link #isFramesBroken}.
+   */
+  public void setPreserveFrames(final boolean preserveFrames) {
+    myPreserveFrames = preserveFrames;
+  }
+
+  /**
+   * Sets the name of the private static synthetic method generated for outlined checks, which builds the exception
+   * for a small int code and returns it to the call site to throw. Interfaces, which can not have private static
+   * methods, get no report method and inline checks.
+   *
+   * @param reportMethodName name of the generated method, see {@link #getFreeReportMethodName}; null to inline all checks
+   */
+  public void setReportMethodName(final String reportMethodName) {
+    myReportMethodName = reportMethodName;
+  }
+
+  /**
+   * Makes every failing check call the report method instead of inlining the exception construction and a
+   * formatted message constant at every check. The message is only built when a check fails.
+   */
+  public void setOutlineChecks(final boolean outlineChecks) {
+    myOutlineChecks = outlineChecks;
+  }
+
+  /**
+   * Makes every checked {@code ARETURN} of a method jump to a single block appended after the original code, which
+   * checks the value and returns it. The added code no longer grows with the number of returns, at the cost of a jump
+   * per return. Assumes that the operand stack holds nothing but the returned value at {@code ARETURN}, as it does in
+   * javac output.
+   */
+  public void setSharedReturnCheck(final boolean sharedReturnCheck) {
+    mySharedReturnCheck = sharedReturnCheck;
+  }
+
+  /**
+   * @param compactMethods methods (name + descriptor) that get outlined checks and a shared return check, e.g. because
+   *                       the regular checks make them too long; outlining needs a report method name. Invokedynamic
+   *                       checks, which are as short, take precedence over outlined ones
+   */
+  public void setCompactMethods(final Set<String> compactMethods) {
+    myCompactMethods = compactMethods;
+  }
+
+  /**
+   * @param hotMethods methods that get no checks ({@code skip}) or outlined checks; invokedynamic checks, which are as
+   *                   short, take precedence over outlined ones
+   */
+  public void setHotMethods(final MethodPatterns hotMethods, final boolean skip) {
+    myHotMethods = hotMethods;
+    mySkipHotMethods = skip;
+  }
+
+  /**
+   * @return methods that matched the hot methods and would otherwise have had regular checks, as {@code owner.name desc};
+   *         not skipped ones only when their checks are not invokedynamic call sites
+   */
+  public List<String> getHotMethodsFound() {
+    return myHotMethodsFound;
+  }
+
+  /**
+   * Makes the checks {@code invokedynamic} instructions bound by a generated bootstrap method, which links them either
+   * to a generated check method or, when the {@link #DISABLE_CHECKS_PROPERTY} system property is true, to a no-op.
+   * Call sites are constant, so the JIT inlines the check or drops it entirely. The inserted code has no branches, so
+   * existing stack map frames stay valid. Needs a report method name and applies to Java 7+ classes only, other
+   * classes get the regular checks.
+   */
+  public void setInvokeDynamic(final boolean invokeDynamic) {
+    myInvokeDynamic = invokeDynamic;
+  }
+
+  /**
+   * Leaves out the result checks of @NotNull methods where the returned value is known to be non-null: {@code this},
+   * new objects and arrays, String and class constants, and @NotNull parameters checked on entry, provided the method
+   * never stores to their local variables.
+   *
+   * @param storedLocals local variables every method with a @NotNull result stores references to, see
+   *                     {@link #collectAnnotatedMethods(ClassReader, Map, DelegatingMethods)}; null to check every
+   *                     returned value
+   */
+  public void setStoredLocals(final Map<String, BitSet> storedLocals) {
+    myStoredLocals = storedLocals;
+  }
+
+  /**
+   * @return number of result checks left out as they could never fail
+   */
+  public int getElidedReturnChecks() {
+    return myElidedReturnChecks;
+  }
+
+  /**
+   * Leaves out the parameter checks of private and package-private methods whose callers all pass non-null values.
+   *
+   * @param callSiteIndex call sites of all classes that may call the methods of this class; null to check all parameters
+   */
+  public void setCallSiteIndex(final CallSiteIndex callSiteIndex) {
+    myCallSiteIndex = callSiteIndex;
+  }
+
+  /**
+   * @return parameter checks left out as all callers pass non-null values
+   */
+  public List<ElidedCheck> getElidedParameterChecks() {
+    return myElidedParameterChecks;
+  }
+
+  /**
+   * Leaves the checks of methods that only delegate to another method of the class, such as bridge methods, to the
+   * target when it makes the same checks with the same messages.
+   *
+   * @param delegatingMethods delegating methods of this class, see {@link #collectAnnotatedMethods(ClassReader, Map, DelegatingMethods)};
+   *                          null to check all delegating methods too
+   */
+  public void setDelegatingMethods(final DelegatingMethods delegatingMethods) {
+    myDelegatingMethods = delegatingMethods;
+  }
+
+  /**
+   * @return number of checks left to the target of a delegating method
+   */
+  public int getDelegatedChecks() {
+    return myDelegatedChecks;
+  }
+
+  /**
+   * @return true if frames were to be preserved, but a checked {@code ARETURN} may have more than the returned value
+   *         on the operand stack; the class then has to be instrumented again without preserving frames
+   */
+  public boolean isFramesBroken() {
+    return myFramesBroken;
+  }
+
+  /**
+   * Makes modified classes carry an {@link InstrumentedAttribute} with the given options, so that they are recognized
+   * as instrumented and not instrumented again.
+   *
+   * @param originalChecksum CRC-32 of the class bytes being instrumented
+   */
+  public void setMarker(final String markerOptions, final long originalChecksum) {
+    myMarkerOptions = markerOptions;
+    myOriginalChecksum = originalChecksum;
+  }
+
+  /**
+   * @return name for the report method that is not used in the given class
+   */
+  public static String getFreeReportMethodName(final byte[] classBytes) {
+    int index = 0;
+    while (ClassFileHeader.containsUtf8(classBytes, REPORT_METHOD_PREFIX + index)) {
+      index++;
+    }
+    return REPORT_METHOD_PREFIX + index;
   }
 
   public boolean isModification() {
     return myIsModification;
   }
 
+  /**
+   * Cheap check on the raw class bytes: a class whose constant pool does not mention the @NotNull annotation
+   * can not be modified by this instrumenter.
+   */
+  public static boolean mayNeedInstrumentation(final byte[] classBytes) {
+    return ClassFileHeader.containsUtf8(classBytes, NOT_NULL_TYPE);
+  }
+
   @Override
   public void visit(final int version, final int access, final String name, final String signature, final String superName, final String[] interfaces) {
     super.visit(version, access, name, signature, superName, interfaces);
     myClassName = name;
+    myVersion = version;
+    if ((access & ACC_INTERFACE) != 0) {
+      myReportMethodName = null;
+    }
+    if (myReportMethodName == null || version < V1_7 || version == V1_1) {
+      myInvokeDynamic = false;
+    }
+  }
+
+  /**
+   * Finds methods with @NotNull on a reference parameter or a reference return type, reading no code.
+   */
+  public static Set<String> collectAnnotatedMethods(final ClassReader reader) {
+    return collectAnnotatedMethods(reader, null, null);
+  }
+
+  /**
+   * Finds methods with @NotNull on a reference parameter or a reference return type.
+   *
+   * @param storedLocals if not null, receives the local variables that the code of every method with a @NotNull
+   *                     result stores references to, as needed by {@link #setStoredLocals}; the code is read then
+   * @param delegatingMethods if not null, is passed the class in the same pass, as needed by {@link #setDelegatingMethods};
+   *                          the code is read then
+   */
+  public static Set<String> collectAnnotatedMethods(final ClassReader reader, final Map<String, BitSet> storedLocals,
+                                                    final DelegatingMethods delegatingMethods) {
+    final Set<String> methods = new HashSet<String>();
+    final boolean readCode = storedLocals != null || delegatingMethods != null;
+    reader.accept(new ClassVisitor(Opcodes.ASM4, delegatingMethods) {
+      @Override
+      public MethodVisitor visitMethod(final int access, final String name, final String desc, final String signature, final String[] exceptions) {
+        return new MethodVisitor(Opcodes.ASM4, super.visitMethod(access, name, desc, signature, exceptions)) {
+          private BitSet myStores;
+
+          @Override
+          public AnnotationVisitor visitParameterAnnotation(final int parameter, final String anno, final boolean visible) {
+            super.visitParameterAnnotation(parameter, anno, visible);
+            if (anno.equals(NOT_NULL_TYPE) && isReferenceType(Type.getArgumentTypes(desc)[parameter])) {
+              methods.add(name + desc);
+            }
+            return null;
+          }
+
+          @Override
+          public AnnotationVisitor visitAnnotation(final String anno, final boolean visible) {
+            super.visitAnnotation(anno, visible);
+            if (anno.equals(NOT_NULL_TYPE) && isReferenceType(Type.getReturnType(desc))) {
+              methods.add(name + desc);
+              if (storedLocals != null) {
+                myStores = new BitSet();
+                storedLocals.put(name + desc, myStores);
+              }
+            }
+            return null;
+          }
+
+          @Override
+          public void visitVarInsn(final int opcode, final int var) {
+            if (opcode == ASTORE && myStores != null) {
+              myStores.set(var);
+            }
+            super.visitVarInsn(opcode, var);
+          }
+        };
+      }
+    }, readCode ? ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES : ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    return methods;
   }
 
   @Override
   public MethodVisitor visitMethod(final int access, final String name, final String desc, final String signature, final String[] exceptions) {
+    final MethodVisitor v = cv.visitMethod(access, name, desc, signature, exceptions);
+    if (myAnnotatedMethods != null && !myAnnotatedMethods.contains(name + desc)) {
+      return v;
+    }
     final Type[] args = Type.getArgumentTypes(desc);
     final Type returnType = Type.getReturnType(desc);
-    final MethodVisitor v = cv.visitMethod(access, name, desc, signature, exceptions);
-    return new MethodVisitor(Opcodes.ASM4, v) {
+    final boolean hot = myHotMethods != null && myHotMethods.matches(myClassName, name, desc);
+    final boolean compact = myCompactMethods != null && myCompactMethods.contains(name + desc);
+    final BitSet stores = myStoredLocals != null ? myStoredLocals.get(name + desc) : null;
+    final NullnessTracker tracker = stores != null ? new NullnessTracker(v) : null;
+    final MethodVisitor next = tracker != null ? tracker : v;
+    final StackDepthTracker depth = myPreserveFrames || mySharedReturnCheck || compact ? new StackDepthTracker(next) : null;
+    return new MethodVisitor(Opcodes.ASM4, depth != null ? depth : next) {
 
       private final List<Integer> myNotNullParams = new ArrayList<Integer>();
       private int mySyntheticCount = 0;
       private boolean myIsNotNull = false;
       private Label myStartGeneratedCodeLabel;
+      private final List<Label> myFailureLabels = new ArrayList<Label>();
+      private final List<Integer> myFailureParams = new ArrayList<Integer>();
+      private Label myReturnFailureLabel;
+      private Label mySharedReturnLabel;
+      private final boolean myOutlined = myReportMethodName != null && (myOutlineChecks || hot || compact);
+      private final boolean myShared = mySharedReturnCheck || compact;
 
       @Override
       public AnnotationVisitor visitParameterAnnotation(final int parameter, final String anno, final boolean visible) {
@@ -93,21 +396,84 @@ public class NotNullVerifyingInstrumenter extends ClassVisitor implements Opcode
 
       @Override
       public void visitCode() {
+        if (hot && (myNotNullParams.size() > 0 || myIsNotNull) && (mySkipHotMethods || !myInvokeDynamic)) {
+          myHotMethodsFound.add(myClassName + "." + name + desc);
+          if (mySkipHotMethods) {
+            myNotNullParams.clear();
+            myIsNotNull = false;
+          }
+        }
+        if (myCallSiteIndex != null) {
+          for (Iterator<Integer> iterator = myNotNullParams.iterator(); iterator.hasNext(); ) {
+            final int param = iterator.next();
+            if (myCallSiteIndex.isNotNullAtAllCalls(myClassName, access, name, desc, param)) {
+              myElidedParameterChecks.add(new ElidedCheck(myClassName, name, desc, param - mySyntheticCount));
+              iterator.remove();
+            }
+          }
+        }
+        final String target = myDelegatingMethods != null ? myDelegatingMethods.getTarget(name + desc) : null;
+        if (target != null) {
+          leaveChecksToTarget(target);
+        }
         if (myNotNullParams.size() > 0) {
           myStartGeneratedCodeLabel = new Label();
           mv.visitLabel(myStartGeneratedCodeLabel);
         }
+        if (tracker != null && (access & ACC_STATIC) == 0 && !stores.get(0)) {
+          tracker.setNotNullLocal(0);
+        }
         for (Integer param : myNotNullParams) {
           int var = ((access & ACC_STATIC) == 0) ? 1 : 0;
           for (int i = 0; i < param; ++i) {
             var += args[i].getSize();
           }
+          if (tracker != null && !stores.get(var)) {
+            tracker.setNotNullLocal(var);
+          }
           mv.visitVarInsn(ALOAD, var);
 
+          if (myInvokeDynamic) {
+            generateDynamicCheck(param - mySyntheticCount);
+            continue;
+          }
+          if (myPreserveFrames) {
+            final Label failure = new Label();
+            mv.visitJumpInsn(IFNULL, failure);
+            myFailureLabels.add(failure);
+            myFailureParams.add(param - mySyntheticCount);
+            continue;
+          }
           Label end = new Label();
           mv.visitJumpInsn(IFNONNULL, end);
 
-          generateThrow(IAE_CLASS_NAME, String.format(NULL_ARG_MESSAGE, param - mySyntheticCount, myClassName, name), end);
+          generateFailure(param - mySyntheticCount);
+          mv.visitLabel(end);
+        }
+      }
+
+      /**
+       * Drops the checks that the target of this delegating method makes with the same messages. The target keeps
+       * its checks unless it is a skipped hot method or a parameter is non-null at all its calls, this one included.
+       */
+      private void leaveChecksToTarget(final String target) {
+        final String targetName = target.substring(0, target.indexOf('('));
+        final String targetDesc = target.substring(targetName.length());
+        if (mySkipHotMethods && myHotMethods != null && myHotMethods.matches(myClassName, targetName, targetDesc)) {
+          return;
+        }
+        final int targetAccess = myDelegatingMethods.getAccess(target);
+        for (Iterator<Integer> iterator = myNotNullParams.iterator(); iterator.hasNext(); ) {
+          final int param = iterator.next();
+          if (myDelegatingMethods.isParameterCheckedByTarget(name + desc, param)
+              && (myCallSiteIndex == null || !myCallSiteIndex.isNotNullAtAllCalls(myClassName, targetAccess, targetName, targetDesc, param))) {
+            myDelegatedChecks++;
+            iterator.remove();
+          }
+        }
+        if (myIsNotNull && myDelegatingMethods.isResultCheckedByTarget(name + desc)) {
+          myDelegatedChecks++;
+          myIsNotNull = false;
         }
       }
 
@@ -121,32 +487,138 @@ public class NotNullVerifyingInstrumenter extends ClassVisitor implements Opcode
 
       @Override
       public void visitInsn(int opcode) {
-        if (opcode == ARETURN) {
-          if (myIsNotNull) {
+        if (opcode == ARETURN && myIsNotNull && tracker != null && tracker.isTopNotNull()) {
+          myElidedReturnChecks++;
+        } else if (opcode == ARETURN && myIsNotNull && myShared && depth.getDepth() == 1) {
+          if (mySharedReturnLabel == null) {
+            mySharedReturnLabel = new Label();
+          }
+          mv.visitJumpInsn(GOTO, mySharedReturnLabel);
+          return;
+        } else if (opcode == ARETURN) {
+          if (myIsNotNull && myInvokeDynamic) {
+            mv.visitInsn(DUP);
+            generateDynamicCheck(-1);
+          } else if (myIsNotNull && myPreserveFrames) {
+            if (depth.getDepth() != 1) {
+              myFramesBroken = true;
+            }
+            if (myReturnFailureLabel == null) {
+              myReturnFailureLabel = new Label();
+            }
+            mv.visitInsn(DUP);
+            mv.visitJumpInsn(IFNULL, myReturnFailureLabel);
+          } else if (myIsNotNull) {
             mv.visitInsn(DUP);
             final Label skipLabel = new Label();
             mv.visitJumpInsn(IFNONNULL, skipLabel);
-            generateThrow(ISE_CLASS_NAME, String.format(NULL_RESULT_MESSAGE, myClassName, name), skipLabel);
+            generateFailure(-1);
+            mv.visitLabel(skipLabel);
           }
         }
 
         mv.visitInsn(opcode);
       }
 
-      private void generateThrow(final String exceptionClass, final String descr, final Label end) {
+      /**
+       * @param param index of the null parameter as reported in the message, or -1 for a null result
+       */
+      private void generateFailure(final int param) {
+        if (myOutlined) {
+          pushInt(mv, getReportCode(name, param));
+          mv.visitMethodInsn(INVOKESTATIC, myClassName, myReportMethodName, REPORT_METHOD_DESC);
+          mv.visitInsn(ATHROW);
+
+          myIsModification = true;
+          processPostponedErrors();
+        } else if (param < 0) {
+          generateThrow(ISE_CLASS_NAME, String.format(NULL_RESULT_MESSAGE, myClassName, name));
+        } else {
+          generateThrow(IAE_CLASS_NAME, String.format(NULL_ARG_MESSAGE, param, myClassName, name));
+        }
+      }
+
+      /**
+       * Consumes the checked value on top of the stack.
+       */
+      private void generateDynamicCheck(final int param) {
+        pushInt(mv, getReportCode(name, param));
+        final String suffix = myReportMethodName.substring(REPORT_METHOD_PREFIX.length());
+        final Handle bootstrap = new Handle(H_INVOKESTATIC, myClassName, BOOTSTRAP_METHOD_PREFIX + suffix, BOOTSTRAP_METHOD_DESC);
+        mv.visitInvokeDynamicInsn(CHECK_METHOD_PREFIX + suffix, CHECK_METHOD_DESC, bootstrap);
+
+        myInvokeDynamicUsed = true;
+        myIsModification = true;
+        processPostponedErrors();
+      }
+
+      private void generateThrow(final String exceptionClass, final String descr) {
         mv.visitTypeInsn(NEW, exceptionClass);
         mv.visitInsn(DUP);
         mv.visitLdcInsn(descr);
         mv.visitMethodInsn(INVOKESPECIAL, exceptionClass, CONSTRUCTOR_NAME, EXCEPTION_INIT_SIGNATURE);
         mv.visitInsn(ATHROW);
-        mv.visitLabel(end);
 
         myIsModification = true;
         processPostponedErrors();
       }
 
+      /**
+       * Appends the block all checked returns jump to when the return check is shared. The value to return is the only
+       * thing on the stack there, and no locals are needed; returns with more on the stack are checked in place.
+       */
+      private void generateSharedReturn() {
+        mv.visitLabel(mySharedReturnLabel);
+        if (myPreserveFrames && myVersion >= V1_6 && myVersion != V1_1) {
+          final String type = returnType.getSort() == Type.ARRAY ? returnType.getDescriptor() : returnType.getInternalName();
+          mv.visitFrame(F_FULL, 0, new Object[0], 1, new Object[]{type});
+        }
+        mv.visitInsn(DUP);
+        if (myInvokeDynamic) {
+          generateDynamicCheck(-1);
+        } else if (myPreserveFrames) {
+          if (myReturnFailureLabel == null) {
+            myReturnFailureLabel = new Label();
+          }
+          mv.visitJumpInsn(IFNULL, myReturnFailureLabel);
+        } else {
+          final Label skipLabel = new Label();
+          mv.visitJumpInsn(IFNONNULL, skipLabel);
+          generateFailure(-1);
+          mv.visitLabel(skipLabel);
+        }
+        mv.visitInsn(ARETURN);
+      }
+
+      /**
+       * Appends the failure blocks after the original code. The frames of these blocks keep no locals, which any
+       * incoming frame is assignable to, except for the uninitialized this of a constructor that has to be kept.
+       */
+      private void generateFailureBlocks() {
+        final boolean frames = myVersion >= V1_6 && myVersion != V1_1;
+        final Object[] locals = CONSTRUCTOR_NAME.equals(name) ? new Object[]{UNINITIALIZED_THIS} : new Object[0];
+        for (int i = 0; i < myFailureLabels.size(); i++) {
+          mv.visitLabel(myFailureLabels.get(i));
+          if (frames) {
+            mv.visitFrame(F_FULL, locals.length, locals, 0, new Object[0]);
+          }
+          generateFailure(myFailureParams.get(i));
+        }
+        if (myReturnFailureLabel != null) {
+          mv.visitLabel(myReturnFailureLabel);
+          if (frames) {
+            mv.visitFrame(F_FULL, locals.length, locals, 1, new Object[]{"java/lang/Object"});
+          }
+          generateFailure(-1);
+        }
+      }
+
       @Override
       public void visitMaxs(final int maxStack, final int maxLocals) {
+        if (mySharedReturnLabel != null) {
+          generateSharedReturn();
+        }
+        generateFailureBlocks();
         try {
           super.visitMaxs(maxStack, maxLocals);
         } catch (Throwable e) {
@@ -156,6 +628,208 @@ public class NotNullVerifyingInstrumenter extends ClassVisitor implements Opcode
     };
   }
 
+  @Override
+  public void visitEnd() {
+    if (!myReportMethods.isEmpty()) {
+      generateReportMethod();
+    }
+    if (myInvokeDynamicUsed) {
+      generateCheckMethod();
+      generateBootstrapMethod();
+    }
+    if (myIsModification && myMarkerOptions != null) {
+      cv.visitAttribute(new InstrumentedAttribute(myMarkerOptions, myOriginalChecksum));
+    }
+    super.visitEnd();
+  }
+
+  private int getReportCode(final String methodName, final int param) {
+    final String key = methodName + ":" + param;
+    Integer code = myReportCodes.get(key);
+    if (code == null) {
+      code = myReportMethods.size();
+      myReportCodes.put(key, code);
+      myReportMethods.add(methodName);
+      myReportParams.add(param);
+    }
+    return code;
+  }
+
+  /**
+   * Generates {@code private static RuntimeException $$$reportNull$$$N(int code)}, which picks the method name and
+   * parameter index for the code with a tableswitch and formats the message of the matching exception.
+   */
+  private void generateReportMethod() {
+    final MethodVisitor mv = cv.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, myReportMethodName, REPORT_METHOD_DESC, null, null);
+    final boolean frames = myVersion >= V1_6 && myVersion != V1_1;
+    final Object[] caseLocals = new Object[]{INTEGER};
+    final Object[] formatLocals = new Object[]{INTEGER, STRING_CLASS_NAME, INTEGER};
+    mv.visitCode();
+
+    final int count = myReportMethods.size();
+    final Label[] cases = new Label[count];
+    for (int i = 0; i < count; i++) {
+      cases[i] = new Label();
+    }
+    final Label format = new Label();
+    mv.visitVarInsn(ILOAD, 0);
+    mv.visitTableSwitchInsn(0, count - 1, cases[count - 1], cases);
+    for (int i = 0; i < count; i++) {
+      mv.visitLabel(cases[i]);
+      if (frames) {
+        mv.visitFrame(F_FULL, caseLocals.length, caseLocals, 0, new Object[0]);
+      }
+      mv.visitLdcInsn(myReportMethods.get(i));
+      mv.visitVarInsn(ASTORE, 1);
+      pushInt(mv, myReportParams.get(i));
+      mv.visitVarInsn(ISTORE, 2);
+      mv.visitJumpInsn(GOTO, format);
+    }
+
+    mv.visitLabel(format);
+    if (frames) {
+      mv.visitFrame(F_FULL, formatLocals.length, formatLocals, 0, new Object[0]);
+    }
+    final Label argument = new Label();
+    mv.visitVarInsn(ILOAD, 2);
+    mv.visitJumpInsn(IFGE, argument);
+    generateFormattedException(mv, ISE_CLASS_NAME, NULL_RESULT_MESSAGE, false);
+
+    mv.visitLabel(argument);
+    if (frames) {
+      mv.visitFrame(F_FULL, formatLocals.length, formatLocals, 0, new Object[0]);
+    }
+    generateFormattedException(mv, IAE_CLASS_NAME, NULL_ARG_MESSAGE, true);
+
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+  }
+
+  /**
+   * Generates {@code private static void $$$checkNull$$$N(Object value, int code)}, which throws the exception created
+   * by the report method when the value is null.
+   */
+  private void generateCheckMethod() {
+    final String suffix = myReportMethodName.substring(REPORT_METHOD_PREFIX.length());
+    final MethodVisitor mv = cv.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, CHECK_METHOD_PREFIX + suffix, CHECK_METHOD_DESC, null, null);
+    final Object[] locals = new Object[]{"java/lang/Object", INTEGER};
+    mv.visitCode();
+    final Label failure = new Label();
+    mv.visitVarInsn(ALOAD, 0);
+    mv.visitJumpInsn(IFNULL, failure);
+    mv.visitInsn(RETURN);
+    mv.visitLabel(failure);
+    mv.visitFrame(F_FULL, locals.length, locals, 0, new Object[0]);
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitMethodInsn(INVOKESTATIC, myClassName, myReportMethodName, REPORT_METHOD_DESC);
+    mv.visitInsn(ATHROW);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+  }
+
+  /**
+   * Generates the bootstrap method of the checks, equivalent to
+   * <pre>
+   * private static CallSite $$$bootstrapNull$$$N(Lookup lookup, String name, MethodType type) {
+   *   MethodHandle check = Boolean.getBoolean(DISABLE_CHECKS_PROPERTY)
+   *                        ? MethodHandles.dropArguments(MethodHandles.identity(Object.class).asType(type.dropParameterTypes(1, 2)), 1, int.class)
+   *                        : lookup.findStatic(ThisClass.class, name, type);
+   *   return new ConstantCallSite(check);
+   * }
+   * </pre>
+   */
+  private void generateBootstrapMethod() {
+    final String suffix = myReportMethodName.substring(REPORT_METHOD_PREFIX.length());
+    final MethodVisitor mv = cv.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, BOOTSTRAP_METHOD_PREFIX + suffix, BOOTSTRAP_METHOD_DESC, null, null);
+    final Object[] locals = new Object[]{LOOKUP_CLASS_NAME, STRING_CLASS_NAME, METHOD_TYPE_CLASS_NAME};
+    final String handleDesc = "L" + METHOD_HANDLE_CLASS_NAME + ";";
+    mv.visitCode();
+    final Label enabled = new Label();
+    final Label create = new Label();
+    mv.visitLdcInsn(DISABLE_CHECKS_PROPERTY);
+    mv.visitMethodInsn(INVOKESTATIC, "java/lang/Boolean", "getBoolean", "(Ljava/lang/String;)Z");
+    mv.visitJumpInsn(IFEQ, enabled);
+
+    mv.visitLdcInsn(Type.getObjectType("java/lang/Object"));
+    mv.visitMethodInsn(INVOKESTATIC, METHOD_HANDLES_CLASS_NAME, "identity", "(Ljava/lang/Class;)" + handleDesc);
+    mv.visitVarInsn(ALOAD, 2);
+    mv.visitInsn(ICONST_1);
+    mv.visitInsn(ICONST_2);
+    mv.visitMethodInsn(INVOKEVIRTUAL, METHOD_TYPE_CLASS_NAME, "dropParameterTypes", "(II)L" + METHOD_TYPE_CLASS_NAME + ";");
+    mv.visitMethodInsn(INVOKEVIRTUAL, METHOD_HANDLE_CLASS_NAME, "asType", "(L" + METHOD_TYPE_CLASS_NAME + ";)" + handleDesc);
+    mv.visitInsn(ICONST_1);
+    mv.visitInsn(ICONST_1);
+    mv.visitTypeInsn(ANEWARRAY, "java/lang/Class");
+    mv.visitInsn(DUP);
+    mv.visitInsn(ICONST_0);
+    mv.visitFieldInsn(GETSTATIC, "java/lang/Integer", "TYPE", "Ljava/lang/Class;");
+    mv.visitInsn(AASTORE);
+    mv.visitMethodInsn(INVOKESTATIC, METHOD_HANDLES_CLASS_NAME, "dropArguments", "(" + handleDesc + "I[Ljava/lang/Class;)" + handleDesc);
+    mv.visitJumpInsn(GOTO, create);
+
+    mv.visitLabel(enabled);
+    mv.visitFrame(F_FULL, locals.length, locals, 0, new Object[0]);
+    mv.visitVarInsn(ALOAD, 0);
+    mv.visitLdcInsn(Type.getObjectType(myClassName));
+    mv.visitVarInsn(ALOAD, 1);
+    mv.visitVarInsn(ALOAD, 2);
+    mv.visitMethodInsn(INVOKEVIRTUAL, LOOKUP_CLASS_NAME, "findStatic",
+                       "(Ljava/lang/Class;Ljava/lang/String;L" + METHOD_TYPE_CLASS_NAME + ";)" + handleDesc);
+
+    mv.visitLabel(create);
+    mv.visitFrame(F_FULL, locals.length, locals, 1, new Object[]{METHOD_HANDLE_CLASS_NAME});
+    mv.visitVarInsn(ASTORE, 3);
+    mv.visitTypeInsn(NEW, CONSTANT_CALL_SITE_CLASS_NAME);
+    mv.visitInsn(DUP);
+    mv.visitVarInsn(ALOAD, 3);
+    mv.visitMethodInsn(INVOKESPECIAL, CONSTANT_CALL_SITE_CLASS_NAME, CONSTRUCTOR_NAME, "(" + handleDesc + ")V");
+    mv.visitInsn(ARETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+  }
+
+  /**
+   * Returns {@code new exceptionClass(String.format(pattern, [param,] className, methodName))} from the report method.
+   */
+  private void generateFormattedException(final MethodVisitor mv, final String exceptionClass, final String pattern, final boolean withParam) {
+    mv.visitTypeInsn(NEW, exceptionClass);
+    mv.visitInsn(DUP);
+    mv.visitLdcInsn(pattern);
+    pushInt(mv, withParam ? 3 : 2);
+    mv.visitTypeInsn(ANEWARRAY, "java/lang/Object");
+    int index = 0;
+    if (withParam) {
+      mv.visitInsn(DUP);
+      pushInt(mv, index++);
+      mv.visitVarInsn(ILOAD, 2);
+      mv.visitMethodInsn(INVOKESTATIC, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;");
+      mv.visitInsn(AASTORE);
+    }
+    mv.visitInsn(DUP);
+    pushInt(mv, index++);
+    mv.visitLdcInsn(myClassName);
+    mv.visitInsn(AASTORE);
+    mv.visitInsn(DUP);
+    pushInt(mv, index);
+    mv.visitVarInsn(ALOAD, 1);
+    mv.visitInsn(AASTORE);
+    mv.visitMethodInsn(INVOKESTATIC, STRING_CLASS_NAME, "format", "(Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/String;");
+    mv.visitMethodInsn(INVOKESPECIAL, exceptionClass, CONSTRUCTOR_NAME, EXCEPTION_INIT_SIGNATURE);
+    mv.visitInsn(ARETURN);
+  }
+
+  private static void pushInt(final MethodVisitor mv, final int value) {
+    if (value >= -1 && value <= 5) {
+      mv.visitInsn(ICONST_0 + value);
+    } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+      mv.visitIntInsn(BIPUSH, value);
+    } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+      mv.visitIntInsn(SIPUSH, value);
+    } else {
+      mv.visitLdcInsn(value);
+    }
+  }
+
   private static boolean isReferenceType(final Type type) {
     return type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY;
   }
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.compiler.notNullVerification;
+
+import org.objectweb.asm.*;
+
+import java.util.BitSet;
+
+/**
+ * Follows the instructions passing through it and tells whether the value on top of the operand stack is known to be
+ * non-null: {@code this}, a new object or array, a String, class or method handle constant, or a local variable
+ * declared non-null, possibly copied with {@code DUP} or cast.
+ * <p/>
+ * Only the values pushed since the last label are tracked, deeper stack slots are unknown, so that no knowledge
+ * flows across jumps. Instructions that are not modelled forget all tracked values, which is always safe.
+ * <p/>
+ * A tracked value is {@link #NOT_NULL}, {@link #UNKNOWN} or the index of the local variable it was loaded from, for
+ * callers that learn only later whether that variable is non-null.
+ */
+public class NullnessTracker extends MethodVisitor implements Opcodes {
+  public static final int UNKNOWN = -1;
+  public static final int NOT_NULL = -2;
+
+  private final BitSet myNotNullLocals = new BitSet();
+  private int[] myStack = new int[8];
+  private int mySize = 0;
+
+  public NullnessTracker(final MethodVisitor mv) {
+    super(Opcodes.ASM4, mv);
+  }
+
+  /**
+   * Declares that the local variable holds a non-null reference everywhere in the method, i.e. that it is
+   * initialized with one and the code never stores to it.
+   */
+  public void setNotNullLocal(final int index) {
+    myNotNullLocals.set(index);
+  }
+
+  public boolean isTopNotNull() {
+    return getValue(0) == NOT_NULL;
+  }
+
+  /**
+   * @param depth 0 for the top of the stack, 1 for the value below it, and so on; long and double values take two
+   * @return {@link #NOT_NULL}, {@link #UNKNOWN} or the local variable the value was loaded from
+   */
+  public int getValue(final int depth) {
+    return depth < mySize ? myStack[mySize - 1 - depth] : UNKNOWN;
+  }
+
+  @Override
+  public void visitInsn(final int opcode) {
+    switch (opcode) {
+      case NOP:
+        break;
+      case ACONST_NULL:
+      case ICONST_M1:
+      case ICONST_0:
+      case ICONST_1:
+      case ICONST_2:
+      case ICONST_3:
+      case ICONST_4:
+      case ICONST_5:
+      case FCONST_0:
+      case FCONST_1:
+      case FCONST_2:
+        push(UNKNOWN);
+        break;
+      case LCONST_0:
+      case LCONST_1:
+      case DCONST_0:
+      case DCONST_1:
+        push(UNKNOWN);
+        push(UNKNOWN);
+        break;
+      case POP:
+        pop(1);
+        break;
+      case POP2:
+        pop(2);
+        break;
+      case DUP:
+        push(getValue(0));
+        break;
+      default:
+        clear();
+    }
+    super.visitInsn(opcode);
+  }
+
+  @Override
+  public void visitIntInsn(final int opcode, final int operand) {
+    if (opcode == NEWARRAY) {
+      pop(1);
+      push(NOT_NULL);
+    } else {
+      push(UNKNOWN); // BIPUSH, SIPUSH
+    }
+    super.visitIntInsn(opcode, operand);
+  }
+
+  @Override
+  public void visitVarInsn(final int opcode, final int var) {
+    switch (opcode) {
+      case ALOAD:
+        push(myNotNullLocals.get(var) ? NOT_NULL : var);
+        break;
+      case ILOAD:
+      case FLOAD:
+        push(UNKNOWN);
+        break;
+      case LLOAD:
+      case DLOAD:
+        push(UNKNOWN);
+        push(UNKNOWN);
+        break;
+      case ISTORE:
+      case FSTORE:
+      case ASTORE:
+        pop(1);
+        break;
+      case LSTORE:
+      case DSTORE:
+        pop(2);
+        break;
+      default:
+        clear(); // RET
+    }
+    super.visitVarInsn(opcode, var);
+  }
+
+  @Override
+  public void visitTypeInsn(final int opcode, final String type) {
+    switch (opcode) {
+      case NEW:
+        push(NOT_NULL);
+        break;
+      case ANEWARRAY:
+        pop(1);
+        push(NOT_NULL);
+        break;
+      case CHECKCAST:
+        break;
+      default:
+        clear(); // INSTANCEOF
+    }
+    super.visitTypeInsn(opcode, type);
+  }
+
+  @Override
+  public void visitFieldInsn(final int opcode, final String owner, final String name, final String desc) {
+    final int size = Type.getType(desc).getSize();
+    switch (opcode) {
+      case GETSTATIC:
+        pushUnknown(size);
+        break;
+      case PUTSTATIC:
+        pop(size);
+        break;
+      case GETFIELD:
+        pop(1);
+        pushUnknown(size);
+        break;
+      default:
+        pop(1 + size); // PUTFIELD
+    }
+    super.visitFieldInsn(opcode, owner, name, desc);
+  }
+
+  @Override
+  public void visitMethodInsn(final int opcode, final String owner, final String name, final String desc) {
+    invoke(desc, opcode != INVOKESTATIC);
+    super.visitMethodInsn(opcode, owner, name, desc);
+  }
+
+  @Override
+  public void visitInvokeDynamicInsn(final String name, final String desc, final Handle bsm, final Object... bsmArgs) {
+    invoke(desc, false);
+    super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+  }
+
+  @Override
+  public void visitLdcInsn(final Object cst) {
+    if (cst instanceof Long || cst instanceof Double) {
+      push(UNKNOWN);
+      push(UNKNOWN);
+    } else {
+      push(cst instanceof String || cst instanceof Type || cst instanceof Handle ? NOT_NULL : UNKNOWN);
+    }
+    super.visitLdcInsn(cst);
+  }
+
+  @Override
+  public void visitMultiANewArrayInsn(final String desc, final int dims) {
+    pop(dims);
+    push(NOT_NULL);
+    super.visitMultiANewArrayInsn(desc, dims);
+  }
+
+  @Override
+  public void visitLabel(final Label label) {
+    clear();
+    super.visitLabel(label);
+  }
+
+  @Override
+  public void visitJumpInsn(final int opcode, final Label label) {
+    clear();
+    super.visitJumpInsn(opcode, label);
+  }
+
+  @Override
+  public void visitTableSwitchInsn(final int min, final int max, final Label dflt, final Label... labels) {
+    clear();
+    super.visitTableSwitchInsn(min, max, dflt, labels);
+  }
+
+  @Override
+  public void visitLookupSwitchInsn(final Label dflt, final int[] keys, final Label[] labels) {
+    clear();
+    super.visitLookupSwitchInsn(dflt, keys, labels);
+  }
+
+  private void invoke(final String desc, final boolean hasReceiver) {
+    final int sizes = Type.getArgumentsAndReturnSizes(desc);
+    // the sizes include the receiver
+    pop((sizes >> 2) - (hasReceiver ? 0 : 1));
+    pushUnknown(sizes & 0x03);
+  }
+
+  private void push(final int value) {
+    if (mySize == myStack.length) {
+      final int[] stack = new int[mySize * 2];
+      System.arraycopy(myStack, 0, stack, 0, mySize);
+      myStack = stack;
+    }
+    myStack[mySize++] = value;
+  }
+
+  private void pushUnknown(final int size) {
+    for (int i = 0; i < size; i++) {
+      push(UNKNOWN);
+    }
+  }
+
+  /**
+   * Values below the tracked ones are unknown, so popping more than is tracked just leaves nothing tracked.
+   */
+  private void pop(final int size) {
+    mySize = Math.max(0, mySize - size);
+  }
+
+  private void clear() {
+    mySize = 0;
+  }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.compiler.notNullVerification;
+
+import org.objectweb.asm.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Follows the instructions passing through it and tells the depth of the operand stack before the next instruction,
+ * with long and double values taking two slots.
+ * <p/>
+ * The depth is carried along the code and to the targets of jumps, switches and exception handlers, and is taken from
+ * the stack map frames where the code has them. It is {@link #UNKNOWN} after an instruction that does not fall through
+ * until a label whose depth is known, which in code without frames can be the case for the target of a backward jump.
+ */
+public class StackDepthTracker extends MethodVisitor implements Opcodes {
+  public static final int UNKNOWN = -1;
+
+  private final Map<Label, Integer> myLabelDepths = new HashMap<Label, Integer>();
+  private int myDepth = 0;
+
+  public StackDepthTracker(final MethodVisitor mv) {
+    super(Opcodes.ASM4, mv);
+  }
+
+  public int getDepth() {
+    return myDepth;
+  }
+
+  @Override
+  public void visitTryCatchBlock(final Label start, final Label end, final Label handler, final String type) {
+    myLabelDepths.put(handler, 1);
+    super.visitTryCatchBlock(start, end, handler, type);
+  }
+
+  @Override
+  public void visitLabel(final Label label) {
+    if (myDepth == UNKNOWN) {
+      final Integer depth = myLabelDepths.get(label);
+      myDepth = depth != null ? depth : UNKNOWN;
+    } else {
+      myLabelDepths.put(label, myDepth);
+    }
+    super.visitLabel(label);
+  }
+
+  @Override
+  public void visitFrame(final int type, final int nLocal, final Object[] local, final int nStack, final Object[] stack) {
+    switch (type) {
+      case F_SAME:
+      case F_APPEND:
+      case F_CHOP:
+        myDepth = 0;
+        break;
+      case F_SAME1:
+        myDepth = getSize(stack[0]);
+        break;
+      default:
+        myDepth = 0; // F_NEW, F_FULL
+        for (int i = 0; i < nStack; i++) {
+          myDepth += getSize(stack[i]);
+        }
+    }
+    super.visitFrame(type, nLocal, local, nStack, stack);
+  }
+
+  @Override
+  public void visitInsn(final int opcode) {
+    switch (opcode) {
+      case NOP:
+      case INEG:
+      case LNEG:
+      case FNEG:
+      case DNEG:
+      case LALOAD:
+      case DALOAD:
+      case SWAP:
+      case I2F:
+      case L2D:
+      case F2I:
+      case D2L:
+      case I2B:
+      case I2C:
+      case I2S:
+      case ARRAYLENGTH:
+        break;
+      case ACONST_NULL:
+      case ICONST_M1:
+      case ICONST_0:
+      case ICONST_1:
+      case ICONST_2:
+      case ICONST_3:
+      case ICONST_4:
+      case ICONST_5:
+      case FCONST_0:
+      case FCONST_1:
+      case FCONST_2:
+      case DUP:
+      case DUP_X1:
+      case DUP_X2:
+      case I2L:
+      case I2D:
+      case F2L:
+      case F2D:
+        change(1);
+        break;
+      case LCONST_0:
+      case LCONST_1:
+      case DCONST_0:
+      case DCONST_1:
+      case DUP2:
+      case DUP2_X1:
+      case DUP2_X2:
+        change(2);
+        break;
+      case LADD:
+      case LSUB:
+      case LMUL:
+      case LDIV:
+      case LREM:
+      case LAND:
+      case LOR:
+      case LXOR:
+      case DADD:
+      case DSUB:
+      case DMUL:
+      case DDIV:
+      case DREM:
+      case POP2:
+        change(-2);
+        break;
+      case LCMP:
+      case DCMPL:
+      case DCMPG:
+      case IASTORE:
+      case FASTORE:
+      case AASTORE:
+      case BASTORE:
+      case CASTORE:
+      case SASTORE:
+        change(-3);
+        break;
+      case LASTORE:
+      case DASTORE:
+        change(-4);
+        break;
+      case IRETURN:
+      case LRETURN:
+      case FRETURN:
+      case DRETURN:
+      case ARETURN:
+      case RETURN:
+      case ATHROW:
+        myDepth = UNKNOWN;
+        break;
+      default:
+        // IALOAD and the other loads of one slot values, binary int and float operations, shifts of longs,
+        // conversions to a narrower value, FCMPL, FCMPG, POP, MONITORENTER and MONITOREXIT
+        change(-1);
+    }
+    super.visitInsn(opcode);
+  }
+
+  @Override
+  public void visitIntInsn(final int opcode, final int operand) {
+    if (opcode != NEWARRAY) {
+      change(1); // BIPUSH, SIPUSH
+    }
+    super.visitIntInsn(opcode, operand);
+  }
+
+  @Override
+  public void visitVarInsn(final int opcode, final int var) {
+    switch (opcode) {
+      case ILOAD:
+      case FLOAD:
+      case ALOAD:
+        change(1);
+        break;
+      case LLOAD:
+      case DLOAD:
+        change(2);
+        break;
+      case ISTORE:
+      case FSTORE:
+      case ASTORE:
+        change(-1);
+        break;
+      case LSTORE:
+      case DSTORE:
+        change(-2);
+        break;
+      default:
+        myDepth = UNKNOWN; // RET
+    }
+    super.visitVarInsn(opcode, var);
+  }
+
+  @Override
+  public void visitTypeInsn(final int opcode, final String type) {
+    if (opcode == NEW) {
+      change(1);
+    }
+    super.visitTypeInsn(opcode, type);
+  }
+
+  @Override
+  public void visitFieldInsn(final int opcode, final String owner, final String name, final String desc) {
+    final int size = Type.getType(desc).getSize();
+    switch (opcode) {
+      case GETSTATIC:
+        change(size);
+        break;
+      case PUTSTATIC:
+        change(-size);
+        break;
+      case GETFIELD:
+        change(size - 1);
+        break;
+      default:
+        change(-1 - size); // PUTFIELD
+    }
+    super.visitFieldInsn(opcode, owner, name, desc);
+  }
+
+  @Override
+  public void visitMethodInsn(final int opcode, final String owner, final String name, final String desc) {
+    invoke(desc, opcode != INVOKESTATIC);
+    super.visitMethodInsn(opcode, owner, name, desc);
+  }
+
+  @Override
+  public void visitInvokeDynamicInsn(final String name, final String desc, final Handle bsm, final Object... bsmArgs) {
+    invoke(desc, false);
+    super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+  }
+
+  @Override
+  public void visitJumpInsn(final int opcode, final Label label) {
+    switch (opcode) {
+      case GOTO:
+        jump(label);
+        myDepth = UNKNOWN;
+        break;
+      case JSR:
+        myDepth = UNKNOWN;
+        break;
+      case IF_ICMPEQ:
+      case IF_ICMPNE:
+      case IF_ICMPLT:
+      case IF_ICMPGE:
+      case IF_ICMPGT:
+      case IF_ICMPLE:
+      case IF_ACMPEQ:
+      case IF_ACMPNE:
+        change(-2);
+        jump(label);
+        break;
+      default:
+        change(-1); // IFEQ to IFLE, IFNULL, IFNONNULL
+        jump(label);
+    }
+    super.visitJumpInsn(opcode, label);
+  }
+
+  @Override
+  public void visitLdcInsn(final Object cst) {
+    change(cst instanceof Long || cst instanceof Double ? 2 : 1);
+    super.visitLdcInsn(cst);
+  }
+
+  @Override
+  public void visitTableSwitchInsn(final int min, final int max, final Label dflt, final Label... labels) {
+    change(-1);
+    jump(dflt);
+    for (Label label : labels) {
+      jump(label);
+    }
+    myDepth = UNKNOWN;
+    super.visitTableSwitchInsn(min, max, dflt, labels);
+  }
+
+  @Override
+  public void visitLookupSwitchInsn(final Label dflt, final int[] keys, final Label[] labels) {
+    change(-1);
+    jump(dflt);
+    for (Label label : labels) {
+      jump(label);
+    }
+    myDepth = UNKNOWN;
+    super.visitLookupSwitchInsn(dflt, keys, labels);
+  }
+
+  @Override
+  public void visitMultiANewArrayInsn(final String desc, final int dims) {
+    change(1 - dims);
+    super.visitMultiANewArrayInsn(desc, dims);
+  }
+
+  private void invoke(final String desc, final boolean hasReceiver) {
+    final int sizes = Type.getArgumentsAndReturnSizes(desc);
+    // the sizes include the receiver
+    change((sizes & 0x03) - (sizes >> 2) + (hasReceiver ? 0 : 1));
+  }
+
+  private void jump(final Label label) {
+    if (myDepth != UNKNOWN) {
+      myLabelDepths.put(label, myDepth);
+    }
+  }
+
+  private void change(final int delta) {
+    if (myDepth != UNKNOWN) {
+      myDepth += delta;
+    }
+  }
+
+  private static int getSize(final Object type) {
+    return type == LONG || type == DOUBLE ? 2 : 1;
+  }
+}
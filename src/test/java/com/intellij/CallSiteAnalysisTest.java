@@ -0,0 +1,123 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the parameter checks made redundant by all callers are left out and listed, and that methods with
+ * a caller that may pass null keep them.
+ */
+public class CallSiteAnalysisTest extends FixtureTestCase {
+    private static final String LENGTH = "CallSites.length(Ljava/lang/String;)I";
+    private static final String PACKAGE_LENGTH = "CallSites.packageLength(Ljava/lang/String;)I";
+    private static final String DESCRIBE = "Delegation.describe(Ljava/lang/String;Ljava/lang/String;)Ljava/lang/String;";
+
+    private String myCallSiteAnalysis;
+
+    public CallSiteAnalysisTest(@NotNull final String form) {
+        super(form);
+    }
+
+    @Override
+    protected void configure(@NotNull final TestInstrumenter instrumenter) {
+        instrumenter.callSiteAnalysis = myCallSiteAnalysis;
+    }
+
+    @Test
+    public void leavesOutChecksOfPrivateMethods() throws Exception {
+        myCallSiteAnalysis = "private";
+        instrument();
+        assertEquals(Arrays.asList(PACKAGE + LENGTH + " #0", PACKAGE + DESCRIBE + " #0", PACKAGE + DESCRIBE + " #1"), readElidedChecks());
+        assertUnchanged(LENGTH);
+        assertTrue(call("CallSites", "length", (Object) null) instanceof NullPointerException);
+        // the result check stays
+        assertNull(invoke(load("Delegation").getConstructor(String.class).newInstance("value"), "describe", null, null));
+        assertArgument("CallSites.packageLength", 0, call("CallSites", "packageLength", (Object) null));
+        assertChecked(PACKAGE_LENGTH);
+    }
+
+    @Test
+    public void leavesOutChecksOfPackagePrivateMethods() throws Exception {
+        myCallSiteAnalysis = "package";
+        instrument();
+        assertEquals(Arrays.asList(PACKAGE + LENGTH + " #0", PACKAGE + PACKAGE_LENGTH + " #0", PACKAGE + DESCRIBE + " #0", PACKAGE + DESCRIBE + " #1"),
+                     readElidedChecks());
+        assertUnchanged(LENGTH);
+        assertUnchanged(PACKAGE_LENGTH);
+        assertTrue(call("CallSites", "packageLength", (Object) null) instanceof NullPointerException);
+    }
+
+    @Test
+    public void checksMethodsCalledWithUnknownValues() throws Exception {
+        myCallSiteAnalysis = "package";
+        instrument();
+        assertChecked("CallSites.checked(Ljava/lang/String;)I");
+        assertChecked("CallSites.calledFromNested(Ljava/lang/String;)I");
+        assertChecked("CallSites.packageChecked(Ljava/lang/String;)I");
+        assertNull(call("CallSites", "entry", "value"));
+        assertArgument("CallSites.entry", 0, call("CallSites", "entry", (Object) null));
+        assertNull(call("CallSites", "afterStore", "value", false));
+        assertArgument("CallSites.checked", 0, call("CallSites", "afterStore", "value", true));
+        assertArgument("CallSites.calledFromNested", 0, call("CallSites", "fromNested", (Object) null));
+        assertNull(call("CallSites", "fromOuter"));
+        assertArgument("CallSites.packageChecked", 0, call("PackageCaller", "pass", (Object) null));
+        assertNull(call("PackageCaller", "constant"));
+    }
+
+    @Test
+    public void keepsAllChecksOtherwise() throws Exception {
+        myCallSiteAnalysis = "none";
+        instrument();
+        assertEquals(Collections.<String>emptyList(), readElidedChecks());
+        assertChecked(LENGTH);
+        assertArgument("CallSites.length", 0, call("CallSites", "length", (Object) null));
+    }
+
+    @NotNull
+    private List<String> readElidedChecks() throws Exception {
+        final List<String> lines = new ArrayList<String>();
+        final File file = myInstrumenter.getReport("classes-elided-checks.txt");
+        if (!file.isFile()) {
+            return lines;
+        }
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    lines.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij;
+
+import com.intellij.compiler.instrumentation.ClassFileHeader;
+import com.intellij.fixtures.Bridges;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instruments the fixtures with a code size threshold that the checks push {@code Mixed.annotated} past, in every
+ * mode of the analysis, and again as later builds would.
+ */
+public class CodeSizeAnalysisTest {
+    private static final String CLASS = TestInstrumenter.FIXTURES + "/Mixed.class";
+    private static final String METHOD = "annotated(Ljava/util/List;)Ljava/lang/String;";
+    private static final String REPORTED_METHOD = FixtureTestCase.PACKAGE + "Mixed." + METHOD;
+
+    @Rule
+    public final TemporaryFolder myTemporaryFolder = new TemporaryFolder();
+
+    private File myOriginal;
+    private TestInstrumenter myInstrumenter;
+    private int mySize;
+
+    @Before
+    public void setUp() throws Exception {
+        myOriginal = new File(Bridges.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        myInstrumenter = new TestInstrumenter(myOriginal, myTemporaryFolder.newFolder("target"));
+        mySize = ClassFileHeader.readCodeLengths(TestInstrumenter.read(new File(myOriginal, CLASS))).get(METHOD);
+        myInstrumenter.codeSizeThresholds = String.valueOf(mySize);
+    }
+
+    @Test
+    public void reportsMethodsPastThreshold() throws Exception {
+        myInstrumenter.codeSizeAnalysis = "report";
+        myInstrumenter.execute();
+        final String[] line = getReportLine();
+        assertNotNull(line);
+        assertEquals(String.valueOf(mySize), line[0]);
+        assertEquals(Integer.parseInt(line[1]) - mySize, Integer.parseInt(line[2]));
+        assertEquals(String.valueOf(mySize), line[3]);
+        assertEquals("regular", line[4]);
+        assertFalse(myInstrumenter.getMessages().toString().contains("No method grew past a code size threshold"));
+    }
+
+    @Test
+    public void reportsNoMethodBelowThreshold() throws Exception {
+        myInstrumenter.codeSizeAnalysis = "report";
+        myInstrumenter.codeSizeThresholds = "100000";
+        myInstrumenter.execute();
+        final String[] line = getReportLine();
+        assertNotNull(line);
+        assertEquals("0", line[3]);
+        assertTrue(myInstrumenter.getMessages().toString().contains("No method grew past a code size threshold"));
+    }
+
+    @Test
+    public void failsAndLeavesClassesPastThreshold() throws Exception {
+        myInstrumenter.codeSizeAnalysis = "fail";
+        myInstrumenter.incremental = true;
+        try {
+            myInstrumenter.execute();
+            fail();
+        } catch (MojoExecutionException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(" methods grew past a code size threshold"));
+        }
+        assertArrayEquals(TestInstrumenter.read(new File(myOriginal, CLASS)), TestInstrumenter.read(getClassFile()));
+        assertTrue(myInstrumenter.getInstrumentedCount() > 0);
+        // the class is neither marked nor recorded in the state, so every later build fails as well
+        assertFails();
+        assertFails();
+        assertArrayEquals(TestInstrumenter.read(new File(myOriginal, CLASS)), TestInstrumenter.read(getClassFile()));
+    }
+
+    @Test
+    public void compactsMethodsPastThreshold() throws Exception {
+        myInstrumenter.codeSizeAnalysis = "compact";
+        myInstrumenter.execute();
+        final String[] line = getReportLine();
+        assertNotNull(line);
+        assertEquals("compact", line[4]);
+        final int regularSize = getRegularSize();
+        assertTrue(line[1] + " < " + regularSize, Integer.parseInt(line[1]) < regularSize);
+        final FixtureClassLoader loader = new FixtureClassLoader(myInstrumenter.getOutputDirectory());
+        final Object mixed = loader.loadClass(FixtureTestCase.PACKAGE.replace('/', '.') + "Mixed").newInstance();
+        FixtureTestCase.assertArgument("Mixed.annotated", 0, FixtureTestCase.invoke(mixed, "annotated", (Object) null));
+        FixtureTestCase.assertResult("Mixed.annotated", FixtureTestCase.invoke(mixed, "annotated", Collections.singletonList("")));
+    }
+
+    @Test
+    public void keepsReportOfClassesInstrumentedBefore() throws Exception {
+        myInstrumenter.codeSizeAnalysis = "report";
+        myInstrumenter.incremental = true;
+        myInstrumenter.execute();
+        final String[] line = getReportLine();
+        assertNotNull(line);
+        // skipped as unchanged
+        myInstrumenter.instrumentAgain();
+        assertEquals(0, myInstrumenter.getInstrumentedCount());
+        assertArrayEquals(line, getReportLine());
+        // skipped as marked
+        myInstrumenter.incremental = false;
+        myInstrumenter.instrumentAgain();
+        assertEquals(0, myInstrumenter.getInstrumentedCount());
+        assertArrayEquals(line, getReportLine());
+        // deleted
+        assertTrue(getClassFile().delete());
+        myInstrumenter.instrumentAgain();
+        assertNull(getReportLine());
+    }
+
+    private void assertFails() {
+        try {
+            myInstrumenter.instrumentAgain();
+            fail();
+        } catch (MojoExecutionException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(" methods grew past a code size threshold"));
+        }
+    }
+
+    /**
+     * @return size of the method with the regular checks
+     */
+    private int getRegularSize() throws Exception {
+        final TestInstrumenter regular = new TestInstrumenter(myOriginal, myTemporaryFolder.newFolder("regular"));
+        regular.execute();
+        return ClassFileHeader.readCodeLengths(TestInstrumenter.read(new File(regular.getOutputDirectory(), CLASS))).get(METHOD);
+    }
+
+    @NotNull
+    private File getClassFile() {
+        return new File(myInstrumenter.getOutputDirectory(), CLASS);
+    }
+
+    /**
+     * @return the columns of the report line of {@code Mixed.annotated}, or null if there is none
+     */
+    @Nullable
+    private String[] getReportLine() throws Exception {
+        final File report = myInstrumenter.getReport("classes-code-size.txt");
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(report), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] columns = line.split("\t");
+                if (columns.length == 6 && columns[5].equals(REPORTED_METHOD)) {
+                    return columns;
+                }
+            }
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that methods without @NotNull annotations keep their code byte for byte, and that the other methods of
+ * the same class still get working checks and valid frames.
+ */
+public class CopyUnchangedMethodsTest extends FixtureTestCase {
+    private static final String[] PLAIN_METHODS = {"plain(Ljava/util/List;)I", "plainStatic(Ljava/lang/Object;)Ljava/lang/String;", "<init>()V"};
+
+    private boolean myCopyUnchangedMethods;
+
+    public CopyUnchangedMethodsTest(@NotNull final String form) {
+        super(form);
+    }
+
+    @Override
+    protected void configure(@NotNull final TestInstrumenter instrumenter) {
+        instrumenter.copyUnchangedMethods = myCopyUnchangedMethods;
+    }
+
+    @Test
+    public void copiesMethodsWithoutAnnotations() throws Exception {
+        myCopyUnchangedMethods = true;
+        instrument();
+        for (String method : PLAIN_METHODS) {
+            assertArrayEquals(method, readCode(myInstrumenter.getOriginalDirectory(), method), readCode(myInstrumenter.getOutputDirectory(), method));
+        }
+        assertInstrumented();
+    }
+
+    @Test
+    public void rewritesAllMethodsOtherwise() throws Exception {
+        myCopyUnchangedMethods = false;
+        instrument();
+        for (String method : PLAIN_METHODS) {
+            assertUnchanged("Mixed." + method);
+        }
+        assertInstrumented();
+    }
+
+    private void assertInstrumented() throws Exception {
+        assertChecked("Mixed.annotated(Ljava/util/List;)Ljava/lang/String;");
+        assertArgument("Mixed.annotated", 0, call("Mixed", "annotated", (Object) null));
+        assertResult("Mixed.annotated", call("Mixed", "annotated", Collections.singletonList("")));
+        assertNull(call("Mixed", "annotated", Arrays.asList("", "value")));
+        assertNull(call("Mixed", "plain", Arrays.asList("value", null)));
+        assertNull(call("Mixed", "plainStatic", (Object) null));
+    }
+
+    /**
+     * @return the Code attribute of a method of the Mixed fixture, as it is in the class file
+     */
+    @NotNull
+    private static byte[] readCode(@NotNull final File directory, @NotNull final String method) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(TestInstrumenter.read(new File(directory, PACKAGE + "Mixed.class"))));
+        in.skipBytes(8); // magic and version
+        final int poolSize = in.readUnsignedShort();
+        final String[] utf8 = new String[poolSize];
+        for (int i = 1; i < poolSize; i++) {
+            final int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1:
+                    utf8[i] = in.readUTF();
+                    break;
+                case 5:
+                case 6:
+                    in.skipBytes(8);
+                    i++;
+                    break;
+                case 7:
+                case 8:
+                case 16:
+                    in.skipBytes(2);
+                    break;
+                case 15:
+                    in.skipBytes(3);
+                    break;
+                default:
+                    in.skipBytes(4);
+            }
+        }
+        in.skipBytes(6); // access flags, this and super class
+        in.skipBytes(2 * in.readUnsignedShort());
+        final int fieldCount = in.readUnsignedShort();
+        for (int i = 0; i < fieldCount; i++) {
+            in.skipBytes(6);
+            skipAttributes(in);
+        }
+        final int methodCount = in.readUnsignedShort();
+        for (int i = 0; i < methodCount; i++) {
+            in.skipBytes(2);
+            final String name = utf8[in.readUnsignedShort()] + utf8[in.readUnsignedShort()];
+            final int attributeCount = in.readUnsignedShort();
+            for (int j = 0; j < attributeCount; j++) {
+                final String attribute = utf8[in.readUnsignedShort()];
+                final byte[] content = new byte[in.readInt()];
+                in.readFully(content);
+                if (name.equals(method) && "Code".equals(attribute)) {
+                    return content;
+                }
+            }
+        }
+        throw new AssertionError("No code of " + method);
+    }
+
+    private static void skipAttributes(@NotNull final DataInputStream in) throws IOException {
+        final int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            in.skipBytes(2);
+            in.skipBytes(in.readInt());
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that methods which only pass their parameters on leave the checks to their targets where the targets check
+ * them with the same message.
+ */
+public class DelegatingChecksTest extends FixtureTestCase {
+    public DelegatingChecksTest(@NotNull final String form) {
+        super(form);
+    }
+
+    @Override
+    protected void configure(@NotNull final TestInstrumenter instrumenter) {
+        instrumenter.skipDelegatingChecks = true;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        instrument();
+    }
+
+    @Test
+    public void leavesChecksToTargets() throws Exception {
+        assertUnchanged("FinalBridges.handle(Ljava/lang/Object;)Ljava/lang/String;");
+        assertUnchanged("Delegation.<init>(Ljava/lang/String;)V");
+        assertArgument("FinalBridges.handle", 0, callHandler(newInstance("FinalBridges"), null));
+        assertNull(callHandler(newInstance("FinalBridges"), "value"));
+        assertArgument("Delegation.<init>", 0, construct(load("Delegation").getConstructor(String.class), (Object) null));
+    }
+
+    @Test
+    public void keepsChecksOfParametersPassedAtOtherIndices() throws Exception {
+        assertChecked("Delegation.<init>(ILjava/lang/String;)V");
+        assertArgument("Delegation.<init>", 1, construct(load("Delegation").getConstructor(int.class, String.class), 1, null));
+    }
+
+    /**
+     * A subclass that overrides the target of a bridge without checking its parameter, such as one compiled without
+     * instrumentation, must not let the bridge leave its check to the target.
+     */
+    @Test
+    public void keepsChecksOfBridgesToOverridableTargets() throws Exception {
+        assertChecked("Bridges.handle(Ljava/lang/Object;)Ljava/lang/String;");
+        final ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, PACKAGE + "SubNoBridge", null, PACKAGE + "Bridges", null);
+        MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, PACKAGE + "Bridges", "<init>", "()V");
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        mv = writer.visitMethod(Opcodes.ACC_PUBLIC, "handle", "(Ljava/lang/String;)Ljava/lang/String;", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        writer.visitEnd();
+        final Class<?> subclass = myLoader.define(PACKAGE.replace('/', '.') + "SubNoBridge", writer.toByteArray());
+        assertArgument("Bridges.handle", 0, callHandler(subclass.newInstance(), null));
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Loads the fixture classes from a directory before asking its parent, so that the instrumented classes are the ones
+ * that are defined, and verified, rather than the compiled ones on the test classpath.
+ */
+class FixtureClassLoader extends ClassLoader {
+    private static final String FIXTURES_PACKAGE = TestInstrumenter.FIXTURES.replace('/', '.') + ".";
+
+    private final File myDirectory;
+
+    FixtureClassLoader(@NotNull final File directory) {
+        super(FixtureClassLoader.class.getClassLoader());
+        myDirectory = directory;
+    }
+
+    @Override
+    protected synchronized Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+        if (!name.startsWith(FIXTURES_PACKAGE)) {
+            return super.loadClass(name, resolve);
+        }
+        Class<?> c = findLoadedClass(name);
+        if (c == null) {
+            c = findClass(name);
+        }
+        if (resolve) {
+            resolveClass(c);
+        }
+        return c;
+    }
+
+    @Override
+    protected Class<?> findClass(final String name) throws ClassNotFoundException {
+        final File file = new File(myDirectory, name.replace('.', File.separatorChar) + ".class");
+        if (!file.isFile()) {
+            throw new ClassNotFoundException(name);
+        }
+        try {
+            return define(name, TestInstrumenter.read(file));
+        } catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+    }
+
+    @NotNull
+    Class<?> define(@NotNull final String name, @NotNull final byte[] bytes) {
+        return defineClass(name, bytes, 0, bytes.length);
+    }
+}
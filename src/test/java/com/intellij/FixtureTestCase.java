@@ -0,0 +1,279 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij;
+
+import com.intellij.fixtures.Bridges;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instruments the compiled fixtures with one form of the checks, and loads them in a class loader of their own, so
+ * that the JVM verifies the instrumented classes. Tests call the fixtures and compare the instructions of their
+ * methods before and after.
+ */
+@RunWith(Parameterized.class)
+public abstract class FixtureTestCase {
+    static final String PACKAGE = TestInstrumenter.FIXTURES + "/";
+    private static final String ARGUMENT = "Argument %d for @NotNull parameter of " + PACKAGE + "%s must not be null";
+    private static final String RESULT = "@NotNull method " + PACKAGE + "%s must not return null";
+
+    @Rule
+    public final TemporaryFolder myTemporaryFolder = new TemporaryFolder();
+
+    protected final String myForm;
+    protected TestInstrumenter myInstrumenter;
+    protected FixtureClassLoader myLoader;
+
+    protected FixtureTestCase(@NotNull final String form) {
+        myForm = form;
+    }
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> getForms() {
+        final List<Object[]> forms = new ArrayList<Object[]>();
+        for (String form : new String[]{"inline", "preserveFrames", "outlineChecks", "invokeDynamic", "sharedReturnCheck"}) {
+            forms.add(new Object[]{form});
+        }
+        return forms;
+    }
+
+    /**
+     * Changes the parameters of the instrumenter after the form of the checks is set.
+     */
+    protected void configure(@NotNull final TestInstrumenter instrumenter) {
+    }
+
+    protected void instrument() throws Exception {
+        final File original = new File(Bridges.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        myInstrumenter = new TestInstrumenter(original, myTemporaryFolder.newFolder("target"));
+        myInstrumenter.preserveFrames = "preserveFrames".equals(myForm);
+        myInstrumenter.outlineChecks = "outlineChecks".equals(myForm);
+        myInstrumenter.invokeDynamic = "invokeDynamic".equals(myForm);
+        myInstrumenter.sharedReturnCheck = "sharedReturnCheck".equals(myForm);
+        configure(myInstrumenter);
+        myInstrumenter.execute();
+        myLoader = new FixtureClassLoader(myInstrumenter.getOutputDirectory());
+    }
+
+    /**
+     * @param method {@code Class.name descriptor} of a fixture method
+     */
+    protected void assertUnchanged(@NotNull final String method) throws Exception {
+        assertEquals(method, readInstructions(myInstrumenter.getOriginalDirectory(), method),
+                     readInstructions(myInstrumenter.getOutputDirectory(), method));
+    }
+
+    /**
+     * @param method {@code Class.name descriptor} of a fixture method
+     */
+    protected void assertChecked(@NotNull final String method) throws Exception {
+        final List<String> before = readInstructions(myInstrumenter.getOriginalDirectory(), method);
+        final List<String> after = readInstructions(myInstrumenter.getOutputDirectory(), method);
+        assertTrue(method + ": " + before + " -> " + after, after.size() > before.size());
+    }
+
+    protected static void assertArgument(@NotNull final String method, final int parameter, final Throwable exception) {
+        assertException(IllegalArgumentException.class, String.format(ARGUMENT, parameter, method), exception);
+    }
+
+    protected static void assertResult(@NotNull final String method, final Throwable exception) {
+        assertException(IllegalStateException.class, String.format(RESULT, method), exception);
+    }
+
+    protected static void assertException(@NotNull final Class<? extends Throwable> type, @NotNull final String message, final Throwable exception) {
+        assertNotNull("Expected " + type.getName() + ": " + message, exception);
+        if (!type.isInstance(exception)) {
+            throw new AssertionError(exception);
+        }
+        assertEquals(message, exception.getMessage());
+    }
+
+    @NotNull
+    protected Class<?> load(@NotNull final String className) throws ClassNotFoundException {
+        return Class.forName(PACKAGE.replace('/', '.') + className, true, myLoader);
+    }
+
+    @NotNull
+    protected Object newInstance(@NotNull final String className) throws Exception {
+        final Constructor<?> constructor = load(className).getDeclaredConstructor();
+        constructor.setAccessible(true);
+        return constructor.newInstance();
+    }
+
+    /**
+     * Calls a method of a new instance of a fixture class, or a static method.
+     *
+     * @return the exception thrown by the method, or null
+     */
+    protected Throwable call(@NotNull final String className, @NotNull final String method, final Object... args) throws Exception {
+        return invoke(newInstance(className), method, args);
+    }
+
+    protected static Throwable invoke(@NotNull final Object instance, @NotNull final String name, final Object... args) throws Exception {
+        for (Method method : instance.getClass().getDeclaredMethods()) {
+            if (method.getName().equals(name) && method.getParameterTypes().length == args.length && !method.isBridge()) {
+                method.setAccessible(true);
+                try {
+                    method.invoke(instance, args);
+                    return null;
+                } catch (InvocationTargetException e) {
+                    return e.getCause();
+                }
+            }
+        }
+        throw new NoSuchMethodException(instance.getClass().getName() + "." + name);
+    }
+
+    /**
+     * Calls {@code Handler.handle(Object)}, which runs the bridge method of the handler.
+     */
+    protected Throwable callHandler(@NotNull final Object handler, final String value) throws Exception {
+        final Method method = load("Handler").getMethod("handle", Object.class);
+        try {
+            method.invoke(handler, value);
+            return null;
+        } catch (InvocationTargetException e) {
+            return e.getCause();
+        }
+    }
+
+    protected static Throwable construct(@NotNull final Constructor<?> constructor, final Object... args) throws Exception {
+        try {
+            constructor.newInstance(args);
+            return null;
+        } catch (InvocationTargetException e) {
+            return e.getCause();
+        }
+    }
+
+    /**
+     * @return the instructions of the method with their operands, without labels, frames and line numbers
+     */
+    @NotNull
+    private static List<String> readInstructions(@NotNull final File directory, @NotNull final String method) throws Exception {
+        final int ownerEnd = method.indexOf('.');
+        final byte[] bytes = TestInstrumenter.read(new File(directory, PACKAGE + method.substring(0, ownerEnd) + ".class"));
+        final Map<String, List<String>> methods = new HashMap<String, List<String>>();
+        new ClassReader(bytes).accept(new ClassVisitor(Opcodes.ASM4) {
+            @Override
+            public MethodVisitor visitMethod(final int access, final String name, final String desc, final String signature, final String[] exceptions) {
+                final List<String> instructions = new ArrayList<String>();
+                methods.put(name + desc, instructions);
+                return new InstructionRecorder(instructions);
+            }
+        }, 0);
+        final List<String> instructions = methods.get(method.substring(ownerEnd + 1));
+        assertNotNull("No method " + method, instructions);
+        return instructions;
+    }
+
+    private static class InstructionRecorder extends MethodVisitor {
+        private final List<String> myInstructions;
+
+        private InstructionRecorder(@NotNull final List<String> instructions) {
+            super(Opcodes.ASM4);
+            myInstructions = instructions;
+        }
+
+        @Override
+        public void visitInsn(final int opcode) {
+            myInstructions.add(String.valueOf(opcode));
+        }
+
+        @Override
+        public void visitIntInsn(final int opcode, final int operand) {
+            myInstructions.add(opcode + " " + operand);
+        }
+
+        @Override
+        public void visitVarInsn(final int opcode, final int var) {
+            myInstructions.add(opcode + " " + var);
+        }
+
+        @Override
+        public void visitTypeInsn(final int opcode, final String type) {
+            myInstructions.add(opcode + " " + type);
+        }
+
+        @Override
+        public void visitFieldInsn(final int opcode, final String owner, final String name, final String desc) {
+            myInstructions.add(opcode + " " + owner + "." + name + " " + desc);
+        }
+
+        @Override
+        public void visitMethodInsn(final int opcode, final String owner, final String name, final String desc) {
+            myInstructions.add(opcode + " " + owner + "." + name + desc);
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(final String name, final String desc, final Handle bsm, final Object... bsmArgs) {
+            myInstructions.add(Opcodes.INVOKEDYNAMIC + " " + name + desc + " " + bsm + " " + Arrays.asList(bsmArgs));
+        }
+
+        @Override
+        public void visitJumpInsn(final int opcode, final Label label) {
+            myInstructions.add(String.valueOf(opcode));
+        }
+
+        @Override
+        public void visitLdcInsn(final Object cst) {
+            myInstructions.add(Opcodes.LDC + " " + cst);
+        }
+
+        @Override
+        public void visitIincInsn(final int var, final int increment) {
+            myInstructions.add(Opcodes.IINC + " " + var + " " + increment);
+        }
+
+        @Override
+        public void visitTableSwitchInsn(final int min, final int max, final Label dflt, final Label... labels) {
+            myInstructions.add(Opcodes.TABLESWITCH + " " + min + " " + max);
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(final Label dflt, final int[] keys, final Label[] labels) {
+            myInstructions.add(Opcodes.LOOKUPSWITCH + " " + Arrays.toString(keys));
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(final String desc, final int dims) {
+            myInstructions.add(Opcodes.MULTIANEWARRAY + " " + desc + " " + dims);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij;
+
+import com.intellij.fixtures.Bridges;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instruments the fixtures with an incremental state, then again as later builds would.
+ */
+public class IncrementalInstrumentationTest {
+    @Rule
+    public final TemporaryFolder myTemporaryFolder = new TemporaryFolder();
+
+    private TestInstrumenter myInstrumenter;
+    private int myClassCount;
+
+    @Before
+    public void setUp() throws Exception {
+        final File original = new File(Bridges.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        myInstrumenter = new TestInstrumenter(original, myTemporaryFolder.newFolder("target"));
+        myInstrumenter.incremental = true;
+        myInstrumenter.execute();
+        myClassCount = myInstrumenter.getInstrumentedCount();
+        assertTrue(myClassCount > 0);
+    }
+
+    @Test
+    public void skipsUnchangedClasses() throws Exception {
+        final byte[] instrumented = TestInstrumenter.read(getClassFile());
+        myInstrumenter.instrumentAgain();
+        assertEquals(0, myInstrumenter.getInstrumentedCount());
+        assertArrayEquals(instrumented, TestInstrumenter.read(getClassFile()));
+    }
+
+    @Test
+    public void instrumentsRecompiledClasses() throws Exception {
+        final byte[] instrumented = TestInstrumenter.read(getClassFile());
+        recompile();
+        myInstrumenter.instrumentAgain();
+        assertEquals(1, myInstrumenter.getInstrumentedCount());
+        assertArrayEquals(instrumented, TestInstrumenter.read(getClassFile()));
+    }
+
+    @Test
+    public void instrumentsAllClassesWhenOptionsChange() throws Exception {
+        recompile();
+        myInstrumenter.outlineChecks = true;
+        myInstrumenter.instrumentAgain();
+        // the other classes are instrumented again from the compiled class files kept by the first run
+        assertEquals(myClassCount, myInstrumenter.getInstrumentedCount());
+        assertTrue(myInstrumenter.getMessages().toString(), myInstrumenter.getMessages().toString().contains("; 0 unchanged classes skipped"));
+    }
+
+    @Test
+    public void instrumentsAllClassesWithoutState() throws Exception {
+        recompile();
+        final File state = new File(myInstrumenter.getReport("classes.state").getPath());
+        assertTrue(state.isFile());
+        final OutputStream out = new FileOutputStream(state);
+        try {
+            out.write("corrupt".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        myInstrumenter.instrumentAgain();
+        assertEquals(1, myInstrumenter.getInstrumentedCount());
+        assertTrue(myInstrumenter.getMessages().toString(), myInstrumenter.getMessages().toString().contains("; 0 unchanged classes skipped"));
+    }
+
+    private File getClassFile() {
+        return new File(myInstrumenter.getOutputDirectory(), TestInstrumenter.FIXTURES + "/Nullness.class");
+    }
+
+    /**
+     * Puts the compiled class back, with another modification time, like the compiler does.
+     */
+    private void recompile() throws Exception {
+        final File file = getClassFile();
+        final long modified = file.lastModified();
+        final byte[] content = TestInstrumenter.read(new File(myInstrumenter.getOriginalDirectory(), TestInstrumenter.FIXTURES + "/Nullness.class"));
+        assertFalse(Arrays.equals(content, TestInstrumenter.read(file)));
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        assertTrue(file.setLastModified(modified - 10000));
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the pipeline on files that are not classes, with transformers that append a byte, and checks that failures in
+ * any stage are either logged or stop the run, and that no thread of the pipeline outlives it.
+ */
+@RunWith(Parameterized.class)
+public class InstrumentationPipelineTest {
+    private static final int CLASSES = 100;
+    private static final long TIMEOUT = 10000;
+
+    @Rule
+    public final TemporaryFolder myTemporaryFolder = new TemporaryFolder();
+
+    private final int myThreads;
+    private final List<String> myWarnings = new ArrayList<String>();
+    private final Set<Thread> myStageThreads = new HashSet<Thread>();
+    private File myRoot;
+    private InstrumentationPipeline myPipeline;
+
+    public InstrumentationPipelineTest(final int threads) {
+        myThreads = threads;
+    }
+
+    @Parameterized.Parameters(name = "threads={0}")
+    public static Collection<Object[]> getThreads() {
+        return Arrays.asList(new Object[]{1}, new Object[]{4});
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        myRoot = myTemporaryFolder.newFolder("classes");
+        for (int i = 0; i < CLASSES; i++) {
+            write(getClass(i), new byte[]{(byte) i});
+        }
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void transformsEveryClass() throws Exception {
+        assertEquals(CLASSES / 2, run(new Appender() {
+            @Nullable
+            @Override
+            public byte[] transform(@NotNull final File file, @NotNull final byte[] content) throws IOException {
+                return content[0] % 2 == 0 ? super.transform(file, content) : null;
+            }
+        }, null));
+        for (int i = 0; i < CLASSES; i++) {
+            final byte[] expected = i % 2 == 0 ? new byte[]{(byte) i, 0} : new byte[]{(byte) i};
+            assertArrayEquals(expected, TestInstrumenter.read(getClass(i)));
+        }
+        assertEquals(CLASSES, myPipeline.getClasses().size());
+        assertEquals(Collections.<String>emptyList(), myWarnings);
+        assertStopped();
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void runsOnTheCallingThreadWithOneThread() throws Exception {
+        run(new Appender(), null);
+        assertEquals(myThreads == 1, myStageThreads.equals(Collections.singleton(Thread.currentThread())));
+        assertStopped();
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void logsClassesThatCanNotBeTransformed() throws Exception {
+        assertEquals(CLASSES - 1, run(new Appender() {
+            @Nullable
+            @Override
+            public byte[] transform(@NotNull final File file, @NotNull final byte[] content) throws IOException {
+                if (content[0] == 42) {
+                    throw new IOException("broken");
+                }
+                return super.transform(file, content);
+            }
+        }, null));
+        assertArrayEquals(new byte[]{42}, TestInstrumenter.read(getClass(42)));
+        assertEquals(1, myWarnings.size());
+        assertTrue(myWarnings.get(0), myWarnings.get(0).contains(getClass(42).getPath()) && myWarnings.get(0).endsWith("broken"));
+        assertStopped();
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void stopsWhenTransformerFails() throws Exception {
+        try {
+            run(new Appender() {
+                @Nullable
+                @Override
+                public byte[] transform(@NotNull final File file, @NotNull final byte[] content) throws IOException {
+                    if (content[0] == 42) {
+                        throw new IllegalStateException("broken");
+                    }
+                    return super.transform(file, content);
+                }
+            }, null);
+            fail();
+        } catch (MojoExecutionException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(getClass(42).getPath()));
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertStopped();
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void logsClassesThatCanNotBeWritten() throws Exception {
+        assertEquals(CLASSES - 1, run(new Appender() {
+            @Nullable
+            @Override
+            public byte[] transform(@NotNull final File file, @NotNull final byte[] content) throws IOException {
+                if (content[0] == 42) {
+                    // a non-empty directory can not be replaced by the written file
+                    assertTrue(file.delete() && new File(file, "blocker").mkdirs());
+                }
+                return super.transform(file, content);
+            }
+        }, null));
+        assertTrue(getClass(42).isDirectory());
+        assertArrayEquals(new byte[]{43, 0}, TestInstrumenter.read(getClass(43)));
+        assertEquals(1, myWarnings.size());
+        assertTrue(myWarnings.get(0), myWarnings.get(0).contains(getClass(42).getPath()));
+        assertStopped();
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void stopsWhenWriterFails() throws Exception {
+        try {
+            run(new Appender(), new AtomicInteger(10));
+            fail();
+        } catch (MojoExecutionException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("write failed"));
+        }
+        assertStopped();
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void stopsWhenReaderFailsMidStream() throws Exception {
+        final AtomicInteger reads = new AtomicInteger(10);
+        myPipeline = new InstrumentationPipeline(new Appender(), null, new RecordingStatistics(null) {
+            @Override
+            public void addRead(final long nanos) {
+                super.addRead(nanos);
+                if (reads.decrementAndGet() == 0) {
+                    throw new IllegalStateException("read failed");
+                }
+            }
+        }, new WarningLog(), myThreads);
+        try {
+            myPipeline.run(myRoot);
+            fail();
+        } catch (MojoExecutionException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("read failed"));
+        }
+        assertStopped();
+    }
+
+    /**
+     * @param writes number of writes after which writing fails, or null
+     */
+    private int run(@NotNull final InstrumentationPipeline.Transformer transformer, @Nullable final AtomicInteger writes) throws MojoExecutionException {
+        myPipeline = new InstrumentationPipeline(transformer, null, new RecordingStatistics(writes), new WarningLog(), myThreads);
+        return myPipeline.run(myRoot);
+    }
+
+    /**
+     * Checks that all threads that ran a stage have ended.
+     */
+    private void assertStopped() throws InterruptedException {
+        final List<Thread> threads;
+        synchronized (myStageThreads) {
+            threads = new ArrayList<Thread>(myStageThreads);
+        }
+        assertFalse(threads.isEmpty());
+        for (Thread thread : threads) {
+            if (thread != Thread.currentThread()) {
+                thread.join(TIMEOUT / 2);
+                assertFalse(thread.getName(), thread.isAlive());
+            }
+        }
+    }
+
+    @NotNull
+    private File getClass(final int index) {
+        return new File(myRoot, "p" + index % 3 + File.separator + "C" + index + ".class");
+    }
+
+    private static void write(@NotNull final File file, @NotNull final byte[] content) throws IOException {
+        if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+            throw new IOException("Cannot create directory " + file.getParentFile());
+        }
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static class Appender implements InstrumentationPipeline.Transformer {
+        @Nullable
+        public byte[] transform(@NotNull final File file, @NotNull final byte[] content) throws IOException {
+            return Arrays.copyOf(content, content.length + 1);
+        }
+    }
+
+    /**
+     * Remembers the threads running the stages, and can fail a write.
+     */
+    private class RecordingStatistics extends InstrumentationStatistics {
+        private final AtomicInteger myWrites;
+
+        private RecordingStatistics(@Nullable final AtomicInteger writes) {
+            super(myRoot);
+            myWrites = writes;
+        }
+
+        @Override
+        public void addScan(final long nanos, final int classes) {
+            record();
+            super.addScan(nanos, classes);
+        }
+
+        @Override
+        public void addRead(final long nanos) {
+            record();
+            super.addRead(nanos);
+        }
+
+        @Override
+        public void addTransform(@NotNull final File file, final long nanos) {
+            record();
+            super.addTransform(file, nanos);
+        }
+
+        @Override
+        public void addWrite(final long nanos) {
+            record();
+            super.addWrite(nanos);
+            if (myWrites != null && myWrites.decrementAndGet() == 0) {
+                throw new IllegalStateException("write failed");
+            }
+        }
+
+        private void record() {
+            synchronized (myStageThreads) {
+                myStageThreads.add(Thread.currentThread());
+            }
+        }
+    }
+
+    private class WarningLog extends SystemStreamLog {
+        @Override
+        public void debug(final CharSequence content) {
+        }
+
+        @Override
+        public void warn(final CharSequence content) {
+            synchronized (myWarnings) {
+                myWarnings.add(content.toString());
+            }
+        }
+    }
+}
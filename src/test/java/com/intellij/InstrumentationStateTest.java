@@ -0,0 +1,149 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class InstrumentationStateTest {
+    private static final String SIGNATURE = "checks=inline";
+
+    @Rule
+    public final TemporaryFolder myTemporaryFolder = new TemporaryFolder();
+
+    private File myRoot;
+    private File myStateFile;
+    private File myClass;
+
+    @Before
+    public void setUp() throws Exception {
+        myRoot = myTemporaryFolder.newFolder("classes");
+        myStateFile = new File(myTemporaryFolder.getRoot(), "classes.state");
+        myClass = new File(myRoot, "A.class");
+        write(myClass, new byte[]{1, 2, 3});
+        final InstrumentationState state = InstrumentationState.load(myStateFile, myRoot, SIGNATURE);
+        state.update(myClass, new byte[]{1, 2, 3});
+        state.save();
+    }
+
+    @Test
+    public void skipsUnchangedFile() throws Exception {
+        assertTrue(load().isUnchanged(myClass));
+    }
+
+    @Test
+    public void detectsChangedSize() throws Exception {
+        final long modified = myClass.lastModified();
+        write(myClass, new byte[]{1, 2, 3, 4});
+        assertTrue(myClass.setLastModified(modified));
+        final InstrumentationState state = load();
+        assertFalse(state.isUnchanged(myClass));
+        assertFalse(state.isUnchanged(myClass, new byte[]{1, 2, 3, 4}));
+    }
+
+    @Test
+    public void detectsChangedModificationTime() throws Exception {
+        assertTrue(myClass.setLastModified(myClass.lastModified() - 10000));
+        assertFalse(load().isUnchanged(myClass));
+    }
+
+    @Test
+    public void acceptsTouchedFileWithRecordedContent() throws Exception {
+        assertTrue(myClass.setLastModified(myClass.lastModified() - 10000));
+        final InstrumentationState state = load();
+        assertTrue(state.isUnchanged(myClass, new byte[]{1, 2, 3}));
+        // the new modification time is recorded
+        assertTrue(state.isUnchanged(myClass));
+    }
+
+    @Test
+    public void detectsChangedContent() throws Exception {
+        final long modified = myClass.lastModified();
+        write(myClass, new byte[]{3, 2, 1});
+        assertTrue(myClass.setLastModified(modified - 10000));
+        final InstrumentationState state = load();
+        assertFalse(state.isUnchanged(myClass));
+        assertFalse(state.isUnchanged(myClass, new byte[]{3, 2, 1}));
+    }
+
+    @Test
+    public void discardsStateOfOtherOptions() throws Exception {
+        assertFalse(InstrumentationState.load(myStateFile, myRoot, "checks=outlined").isUnchanged(myClass));
+    }
+
+    @Test
+    public void discardsStateOfOtherDirectory() throws Exception {
+        final File otherRoot = myTemporaryFolder.newFolder("other");
+        final File otherClass = new File(otherRoot, "A.class");
+        write(otherClass, new byte[]{1, 2, 3});
+        assertTrue(otherClass.setLastModified(myClass.lastModified()));
+        assertFalse(InstrumentationState.load(myStateFile, otherRoot, SIGNATURE).isUnchanged(otherClass));
+    }
+
+    @Test
+    public void discardsCorruptState() throws Exception {
+        write(myStateFile, new byte[]{0, 1, 2, '\n', 3});
+        assertFalse(load().isUnchanged(myClass));
+    }
+
+    @Test
+    public void ignoresCorruptEntries() throws Exception {
+        final File other = new File(myRoot, "B.class");
+        write(other, new byte[]{4});
+        final InstrumentationState state = load();
+        state.update(other, new byte[]{4});
+        state.save();
+        final String content = new String(TestInstrumenter.read(myStateFile), "UTF-8");
+        write(myStateFile, content.replaceFirst("A\\.class\t\\d+", "A.class\tbroken").getBytes("UTF-8"));
+        final InstrumentationState loaded = load();
+        assertFalse(loaded.isUnchanged(myClass));
+        assertTrue(loaded.isUnchanged(other));
+    }
+
+    @Test
+    public void forgetsRemovedFiles() throws Exception {
+        final InstrumentationState state = load();
+        state.retain(Collections.<File>emptyList());
+        state.save();
+        assertFalse(load().isUnchanged(myClass));
+    }
+
+    @NotNull
+    private InstrumentationState load() throws IOException {
+        return InstrumentationState.load(myStateFile, myRoot, SIGNATURE);
+    }
+
+    private static void write(@NotNull final File file, @NotNull final byte[] content) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the instrumented fixtures and checks that null values are reported with the same messages in each form of
+ * the checks.
+ */
+public class InstrumentedFixturesTest extends FixtureTestCase {
+    public InstrumentedFixturesTest(@NotNull final String form) {
+        super(form);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        instrument();
+    }
+
+    @Test
+    public void loadsAndVerifiesAllClasses() throws Exception {
+        final File[] files = new File(myInstrumenter.getOutputDirectory(), TestInstrumenter.FIXTURES).listFiles();
+        assertNotNull(files);
+        for (File file : files) {
+            final String name = file.getName();
+            load(name.substring(0, name.length() - ".class".length()));
+        }
+    }
+
+    @Test
+    public void checksStoredToParameter() throws Exception {
+        assertArgument("Nullness.storedTo", 0, call("Nullness", "storedTo", null, false));
+        assertResult("Nullness.storedTo", call("Nullness", "storedTo", "value", true));
+        assertNull(call("Nullness", "storedTo", "value", false));
+    }
+
+    @Test
+    public void checksResultAcrossLabel() throws Exception {
+        assertResult("Nullness.acrossLabel", call("Nullness", "acrossLabel", true));
+        assertNull(call("Nullness", "acrossLabel", false));
+        assertResult("Nullness.conditional", call("Nullness", "conditional", true));
+        assertNull(call("Nullness", "conditional", false));
+        assertNull(call("Nullness", "self"));
+        assertNull(call("Nullness", "constant"));
+        assertNull(call("Nullness", "array", 0));
+    }
+
+    @Test
+    public void checksResultOfEveryReturn() throws Exception {
+        assertNull(call("Returns", "pick", 0));
+        assertResult("Returns.pick", call("Returns", "pick", 1));
+        assertNull(call("Returns", "pick", 2));
+        assertNull(call("Returns", "pick", 3));
+        assertResult("Returns.pick", call("Returns", "pick", 11));
+        assertNull(call("Returns", "first", Arrays.asList(null, "value"), 5L, 1.0));
+        assertResult("Returns.first", call("Returns", "first", Collections.singletonList(null), 5L, 1.0));
+        assertResult("Returns.first", call("Returns", "first", Arrays.asList(null, null, "value"), 0L, 1.0));
+        assertArgument("Returns.first", 0, call("Returns", "first", null, 5L, 1.0));
+        assertNull(call("Returns", "parse", "1"));
+        assertNull(call("Returns", "parse", "x"));
+        assertResult("Returns.parse", call("Returns", "parse", ""));
+        assertArgument("Returns.parse", 0, call("Returns", "parse", (Object) null));
+    }
+
+    @Test
+    public void checksBridges() throws Exception {
+        assertArgument("Bridges.handle", 0, callHandler(newInstance("Bridges"), null));
+        assertNull(callHandler(newInstance("Bridges"), "value"));
+    }
+
+    @Test
+    public void checksDelegatingConstructorsAndOverloads() throws Exception {
+        final Class<?> delegation = load("Delegation");
+        assertArgument("Delegation.<init>", 0, construct(delegation.getConstructor(String.class), (Object) null));
+        assertArgument("Delegation.<init>", 1, construct(delegation.getConstructor(int.class, String.class), 1, null));
+        assertArgument("Delegation.<init>", 0, construct(delegation.getConstructor(String.class, int.class), null, 1));
+        final Object instance = delegation.getConstructor(String.class).newInstance("value");
+        assertArgument("Delegation.describe", 0, invoke(instance, "describe", (Object) null));
+        assertNull(invoke(instance, "describe", "prefix"));
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij;
+
+import com.intellij.fixtures.Bridges;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instruments a jar of the compiled fixtures with resources between the classes, and checks that every entry keeps its
+ * place, compression method and time, that resources are copied as they are, and that the instrumented classes verify
+ * and check their arguments.
+ */
+@RunWith(Parameterized.class)
+public class JarInstrumentationTest {
+    private static final long TIME = 1000000000000L;
+
+    @Rule
+    public final TemporaryFolder myTemporaryFolder = new TemporaryFolder();
+
+    private final int myThreads;
+    private File myOriginalDirectory;
+    private File myJar;
+    private JarNotNullInstrumenter myInstrumenter;
+
+    public JarInstrumentationTest(final int threads) {
+        myThreads = threads;
+    }
+
+    @Parameterized.Parameters(name = "threads={0}")
+    public static Collection<Object[]> getThreads() {
+        return Arrays.asList(new Object[]{1}, new Object[]{4});
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        myOriginalDirectory = new File(Bridges.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        myJar = new File(myTemporaryFolder.getRoot(), "fixtures.jar");
+        writeJar(myJar);
+        myInstrumenter = new JarNotNullInstrumenter();
+        TestInstrumenter.initialize(myInstrumenter, myTemporaryFolder.newFolder("target"));
+        myInstrumenter.threads = myThreads;
+        myInstrumenter.jar = myJar;
+    }
+
+    @Test
+    public void writesInstrumentedCopy() throws Exception {
+        final File original = myTemporaryFolder.newFile("original.jar");
+        copy(myJar, original);
+        myInstrumenter.outputJar = new File(myTemporaryFolder.getRoot(), "instrumented.jar");
+        myInstrumenter.execute();
+        assertArrayEquals(TestInstrumenter.read(original), TestInstrumenter.read(myJar));
+        assertInstrumented(original, myInstrumenter.outputJar);
+    }
+
+    @Test
+    public void replacesJar() throws Exception {
+        final File original = myTemporaryFolder.newFile("original.jar");
+        copy(myJar, original);
+        myInstrumenter.execute();
+        assertInstrumented(original, myJar);
+        assertFalse(new File(myJar.getPath() + ".tmp").exists());
+    }
+
+    private void assertInstrumented(@NotNull final File original, @NotNull final File instrumented) throws Exception {
+        final List<ZipEntry> before = getEntries(original);
+        final List<ZipEntry> after = getEntries(instrumented);
+        assertEquals(getNames(before), getNames(after));
+        final File extracted = myTemporaryFolder.newFolder("extracted");
+        final ZipFile originalZip = new ZipFile(original);
+        final ZipFile instrumentedZip = new ZipFile(instrumented);
+        try {
+            int changed = 0;
+            for (int i = 0; i < before.size(); i++) {
+                final String name = before.get(i).getName();
+                assertEquals(name, before.get(i).getMethod(), after.get(i).getMethod());
+                assertEquals(name, before.get(i).getTime(), after.get(i).getTime());
+                final byte[] content = read(instrumentedZip, after.get(i));
+                if (!name.endsWith(".class")) {
+                    assertArrayEquals(name, read(originalZip, before.get(i)), content);
+                    continue;
+                }
+                assertArrayEquals(name, TestInstrumenter.read(new File(myOriginalDirectory, name)), read(originalZip, before.get(i)));
+                if (!Arrays.equals(read(originalZip, before.get(i)), content)) {
+                    changed++;
+                }
+                final File file = new File(extracted, name);
+                assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+                write(file, content);
+            }
+            assertTrue(changed > 0);
+        } finally {
+            originalZip.close();
+            instrumentedZip.close();
+        }
+
+        final FixtureClassLoader loader = new FixtureClassLoader(extracted);
+        for (ZipEntry entry : after) {
+            final String name = entry.getName();
+            if (name.endsWith(".class")) {
+                Class.forName(name.substring(0, name.length() - ".class".length()).replace('/', '.'), true, loader);
+            }
+        }
+        final Object mixed = Class.forName(FixtureTestCase.PACKAGE.replace('/', '.') + "Mixed", true, loader).newInstance();
+        FixtureTestCase.assertArgument("Mixed.annotated", 0, FixtureTestCase.invoke(mixed, "annotated", (Object) null));
+        assertNull(FixtureTestCase.invoke(mixed, "annotated", Collections.singletonList("value")));
+    }
+
+    /**
+     * Writes the fixtures with a manifest, directory entries and resources in between, stored and deflated.
+     */
+    private void writeJar(@NotNull final File jar) throws IOException {
+        final File[] classes = new File(myOriginalDirectory, TestInstrumenter.FIXTURES).listFiles();
+        assertNotNull(classes);
+        Arrays.sort(classes);
+        final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+        try {
+            putEntry(out, "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\n\r\n".getBytes("UTF-8"), false);
+            putEntry(out, "com/", new byte[0], true);
+            putEntry(out, "com/intellij/", new byte[0], true);
+            putEntry(out, TestInstrumenter.FIXTURES + "/", new byte[0], true);
+            for (int i = 0; i < classes.length; i++) {
+                final String name = TestInstrumenter.FIXTURES + "/" + classes[i].getName();
+                putEntry(out, name, TestInstrumenter.read(classes[i]), i % 2 == 0);
+                if (i % 3 == 0) {
+                    putEntry(out, name.replace(".class", ".properties"), ("index=" + i + "\n").getBytes("UTF-8"), i % 2 != 0);
+                }
+            }
+            putEntry(out, "data.bin", new byte[]{0, 1, 2, 3}, false);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void putEntry(@NotNull final ZipOutputStream out, @NotNull final String name, @NotNull final byte[] content,
+                                 final boolean stored) throws IOException {
+        final ZipEntry entry = new ZipEntry(name);
+        entry.setTime(TIME);
+        if (stored) {
+            final CRC32 crc = new CRC32();
+            crc.update(content);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(content.length);
+            entry.setCompressedSize(content.length);
+            entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(content);
+        out.closeEntry();
+    }
+
+    @NotNull
+    private static List<ZipEntry> getEntries(@NotNull final File jar) throws IOException {
+        final ZipFile zip = new ZipFile(jar);
+        try {
+            final List<ZipEntry> entries = new ArrayList<ZipEntry>();
+            final Enumeration<? extends ZipEntry> e = zip.entries();
+            while (e.hasMoreElements()) {
+                entries.add(e.nextElement());
+            }
+            return entries;
+        } finally {
+            zip.close();
+        }
+    }
+
+    @NotNull
+    private static List<String> getNames(@NotNull final List<ZipEntry> entries) {
+        final List<String> names = new ArrayList<String>();
+        for (ZipEntry entry : entries) {
+            names.add(entry.getName());
+        }
+        return names;
+    }
+
+    @NotNull
+    private static byte[] read(@NotNull final ZipFile zip, @NotNull final ZipEntry entry) throws IOException {
+        final InputStream in = zip.getInputStream(zip.getEntry(entry.getName()));
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void copy(@NotNull final File from, @NotNull final File to) throws IOException {
+        write(to, TestInstrumenter.read(from));
+    }
+
+    private static void write(@NotNull final File file, @NotNull final byte[] content) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+}
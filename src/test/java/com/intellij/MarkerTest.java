@@ -0,0 +1,138 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij;
+
+import com.intellij.compiler.notNullVerification.InstrumentedAttribute;
+import com.intellij.fixtures.Bridges;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instruments the fixtures, then the instrumented classes again without an incremental state, as a build without
+ * {@code clean} does, with the same or with other options.
+ */
+public class MarkerTest {
+    private static final String CLASS = TestInstrumenter.FIXTURES + "/Nullness.class";
+
+    @Rule
+    public final TemporaryFolder myTemporaryFolder = new TemporaryFolder();
+
+    private File myOriginal;
+    private TestInstrumenter myInstrumenter;
+    private int myClassCount;
+
+    @Before
+    public void setUp() throws Exception {
+        myOriginal = new File(Bridges.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        myInstrumenter = new TestInstrumenter(myOriginal, myTemporaryFolder.newFolder("target"));
+        myInstrumenter.execute();
+        myClassCount = myInstrumenter.getInstrumentedCount();
+        assertTrue(myClassCount > 0);
+    }
+
+    @Test
+    public void marksInstrumentedClasses() throws Exception {
+        final byte[] original = TestInstrumenter.read(new File(myOriginal, CLASS));
+        final InstrumentedAttribute marker = InstrumentedAttribute.read(readClass());
+        assertNotNull(marker);
+        assertEquals(myInstrumenter.getOptions().getMarkerOptions(), marker.getOptions());
+        assertEquals(OriginalClasses.getChecksum(original), marker.getOriginalChecksum());
+        assertNull(InstrumentedAttribute.read(original));
+    }
+
+    @Test
+    public void skipsClassesInstrumentedWithSameOptions() throws Exception {
+        final byte[] instrumented = readClass();
+        myInstrumenter.instrumentAgain();
+        assertEquals(0, myInstrumenter.getInstrumentedCount());
+        assertArrayEquals(instrumented, readClass());
+    }
+
+    @Test
+    public void instrumentsAgainWithOtherOptions() throws Exception {
+        myInstrumenter.outlineChecks = true;
+        myInstrumenter.instrumentAgain();
+        assertEquals(myClassCount, myInstrumenter.getInstrumentedCount());
+        final String message = "Instrumented " + myClassCount + " classes again from their compiled class files, "
+                               + "as they had been instrumented with other options";
+        assertTrue(myInstrumenter.getMessages().toString(), myInstrumenter.getMessages().contains(message));
+        // the same as instrumenting the compiled class with the other options, not on top of the previous checks
+        final TestInstrumenter outlined = new TestInstrumenter(myOriginal, myTemporaryFolder.newFolder("outlined"));
+        outlined.outlineChecks = true;
+        outlined.execute();
+        assertArrayEquals(TestInstrumenter.read(new File(outlined.getOutputDirectory(), CLASS)), readClass());
+
+        myInstrumenter.instrumentAgain();
+        assertEquals(0, myInstrumenter.getInstrumentedCount());
+    }
+
+    @Test
+    public void leavesClassesWithoutOriginal() throws Exception {
+        final byte[] instrumented = readClass();
+        final File copy = new File(myInstrumenter.getReport("classes.originals"), CLASS);
+        assertTrue(copy.delete());
+        myInstrumenter.outlineChecks = true;
+        myInstrumenter.instrumentAgain();
+        assertEquals(myClassCount - 1, myInstrumenter.getInstrumentedCount());
+        assertArrayEquals(instrumented, readClass());
+    }
+
+    @Test
+    public void leavesClassesWithChangedOriginal() throws Exception {
+        final byte[] instrumented = readClass();
+        final File copy = new File(myInstrumenter.getReport("classes.originals"), CLASS);
+        final byte[] changed = TestInstrumenter.read(copy);
+        changed[changed.length - 1]++;
+        assertTrue(copy.delete());
+        write(copy, changed);
+        myInstrumenter.outlineChecks = true;
+        myInstrumenter.instrumentAgain();
+        assertEquals(myClassCount - 1, myInstrumenter.getInstrumentedCount());
+        assertArrayEquals(instrumented, readClass());
+    }
+
+    @Test
+    public void keepsCompiledClassesAsTheyWere() throws Exception {
+        final File copy = new File(myInstrumenter.getReport("classes.originals"), CLASS);
+        assertArrayEquals(TestInstrumenter.read(new File(myOriginal, CLASS)), TestInstrumenter.read(copy));
+        assertFalse(Arrays.equals(TestInstrumenter.read(copy), readClass()));
+    }
+
+    @NotNull
+    private byte[] readClass() throws Exception {
+        return TestInstrumenter.read(new File(myInstrumenter.getOutputDirectory(), CLASS));
+    }
+
+    private static void write(@NotNull final File file, @NotNull final byte[] content) throws Exception {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+}
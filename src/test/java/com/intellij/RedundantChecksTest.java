@@ -0,0 +1,67 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+/**
+ * Checks that the result checks of values that can not be null are left out, and only those.
+ */
+public class RedundantChecksTest extends FixtureTestCase {
+    private boolean mySkipRedundantChecks;
+
+    public RedundantChecksTest(@NotNull final String form) {
+        super(form);
+    }
+
+    @Override
+    protected void configure(@NotNull final TestInstrumenter instrumenter) {
+        instrumenter.skipRedundantChecks = mySkipRedundantChecks;
+    }
+
+    @Test
+    public void leavesOutResultChecksOfNonNullValues() throws Exception {
+        mySkipRedundantChecks = true;
+        instrument();
+        assertUnchanged("Nullness.self()Lcom/intellij/fixtures/Nullness;");
+        assertUnchanged("Nullness.constant()Ljava/lang/String;");
+        assertUnchanged("Nullness.array(I)[Ljava/lang/Object;");
+    }
+
+    @Test
+    public void keepsResultChecksOfValuesThatMayBeNull() throws Exception {
+        mySkipRedundantChecks = true;
+        instrument();
+        assertChecked("Nullness.storedTo(Ljava/lang/Object;Z)Ljava/lang/Object;");
+        assertChecked("Nullness.acrossLabel(Z)Ljava/lang/Object;");
+        assertChecked("Nullness.conditional(Z)Ljava/lang/Object;");
+        assertResult("Nullness.storedTo", call("Nullness", "storedTo", "value", true));
+        assertResult("Nullness.acrossLabel", call("Nullness", "acrossLabel", true));
+        assertResult("Nullness.conditional", call("Nullness", "conditional", true));
+        assertResult("Returns.pick", call("Returns", "pick", 1));
+    }
+
+    @Test
+    public void checksAllResultsOtherwise() throws Exception {
+        mySkipRedundantChecks = false;
+        instrument();
+        assertChecked("Nullness.self()Lcom/intellij/fixtures/Nullness;");
+        assertChecked("Nullness.constant()Ljava/lang/String;");
+        assertChecked("Nullness.array(I)[Ljava/lang/Object;");
+    }
+}
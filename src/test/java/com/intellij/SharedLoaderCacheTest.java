@@ -0,0 +1,96 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij;
+
+import com.intellij.compiler.instrumentation.InstrumentationClassFinder;
+import org.apache.maven.execution.DefaultMavenExecutionRequest;
+import org.apache.maven.execution.DefaultMavenExecutionResult;
+import org.apache.maven.execution.MavenExecutionRequest;
+import org.apache.maven.execution.MavenSession;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks which executions share a loader cache: those of one build with the same index cache and JDK directories,
+ * and only when sharing is enabled.
+ */
+public class SharedLoaderCacheTest {
+    @Rule
+    public final TemporaryFolder myTemporaryFolder = new TemporaryFolder();
+
+    private MavenExecutionRequest myRequest;
+
+    @Before
+    public void setUp() {
+        myRequest = new DefaultMavenExecutionRequest();
+    }
+
+    @Test
+    public void sharesCacheWithinBuild() throws Exception {
+        assertSame(getLoaderCache(createInstrumenter(myRequest)), getLoaderCache(createInstrumenter(myRequest)));
+    }
+
+    @Test
+    public void doesNotShareCacheBetweenBuilds() throws Exception {
+        assertNotSame(getLoaderCache(createInstrumenter(myRequest)),
+                      getLoaderCache(createInstrumenter(new DefaultMavenExecutionRequest())));
+    }
+
+    @Test
+    public void doesNotShareCacheBetweenIndexDirectories() throws Exception {
+        final TestInstrumenter other = createInstrumenter(myRequest);
+        other.hierarchyCacheDirectory = myTemporaryFolder.newFolder("index");
+        assertNotSame(getLoaderCache(createInstrumenter(myRequest)), getLoaderCache(other));
+    }
+
+    @Test
+    public void doesNotShareCacheUnlessEnabled() throws Exception {
+        final TestInstrumenter first = createInstrumenter(myRequest);
+        final TestInstrumenter second = createInstrumenter(myRequest);
+        first.shareClassFinderCache = false;
+        second.shareClassFinderCache = false;
+        assertNotSame(getLoaderCache(first), getLoaderCache(second));
+        assertNotSame(getLoaderCache(first), getLoaderCache(first));
+    }
+
+    @NotNull
+    private TestInstrumenter createInstrumenter(@NotNull final MavenExecutionRequest request) {
+        final File root = myTemporaryFolder.getRoot();
+        final TestInstrumenter instrumenter = new TestInstrumenter(root, root);
+        instrumenter.session = new MavenSession(null, request, new DefaultMavenExecutionResult(), instrumenter.project);
+        instrumenter.shareClassFinderCache = true;
+        return instrumenter;
+    }
+
+    @NotNull
+    private InstrumentationClassFinder.LoaderCache getLoaderCache(@NotNull final TestInstrumenter instrumenter) throws Exception {
+        final InstrumentationClassFinder finder = instrumenter.createClassFinder(Collections.<String>emptyList());
+        try {
+            return finder.getLoaderCache();
+        } finally {
+            instrumenter.releaseClassFinder(finder);
+        }
+    }
+}
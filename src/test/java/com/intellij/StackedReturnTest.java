@@ -0,0 +1,107 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks a class that javac would not generate, with a @NotNull method that returns with another value below the
+ * returned one on the operand stack. The checks must not assume that the returned value is all there is on the stack.
+ */
+public class StackedReturnTest extends FixtureTestCase {
+    private static final String CLASS_NAME = "StackedReturn";
+
+    public StackedReturnTest(@NotNull final String form) {
+        super(form);
+    }
+
+    @Override
+    protected void configure(@NotNull final TestInstrumenter instrumenter) {
+        final File file = new File(instrumenter.getOutputDirectory(), PACKAGE + CLASS_NAME + ".class");
+        try {
+            if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+                throw new IOException("Cannot create directory " + file.getParentFile());
+            }
+            final OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(generate());
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void checksReturnsWithMoreOnTheStack() throws Exception {
+        instrument();
+        assertResult(CLASS_NAME + ".pick", call(CLASS_NAME, "pick", null, true));
+        assertResult(CLASS_NAME + ".pick", call(CLASS_NAME, "pick", null, false));
+        assertNull(call(CLASS_NAME, "pick", "value", true));
+        assertNull(call(CLASS_NAME, "pick", "value", false));
+    }
+
+    /**
+     * Generates a class with a method that pushes an int before the value it returns. The int is still on the stack
+     * at the first return, and popped before the second one.
+     */
+    @NotNull
+    private static byte[] generate() {
+        final ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, PACKAGE + CLASS_NAME, null, "java/lang/Object", null);
+
+        MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = writer.visitMethod(Opcodes.ACC_PUBLIC, "pick", "(Ljava/lang/Object;Z)Ljava/lang/Object;", null, null);
+        mv.visitAnnotation("Lorg/jetbrains/annotations/NotNull;", false).visitEnd();
+        mv.visitCode();
+        mv.visitInsn(Opcodes.ICONST_0);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitVarInsn(Opcodes.ILOAD, 2);
+        final Label popped = new Label();
+        mv.visitJumpInsn(Opcodes.IFEQ, popped);
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitLabel(popped);
+        mv.visitInsn(Opcodes.SWAP);
+        mv.visitInsn(Opcodes.POP);
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.maven.project.MavenProject;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Instruments a copy of the compiled test fixtures, with every parameter set to the mojo defaults. Tests change the
+ * parameters before calling {@link #execute()}.
+ */
+class TestInstrumenter extends AbstractNotNullInstrumenterTask {
+    static final String FIXTURES = "com/intellij/fixtures";
+
+    private final File myOriginalDirectory;
+    private final List<String> myMessages = new ArrayList<String>();
+
+    TestInstrumenter(@NotNull final File originalDirectory, @NotNull final File buildDirectory) {
+        myOriginalDirectory = originalDirectory;
+        initialize(this, buildDirectory);
+        setLog(new SystemStreamLog() {
+            @Override
+            public void info(final CharSequence content) {
+                synchronized (myMessages) {
+                    myMessages.add(content.toString());
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets every parameter of a task to its default, with a project whose build directory is the given one.
+     */
+    static void initialize(@NotNull final AbstractNotNullInstrumenterTask task, @NotNull final File buildDirectory) {
+        task.project = new MavenProject();
+        task.project.getBuild().setDirectory(buildDirectory.getAbsolutePath());
+        task.project.getBuild().setOutputDirectory(new File(buildDirectory, "classes").getAbsolutePath());
+        ParameterDefaults.apply(task);
+    }
+
+    /**
+     * Copies the fixtures to the output directory and instruments them there.
+     */
+    public void execute() throws MojoExecutionException {
+        try {
+            copy(new File(myOriginalDirectory, FIXTURES), new File(getOutputDirectory(), FIXTURES));
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+        instrumentAgain();
+    }
+
+    /**
+     * Instruments the output directory as it is, like a later build.
+     */
+    void instrumentAgain() throws MojoExecutionException {
+        final File directory = getOutputDirectory();
+        instrument(directory.getAbsolutePath(), Collections.singletonList(directory.getAbsolutePath()), "classes");
+    }
+
+    /**
+     * @return the info messages logged so far
+     */
+    @NotNull
+    List<String> getMessages() {
+        synchronized (myMessages) {
+            return new ArrayList<String>(myMessages);
+        }
+    }
+
+    /**
+     * @return number of classes the last run instrumented
+     */
+    int getInstrumentedCount() {
+        final List<String> messages = getMessages();
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            final String message = messages.get(i);
+            if (message.startsWith("Added @NotNull assertions to ")) {
+                return Integer.parseInt(message.substring("Added @NotNull assertions to ".length(), message.indexOf(" files")));
+            }
+        }
+        throw new AssertionError("Not instrumented: " + messages);
+    }
+
+    @NotNull
+    File getOutputDirectory() {
+        return new File(project.getBuild().getOutputDirectory());
+    }
+
+    @NotNull
+    File getReport(@NotNull final String name) {
+        return new File(project.getBuild().getDirectory(), "notnull-instrumenter" + File.separator + name);
+    }
+
+    @NotNull
+    File getOriginalDirectory() {
+        return myOriginalDirectory;
+    }
+
+    @NotNull
+    static byte[] read(@NotNull final File file) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            final byte[] bytes = new byte[(int) file.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                final int count = in.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                read += count;
+            }
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void copy(@NotNull final File from, @NotNull final File to) throws IOException {
+        if (!to.isDirectory() && !to.mkdirs()) {
+            throw new IOException("Cannot create directory " + to);
+        }
+        final File[] files = from.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list " + from);
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                copy(file, new File(to, file.getName()));
+            } else {
+                final OutputStream out = new FileOutputStream(new File(to, file.getName()));
+                try {
+                    out.write(read(file));
+                } finally {
+                    out.close();
+                }
+            }
+        }
+    }
+}
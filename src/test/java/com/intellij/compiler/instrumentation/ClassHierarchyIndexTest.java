@@ -0,0 +1,169 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.compiler.instrumentation;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import static org.junit.Assert.*;
+
+public class ClassHierarchyIndexTest {
+  static final long MODIFIED = 1000000000000L;
+
+  @Rule
+  public final TemporaryFolder myTemporaryFolder = new TemporaryFolder();
+
+  private File myCacheDir;
+  private File myJar;
+
+  @Before
+  public void setUp() throws Exception {
+    myCacheDir = new File(myTemporaryFolder.getRoot(), "cache");
+    myJar = new File(myTemporaryFolder.getRoot(), "lib.jar");
+    writeJar(myJar, "p/A");
+  }
+
+  @Test
+  public void buildsAndStoresIndexOnMiss() throws Exception {
+    assertNull(ClassHierarchyIndex.loadCached(myCacheDir, myJar));
+    assertClass(ClassHierarchyIndex.load(myCacheDir, myJar), "p/A");
+    assertEquals(1, getIndexFiles("lib.jar").length);
+    assertClass(ClassHierarchyIndex.loadCached(myCacheDir, myJar), "p/A");
+  }
+
+  @Test
+  public void readsIndexOnHitWithoutOpeningJar() throws Exception {
+    ClassHierarchyIndex.load(myCacheDir, myJar);
+    // not a jar any more, but of the same size and modification time
+    final RandomAccessFile file = new RandomAccessFile(myJar, "rw");
+    try {
+      file.write(new byte[(int) myJar.length()]);
+    } finally {
+      file.close();
+    }
+    assertTrue(myJar.setLastModified(MODIFIED));
+    assertClass(ClassHierarchyIndex.load(myCacheDir, myJar), "p/A");
+  }
+
+  @Test
+  public void rebuildsIndexWhenModificationTimeChanges() throws Exception {
+    ClassHierarchyIndex.load(myCacheDir, myJar);
+    final long size = myJar.length();
+    writeJar(myJar, "p/B");
+    assertEquals(size, myJar.length());
+    assertTrue(myJar.setLastModified(MODIFIED + 2000));
+    assertNull(ClassHierarchyIndex.loadCached(myCacheDir, myJar));
+    assertClass(ClassHierarchyIndex.load(myCacheDir, myJar), "p/B");
+    assertEquals(1, getIndexFiles("lib.jar").length);
+  }
+
+  @Test
+  public void rebuildsIndexWhenSizeChanges() throws Exception {
+    ClassHierarchyIndex.load(myCacheDir, myJar);
+    writeJar(myJar, "p/Longer");
+    assertNull(ClassHierarchyIndex.loadCached(myCacheDir, myJar));
+    assertClass(ClassHierarchyIndex.load(myCacheDir, myJar), "p/Longer");
+  }
+
+  @Test
+  public void rebuildsCorruptedIndex() throws Exception {
+    ClassHierarchyIndex.load(myCacheDir, myJar);
+    final File index = getIndexFiles("lib.jar")[0];
+    final RandomAccessFile file = new RandomAccessFile(index, "rw");
+    try {
+      file.setLength(index.length() / 2);
+    } finally {
+      file.close();
+    }
+    assertNull(ClassHierarchyIndex.loadCached(myCacheDir, myJar));
+    assertClass(ClassHierarchyIndex.load(myCacheDir, myJar), "p/A");
+  }
+
+  @Test
+  public void indexesOnlyJarsThatClassesAreLookedUpIn() throws Exception {
+    final File other = new File(myTemporaryFolder.getRoot(), "other.jar");
+    writeJar(other, "q/C");
+    final InstrumentationClassFinder finder = new InstrumentationClassFinder(new URL[]{other.toURI().toURL(), myJar.toURI().toURL()},
+                                                                             new InstrumentationClassFinder.LoaderCache(myCacheDir, null));
+    try {
+      assertEquals("p/A", finder.loadClass("p/A").getName());
+      assertEquals(1, getIndexFiles("lib.jar").length);
+      assertEquals(0, getIndexFiles("other.jar").length);
+      assertEquals("q/C", finder.loadClass("q/C").getName());
+      assertEquals(1, getIndexFiles("other.jar").length);
+    } finally {
+      finder.releaseResources();
+    }
+  }
+
+  private static void assertClass(final ClassHierarchyIndex index, final String name) {
+    assertNotNull(index);
+    assertEquals(1, index.getEntries().size());
+    final ClassHierarchyIndex.Entry entry = index.get(name);
+    assertEquals(name, entry.getName());
+    assertEquals("java/lang/Object", entry.getSuperName());
+    assertEquals(Arrays.asList("java/io/Serializable"), Arrays.asList(entry.getInterfaces()));
+    assertEquals(Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, entry.getModifiers());
+  }
+
+  private File[] getIndexFiles(final String jarName) {
+    final File[] files = myCacheDir.listFiles();
+    if (files == null) {
+      return new File[0];
+    }
+    int count = 0;
+    for (File file : files) {
+      if (file.getName().startsWith(jarName + "-")) {
+        files[count++] = file;
+      }
+    }
+    return Arrays.copyOf(files, count);
+  }
+
+  /**
+   * Writes a jar with one class, with fixed entry times, so that jars with classes of equally long names are equally long.
+   */
+  static void writeJar(final File jar, final String className) throws IOException {
+    final ClassWriter writer = new ClassWriter(0);
+    writer.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, className, null, "java/lang/Object",
+                 new String[]{"java/io/Serializable"});
+    writer.visitEnd();
+    final JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+    try {
+      final ZipEntry entry = new ZipEntry(className + ".class");
+      entry.setTime(MODIFIED);
+      out.putNextEntry(entry);
+      out.write(writer.toByteArray());
+    } finally {
+      out.close();
+    }
+    assertTrue(jar.setLastModified(MODIFIED));
+  }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.compiler.instrumentation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.URL;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import static org.junit.Assert.*;
+
+public class InstrumentationClassFinderTest {
+  private static final int CLASS = Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER;
+  private static final int INTERFACE = Opcodes.ACC_PUBLIC | Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT;
+  private static final String OBJECT = "java/lang/Object";
+  private static final int CONCURRENT_CLASSES = 200;
+  private static final int THREADS = 8;
+
+  @Rule
+  public final TemporaryFolder myTemporaryFolder = new TemporaryFolder();
+
+  private File myClasses;
+  private File myJar;
+  private InstrumentationClassFinder myFinder;
+
+  @Before
+  public void setUp() throws Exception {
+    myClasses = myTemporaryFolder.newFolder("classes");
+    myJar = new File(myTemporaryFolder.getRoot(), "lib.jar");
+  }
+
+  @After
+  public void tearDown() {
+    if (myFinder != null) {
+      myFinder.releaseResources();
+    }
+  }
+
+  @Test
+  public void findsClassesOfPackageInEveryElement() throws Exception {
+    writeClass(myClasses, "p/A", CLASS, OBJECT);
+    writeJar(myJar, new String[]{"p/B", "q/C"}, CLASS, OBJECT);
+    createFinder();
+    assertEquals("p/B", myFinder.loadClass("p/B").getName());
+    assertEquals("p/A", myFinder.loadClass("p/A").getName());
+    assertEquals("q/C", myFinder.loadClass("q.C").getName());
+  }
+
+  @Test
+  public void findsClassInFirstElementContainingIt() throws Exception {
+    writeClass(myClasses, "p/A", CLASS, OBJECT);
+    writeJar(myJar, new String[]{"p/A"}, INTERFACE, OBJECT);
+    createFinder();
+    assertFalse(myFinder.loadClass("p/A").isInterface());
+  }
+
+  @Test
+  public void doesNotMistakeSubpackages() throws Exception {
+    writeClass(myClasses, "A", CLASS, OBJECT);
+    writeJar(myJar, new String[]{"p/q/B"}, CLASS, OBJECT);
+    createFinder();
+    assertEquals("A", myFinder.loadClass("A").getName());
+    assertEquals("p/q/B", myFinder.loadClass("p/q/B").getName());
+    assertNotFound("p/B");
+    assertNotFound("p/q");
+  }
+
+  @Test
+  public void findsPlatformClassesOnNoElement() throws Exception {
+    writeJar(myJar, new String[]{"java/lang/Fake"}, CLASS, OBJECT);
+    createFinder();
+    assertEquals("java/lang/String", myFinder.loadClass("java/lang/String").getName());
+    assertEquals("java/lang/Fake", myFinder.loadClass("java/lang/Fake").getName());
+    assertNotFound("java/lang/Missing");
+  }
+
+  @Test
+  public void findsSameCommonSuperClassesAsReflection() throws Exception {
+    final Class<?>[] types = {Object.class, String.class, StringBuilder.class, Integer.class, Long.class, Number.class,
+      Comparable.class, CharSequence.class, Serializable.class, Throwable.class, Error.class, AssertionError.class,
+      RuntimeException.class, IllegalArgumentException.class, NumberFormatException.class, IllegalStateException.class,
+      IOException.class, FileNotFoundException.class, Iterable.class, Collection.class, List.class, Set.class, Map.class,
+      AbstractList.class, ArrayList.class, LinkedList.class, HashSet.class, TreeSet.class, HashMap.class, TreeMap.class};
+    createFinder();
+    // every pair twice, in both orders, so that memoized results are checked as well
+    for (int round = 0; round < 2; round++) {
+      for (Class<?> type1 : types) {
+        for (Class<?> type2 : types) {
+          assertEquals(getName(type1) + " " + getName(type2), getCommonSuperClass(type1, type2),
+                       myFinder.getCommonSuperClass(getName(type1), getName(type2)));
+        }
+      }
+    }
+    assertEquals(2 * types.length * types.length, myFinder.getCommonSuperClassQueries());
+    assertEquals(2 * types.length * types.length - types.length * (types.length + 1) / 2, myFinder.getCommonSuperClassHits());
+  }
+
+  @Test
+  public void findsCommonSuperClassesOfClasspathClasses() throws Exception {
+    writeClass(myClasses, "p/I", INTERFACE, OBJECT);
+    writeClass(myClasses, "p/J", INTERFACE, OBJECT, "p/I");
+    writeClass(myClasses, "p/A", CLASS, OBJECT, "p/J");
+    writeClass(myClasses, "p/B", CLASS, "p/A");
+    writeClass(myClasses, "p/C", CLASS, OBJECT, "p/I");
+    writeClass(myClasses, "p/D", CLASS, "p/A", "java/io/Serializable");
+    createFinder();
+    assertEquals("p/A", myFinder.getCommonSuperClass("p/B", "p/A"));
+    assertEquals("p/A", myFinder.getCommonSuperClass("p/B", "p/D"));
+    assertEquals("p/I", myFinder.getCommonSuperClass("p/B", "p/I"));
+    assertEquals("p/J", myFinder.getCommonSuperClass("p/J", "p/D"));
+    assertEquals(OBJECT, myFinder.getCommonSuperClass("p/B", "p/C"));
+    assertEquals(OBJECT, myFinder.getCommonSuperClass("p/J", "p/C"));
+    assertEquals("java/io/Serializable", myFinder.getCommonSuperClass("p/D", "java/io/Serializable"));
+    assertEquals(OBJECT, myFinder.getCommonSuperClass("p/B", "java/io/Serializable"));
+    assertEquals(0, myFinder.getCommonSuperClassHits());
+    assertEquals("p/A", myFinder.getCommonSuperClass("p/D", "p/B"));
+    assertEquals(1, myFinder.getCommonSuperClassHits());
+  }
+
+  @Test(timeout = 30000)
+  public void loadsClassesConcurrently() throws Exception {
+    final String[] chain = new String[CONCURRENT_CLASSES];
+    final String[] flat = new String[CONCURRENT_CLASSES];
+    for (int i = 0; i < CONCURRENT_CLASSES; i++) {
+      chain[i] = "p/C" + i;
+      flat[i] = "q/F" + i;
+      writeClass(myClasses, chain[i], CLASS, i > 0 ? chain[i - 1] : OBJECT);
+    }
+    writeJar(myJar, flat, CLASS, OBJECT);
+    createFinder();
+    final CountDownLatch start = new CountDownLatch(1);
+    final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      final List<Future<InstrumentationClassFinder.PseudoClass[]>> results =
+        new ArrayList<Future<InstrumentationClassFinder.PseudoClass[]>>();
+      for (int t = 0; t < THREADS; t++) {
+        final int offset = t;
+        results.add(executor.submit(new Callable<InstrumentationClassFinder.PseudoClass[]>() {
+          public InstrumentationClassFinder.PseudoClass[] call() throws Exception {
+            start.await();
+            final InstrumentationClassFinder.PseudoClass[] loaded = new InstrumentationClassFinder.PseudoClass[2 * CONCURRENT_CLASSES];
+            // every thread starts elsewhere, so that the threads race for different classes and packages
+            for (int k = 0; k < CONCURRENT_CLASSES; k++) {
+              final int i = (k + offset * CONCURRENT_CLASSES / THREADS) % CONCURRENT_CLASSES;
+              loaded[i] = myFinder.loadClass(chain[i]);
+              loaded[CONCURRENT_CLASSES + i] = myFinder.loadClass(flat[i]);
+              final int j = (i * 7) % CONCURRENT_CLASSES;
+              assertEquals(chain[Math.min(i, j)], myFinder.getCommonSuperClass(chain[i], chain[j]));
+              assertEquals(OBJECT, myFinder.getCommonSuperClass(chain[i], flat[j]));
+            }
+            return loaded;
+          }
+        }));
+      }
+      start.countDown();
+      final InstrumentationClassFinder.PseudoClass[] first = results.get(0).get();
+      for (Future<InstrumentationClassFinder.PseudoClass[]> result : results) {
+        final InstrumentationClassFinder.PseudoClass[] loaded = result.get();
+        for (int i = 0; i < loaded.length; i++) {
+          assertSame(first[i], loaded[i]);
+        }
+      }
+      for (int i = 0; i < CONCURRENT_CLASSES; i++) {
+        assertEquals(chain[i], first[i].getName());
+        assertEquals(i > 0 ? chain[i - 1] : OBJECT, first[i].getSuperClass().getName());
+        assertEquals(flat[i], first[CONCURRENT_CLASSES + i].getName());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void createFinder() throws IOException {
+    myFinder = new InstrumentationClassFinder(new URL[]{myClasses.toURI().toURL(), myJar.toURI().toURL()});
+  }
+
+  private void assertNotFound(final String name) throws IOException {
+    try {
+      myFinder.loadClass(name);
+      fail(name);
+    } catch (ClassNotFoundException expected) {
+    }
+  }
+
+  /**
+   * @return the common superclass as the class writer computed it before results were memoized, using reflection
+   */
+  private static String getCommonSuperClass(final Class<?> type1, final Class<?> type2) {
+    if (type1.isAssignableFrom(type2)) {
+      return getName(type1);
+    }
+    if (type2.isAssignableFrom(type1)) {
+      return getName(type2);
+    }
+    if (type1.isInterface() || type2.isInterface()) {
+      return OBJECT;
+    }
+    Class<?> c = type1;
+    do {
+      c = c.getSuperclass();
+    }
+    while (!c.isAssignableFrom(type2));
+    return getName(c);
+  }
+
+  private static String getName(final Class<?> type) {
+    return type.getName().replace('.', '/');
+  }
+
+  private static byte[] createClass(final String name, final int access, final String superName, final String... interfaces) {
+    final ClassWriter writer = new ClassWriter(0);
+    writer.visit(Opcodes.V1_6, access, name, null, superName, interfaces);
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+
+  private static void writeClass(final File root, final String name, final int access, final String superName, final String... interfaces)
+    throws IOException {
+    final File file = new File(root, name + ".class");
+    assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+    final OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(createClass(name, access, superName, interfaces));
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void writeJar(final File jar, final String[] names, final int access, final String superName) throws IOException {
+    final JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+    try {
+      for (String name : names) {
+        out.putNextEntry(new ZipEntry(name + ".class"));
+        out.write(createClass(name, access, superName));
+      }
+    } finally {
+      out.close();
+    }
+  }
+}
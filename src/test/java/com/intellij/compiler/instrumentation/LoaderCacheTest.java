@@ -0,0 +1,125 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.compiler.instrumentation;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that finders sharing a loader cache keep a jar open until the last of them releases it, including the loader
+ * replaced after the jar changed. Open jars are counted through {@code /proc/self/fd}, so the tests only run on Linux.
+ */
+public class LoaderCacheTest {
+  private static final File OPEN_FILES = new File("/proc/self/fd");
+
+  @Rule
+  public final TemporaryFolder myTemporaryFolder = new TemporaryFolder();
+
+  private File myJar;
+  private InstrumentationClassFinder.LoaderCache myCache;
+
+  @Before
+  public void setUp() throws Exception {
+    Assume.assumeTrue(OPEN_FILES.isDirectory());
+    myJar = new File(myTemporaryFolder.getRoot(), "lib.jar");
+    ClassHierarchyIndexTest.writeJar(myJar, "p/A");
+    myCache = new InstrumentationClassFinder.LoaderCache(null, null);
+  }
+
+  @Test
+  public void closesJarWhenLastFinderReleasesIt() throws Exception {
+    final InstrumentationClassFinder first = createFinder();
+    final InstrumentationClassFinder second = createFinder();
+    assertEquals("p/A", first.loadClass("p/A").getName());
+    assertEquals("p/A", second.loadClass("p/A").getName());
+    assertEquals(1, countOpenJars());
+    first.releaseResources();
+    assertEquals(1, countOpenJars());
+    second.releaseResources();
+    assertEquals(0, countOpenJars());
+  }
+
+  @Test
+  public void keepsClassesReadByReleasedFinders() throws Exception {
+    final InstrumentationClassFinder first = createFinder();
+    first.loadClass("p/A");
+    first.releaseResources();
+    final InstrumentationClassFinder second = createFinder();
+    try {
+      assertEquals("p/A", second.loadClass("p/A").getName());
+      assertEquals(0, countOpenJars());
+    } finally {
+      second.releaseResources();
+    }
+  }
+
+  @Test
+  public void replacesLoaderOfChangedJar() throws Exception {
+    final InstrumentationClassFinder first = createFinder();
+    first.loadClass("p/A");
+    ClassHierarchyIndexTest.writeJar(myJar, "p/B");
+    assertTrue(myJar.setLastModified(ClassHierarchyIndexTest.MODIFIED + 2000));
+    final InstrumentationClassFinder second = createFinder();
+    assertEquals("p/B", second.loadClass("p/B").getName());
+    try {
+      second.loadClass("p/A");
+      fail();
+    } catch (ClassNotFoundException expected) {
+    }
+    assertEquals(2, countOpenJars());
+    first.releaseResources();
+    assertEquals(1, countOpenJars());
+    second.releaseResources();
+    assertEquals(0, countOpenJars());
+  }
+
+  private InstrumentationClassFinder createFinder() throws IOException {
+    return new InstrumentationClassFinder(new URL[]{myJar.toURI().toURL()}, myCache);
+  }
+
+  /**
+   * @return number of file descriptors of this process open on the jar, or on the jar it replaced
+   */
+  private int countOpenJars() throws IOException {
+    final File[] files = OPEN_FILES.listFiles();
+    assertNotNull(files);
+    final Path jar = myJar.toPath().toRealPath();
+    int count = 0;
+    for (File file : files) {
+      try {
+        // links are read directly, as canonical paths may be cached for descriptors that were closed and reused since
+        if (Files.readSymbolicLink(file.toPath()).equals(jar)) {
+          count++;
+        }
+      } catch (IOException ignored) {
+        // closed while listing
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.compiler.notNullVerification;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ElidedCheckTest {
+  @Test
+  public void readsWhatItWrites() {
+    final ElidedCheck check = new ElidedCheck("a/b/C$D", "<init>", "(Ljava/lang/String;[I)V", 1);
+    assertEquals("a/b/C$D.<init>(Ljava/lang/String;[I)V #1", check.toString());
+    final ElidedCheck parsed = ElidedCheck.parse(check.toString());
+    assertEquals(check, parsed);
+    assertEquals("a/b/C$D", parsed.getOwner());
+    assertEquals("<init>", parsed.getName());
+    assertEquals("(Ljava/lang/String;[I)V", parsed.getDesc());
+    assertEquals(1, parsed.getParameter());
+  }
+
+  @Test
+  public void rejectsOtherLines() {
+    assertNull(ElidedCheck.parse(""));
+    assertNull(ElidedCheck.parse("# comment"));
+    assertNull(ElidedCheck.parse("C.m(Ljava/lang/String;)V"));
+    assertNull(ElidedCheck.parse("C.m(Ljava/lang/String;)V #x"));
+    assertNull(ElidedCheck.parse("C.m(Ljava/lang/String;)V #-1"));
+    assertNull(ElidedCheck.parse("C.(Ljava/lang/String;)V #0"));
+    assertNull(ElidedCheck.parse(".m(Ljava/lang/String;)V #0"));
+  }
+}
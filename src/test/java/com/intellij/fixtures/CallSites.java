@@ -0,0 +1,68 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.fixtures;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Private and package-private methods whose callers do, or do not, pass non-null values.
+ */
+public class CallSites {
+    public int entry(@NotNull final String value) {
+        return length(value) + length("constant");
+    }
+
+    public int afterStore(@NotNull String value, final boolean clear) {
+        if (clear) {
+            value = null;
+        }
+        return checked(value);
+    }
+
+    public int fromNested(final String value) {
+        return new Nested().call(value);
+    }
+
+    public int fromOuter() {
+        return calledFromNested("constant");
+    }
+
+    private int length(@NotNull final String value) {
+        return value.length();
+    }
+
+    private int checked(@NotNull final String value) {
+        return value.length();
+    }
+
+    private int calledFromNested(@NotNull final String value) {
+        return value.length();
+    }
+
+    static int packageLength(@NotNull final String value) {
+        return value.length();
+    }
+
+    static int packageChecked(@NotNull final String value) {
+        return value.length();
+    }
+
+    private class Nested {
+        private int call(final String value) {
+            return calledFromNested(value);
+        }
+    }
+}
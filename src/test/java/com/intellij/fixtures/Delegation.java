@@ -0,0 +1,47 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.fixtures;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Constructors and overloads that only call another one.
+ */
+public class Delegation {
+    private final String myValue;
+
+    public Delegation(@NotNull final String value) {
+        this(value, 0);
+    }
+
+    public Delegation(final int count, @NotNull final String value) {
+        this(value, count);
+    }
+
+    public Delegation(@NotNull final String value, final int count) {
+        myValue = value + count;
+    }
+
+    @NotNull
+    public String describe(@NotNull final String prefix) {
+        return describe(prefix, "");
+    }
+
+    @NotNull
+    private String describe(@NotNull final String prefix, @NotNull final String suffix) {
+        return prefix + myValue + suffix;
+    }
+}
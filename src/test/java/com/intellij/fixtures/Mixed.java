@@ -0,0 +1,51 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.fixtures;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Methods with and without @NotNull annotations in one class.
+ */
+public class Mixed {
+    @NotNull
+    public String annotated(@NotNull final List<String> values) {
+        for (String value : values) {
+            if (!value.isEmpty()) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    public int plain(final List<String> values) {
+        int length = 0;
+        for (String value : values) {
+            length += value != null ? value.length() : -1;
+        }
+        return length;
+    }
+
+    public static String plainStatic(final Object value) {
+        try {
+            return value.toString();
+        } catch (NullPointerException e) {
+            return "null";
+        }
+    }
+}
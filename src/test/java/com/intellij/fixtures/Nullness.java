@@ -0,0 +1,60 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.fixtures;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Results that the nullness tracking must, or need not, check.
+ */
+public class Nullness {
+    @NotNull
+    public Object storedTo(@NotNull Object value, final boolean clear) {
+        if (clear) {
+            value = null;
+        }
+        return value;
+    }
+
+    @NotNull
+    public Object acrossLabel(final boolean empty) {
+        Object result = new Object();
+        if (empty) {
+            result = null;
+        }
+        return result;
+    }
+
+    @NotNull
+    public Object conditional(final boolean empty) {
+        return empty ? null : "value";
+    }
+
+    @NotNull
+    public Nullness self() {
+        return this;
+    }
+
+    @NotNull
+    public String constant() {
+        return "constant";
+    }
+
+    @NotNull
+    public Object[] array(final int length) {
+        return new Object[length];
+    }
+}
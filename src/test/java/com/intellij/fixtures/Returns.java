@@ -0,0 +1,62 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.fixtures;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Methods with several returns, loops and handlers, whose instrumented code needs stack map frames.
+ */
+public class Returns {
+    @NotNull
+    public String pick(final int choice) {
+        switch (choice) {
+            case 0:
+                return "zero";
+            case 1:
+                return null;
+            case 2:
+                return String.valueOf(choice);
+            default:
+                return choice > 10 ? null : "other";
+        }
+    }
+
+    @NotNull
+    public String first(@NotNull final List<String> values, final long limit, final double scale) {
+        int index = 0;
+        for (String value : values) {
+            if (index++ * scale > limit) {
+                break;
+            }
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    @NotNull
+    public Object parse(@NotNull final String text) {
+        try {
+            return Integer.valueOf(text);
+        } catch (NumberFormatException e) {
+            return text.isEmpty() ? null : e;
+        }
+    }
+}